@@ -0,0 +1,231 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} backed by {@code android.bluetooth}. Characteristics are resolved
+ * through a {@link CharacteristicRegistry} that is built once per discovery, or on connect when
+ * a reused handle still holds the services of its previous connection, so fragment writes do
+ * not search the service list.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class AndroidGattTransport implements GattTransport {
+    private final static String TAG = AndroidGattTransport.class.getSimpleName();
+
+    /**
+     * Opens transports with {@code BluetoothDevice#connectGatt}.
+     */
+    static class Factory implements GattTransport.Factory {
+        private final Context mContext;
+
+        Factory(Context context) {
+            this.mContext = context;
+        }
+
+        public GattTransport open(String address, boolean autoConnect, Listener listener) {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            BluetoothDevice device = adapter == null ? null : adapter.getRemoteDevice(address);
+            if (device == null) {
+                Log.w(TAG, "Device not found.  Unable to connect.");
+                return null;
+            }
+            AndroidGattTransport transport = new AndroidGattTransport(address, listener);
+            BluetoothGatt gatt = device.connectGatt(this.mContext, autoConnect, transport.mCallback);
+            if (gatt == null) {
+                return null;
+            }
+            transport.mGatt = gatt;
+            return transport;
+        }
+    }
+
+    private final String mAddress;
+    private final Listener mListener;
+    private final CharacteristicRegistry mCharacteristics = new CharacteristicRegistry();
+    private volatile BluetoothGatt mGatt;
+
+    private final BluetoothGattCallback mCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mCharacteristics.invalidate();
+            } else if (newState == BluetoothProfile.STATE_CONNECTED && mCharacteristics.isEmpty()) {
+                // a reconnected handle keeps its services; empty until discovery otherwise
+                mCharacteristics.build(gatt.getServices());
+            }
+            mListener.onConnectionStateChange(AndroidGattTransport.this, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mCharacteristics.build(gatt.getServices());
+            } else {
+                mCharacteristics.invalidate();
+            }
+            mListener.onServicesDiscovered(AndroidGattTransport.this, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mListener.onCharacteristicRead(AndroidGattTransport.this, characteristic.getService().getUuid(),
+                    characteristic.getUuid(), characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mListener.onCharacteristicWrite(AndroidGattTransport.this, characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mListener.onDescriptorWrite(AndroidGattTransport.this, descriptor.getUuid(), status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            mListener.onCharacteristicChanged(AndroidGattTransport.this, characteristic.getUuid(), characteristic.getValue());
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mListener.onMtuChanged(AndroidGattTransport.this, mtu, status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            mListener.onPhyUpdate(AndroidGattTransport.this, txPhy, rxPhy, status);
+        }
+    };
+
+    private AndroidGattTransport(String address, Listener listener) {
+        this.mAddress = address;
+        this.mListener = listener;
+    }
+
+    BluetoothGatt getGatt() {
+        return this.mGatt;
+    }
+
+    public String getAddress() {
+        return this.mAddress;
+    }
+
+    public boolean connect() {
+        return this.mGatt.connect();
+    }
+
+    public void disconnect() {
+        this.mGatt.disconnect();
+    }
+
+    public void close() {
+        this.mCharacteristics.invalidate();
+        this.mGatt.close();
+    }
+
+    public boolean discoverServices() {
+        this.mCharacteristics.invalidate();
+        return this.mGatt.discoverServices();
+    }
+
+    /**
+     * {@code BluetoothGatt#refresh()} is hidden, hence the reflection.
+     */
+    public boolean refresh() {
+        this.mCharacteristics.invalidate();
+        try {
+            Method refresh = this.mGatt.getClass().getMethod("refresh");
+            return (Boolean) refresh.invoke(this.mGatt);
+        } catch (Exception e) {
+            Log.w(TAG, "BluetoothGatt#refresh unavailable", e);
+            return false;
+        }
+    }
+
+    public int getProperties(UUID serviceUuid, UUID characteristicUuid) {
+        BluetoothGattCharacteristic characteristic = characteristic(serviceUuid, characteristicUuid);
+        return characteristic == null ? -1 : characteristic.getProperties();
+    }
+
+    public boolean hasDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid) {
+        BluetoothGattCharacteristic characteristic = characteristic(serviceUuid, characteristicUuid);
+        return characteristic != null && characteristic.getDescriptor(descriptorUuid) != null;
+    }
+
+    public boolean writeCharacteristic(UUID serviceUuid, UUID characteristicUuid, byte[] value, boolean withResponse) {
+        BluetoothGattCharacteristic characteristic = characteristic(serviceUuid, characteristicUuid);
+        if (characteristic == null) {
+            return false;
+        }
+        characteristic.setValue(value);
+        characteristic.setWriteType(withResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        return this.mGatt.writeCharacteristic(characteristic);
+    }
+
+    public boolean readCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+        BluetoothGattCharacteristic characteristic = characteristic(serviceUuid, characteristicUuid);
+        return characteristic != null && this.mGatt.readCharacteristic(characteristic);
+    }
+
+    public boolean setCharacteristicNotification(UUID serviceUuid, UUID characteristicUuid, boolean enabled) {
+        BluetoothGattCharacteristic characteristic = characteristic(serviceUuid, characteristicUuid);
+        return characteristic != null && this.mGatt.setCharacteristicNotification(characteristic, enabled);
+    }
+
+    public boolean writeDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid, byte[] value) {
+        BluetoothGattCharacteristic characteristic = characteristic(serviceUuid, characteristicUuid);
+        BluetoothGattDescriptor descriptor = characteristic == null ? null : characteristic.getDescriptor(descriptorUuid);
+        if (descriptor == null) {
+            return false;
+        }
+        descriptor.setValue(value);
+        return this.mGatt.writeDescriptor(descriptor);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean requestMtu(int mtu) {
+        return this.mGatt.requestMtu(mtu);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return this.mGatt.requestConnectionPriority(connectionPriority);
+    }
+
+    /**
+     * {@code BluetoothGatt#setPreferredPhy} returns nothing, so refusal is judged up front: the
+     * request fails without 2M PHY support, where no {@code onPhyUpdate} would follow.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    public boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return false;
+        }
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null || !adapter.isLe2MPhySupported()) {
+            return false;
+        }
+        this.mGatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+        return true;
+    }
+
+    private BluetoothGattCharacteristic characteristic(UUID serviceUuid, UUID characteristicUuid) {
+        return this.mCharacteristics.get(serviceUuid, characteristicUuid);
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter: the delay doubles with every attempt up to a cap, and the
+ * upper half of it is randomized so many clients that failed together do not retry together.
+ * Not thread-safe; pure Java so it can be exercised off-device.
+ */
+final class Backoff {
+
+    // 2^16 times the initial delay is far beyond any sensible cap and cannot overflow a long
+    private static final int MAX_SHIFT = 16;
+
+    private final long mInitialMs;
+    private final long mMaxMs;
+    private final Random mRandom;
+
+    Backoff(long initialMs, long maxMs, Random random) {
+        if (initialMs <= 0 || maxMs < initialMs) {
+            throw new IllegalArgumentException("need 0 < initial <= max");
+        }
+        this.mInitialMs = initialMs;
+        this.mMaxMs = maxMs;
+        this.mRandom = random;
+    }
+
+    /**
+     * @return the cap for attempt {@code attempt + 1} before jitter: {@code initial * 2^attempt},
+     * at most the maximum.
+     */
+    long ceiling(int attempt) {
+        return Math.min(this.mInitialMs << Math.min(Math.max(attempt, 0), MAX_SHIFT), this.mMaxMs);
+    }
+
+    /**
+     * @return the delay before attempt {@code attempt + 1}, in
+     * {@code [ceiling / 2, ceiling)}.
+     */
+    long delay(int attempt) {
+        long ceiling = ceiling(attempt);
+        long half = ceiling / 2;
+        return half + (long) (this.mRandom.nextDouble() * (ceiling - half));
+    }
+}
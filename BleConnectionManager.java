@@ -0,0 +1,180 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one {@link BleDeviceSession} per bracelet address and enforces a limit on concurrent
+ * GATT connections; only connecting and connected sessions count against it. Links are opened
+ * through a {@link GattTransport.Factory}.
+ * <p>
+ * All sessions share the BLE I/O thread. Each session has at most one GATT operation in flight,
+ * and the thread's message queue is FIFO, so busy bracelets are served in turn and a bulk
+ * transfer to one of them cannot starve the others.
+ */
+public class BleConnectionManager {
+    private final static String TAG = BleConnectionManager.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    private final GattTransport.Factory mTransportFactory;
+    private final Handler mHandler;
+    private final GattTransport.Listener mTransportListener;
+    private final ConnectionLimit mLimit;
+    private final int mQueueCapacity;
+    private final OutboundCommandQueue.OverflowPolicy mOverflowPolicy;
+    private final BleMetrics mMetrics;
+    private final ConcurrentHashMap<String, BleDeviceSession> mSessions = new ConcurrentHashMap<String, BleDeviceSession>();
+
+    BleConnectionManager(GattTransport.Factory transportFactory, Handler handler, GattTransport.Listener transportListener,
+                         int maxConnections, int queueCapacity, OutboundCommandQueue.OverflowPolicy overflowPolicy,
+                         BleMetrics metrics) {
+        this.mTransportFactory = transportFactory;
+        this.mHandler = handler;
+        this.mTransportListener = transportListener;
+        this.mLimit = new ConnectionLimit(maxConnections);
+        this.mQueueCapacity = queueCapacity;
+        this.mOverflowPolicy = overflowPolicy;
+        this.mMetrics = metrics;
+    }
+
+    /**
+     * Connects to the bracelet at {@code address}, reusing its transport if a session for it
+     * already exists. Does nothing if the bracelet is already connecting or connected.
+     *
+     * @return false if the connection could not be initiated or the connection limit is reached.
+     */
+    public synchronized boolean connect(String address) {
+        BleDeviceSession session = this.mSessions.get(address);
+        if (session != null && session.getTransport() != null && session.isActive()) {
+            // the stack reports no state change for connect() on a link that is already up
+            return true;
+        }
+        if (!admits(address, session)) {
+            return false;
+        }
+        if (session != null && session.getTransport() != null) {
+            Log.d(TAG, "Trying to use an existing transport for " + address);
+            if (session.getTransport().connect()) {
+                session.setConnectionState(BleDeviceSession.STATE_CONNECTING);
+                return true;
+            }
+            return false;
+        }
+        if (session == null) {
+            session = new BleDeviceSession(address, this.mHandler, this.mQueueCapacity, this.mOverflowPolicy, this.mMetrics);
+            // registered before the transport opens so the first event can already find it
+            this.mSessions.put(address, session);
+        }
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        return openTransport(session, false);
+    }
+
+    /**
+     * Fast-path reconnect through the transport of an existing session.
+     *
+     * @return false if there is no transport or it refused the request.
+     */
+    public synchronized boolean reconnect(String address) {
+        BleDeviceSession session = this.mSessions.get(address);
+        if (session == null || session.getTransport() == null
+                || !admits(address, session)
+                || !session.getTransport().connect()) {
+            return false;
+        }
+        session.setConnectionState(BleDeviceSession.STATE_CONNECTING);
+        return true;
+    }
+
+    /**
+     * Closes the transport of an existing session and opens a new one. With
+     * {@code autoConnect} the stack connects whenever the bracelet comes into range, without a
+     * connection timeout.
+     *
+     * @return false if there is no session, the connection limit is reached or the transport
+     * could not be opened.
+     */
+    public synchronized boolean reopen(String address, boolean autoConnect) {
+        BleDeviceSession session = this.mSessions.get(address);
+        if (session == null || !admits(address, session)) {
+            return false;
+        }
+        session.releaseTransport();
+        return openTransport(session, autoConnect);
+    }
+
+    /**
+     * Sessions that are disconnected but not closed keep their place in the map for a fast
+     * reconnect; they do not count against the connection limit.
+     */
+    private boolean admits(String address, BleDeviceSession session) {
+        if (this.mLimit.admits(session, this.mSessions.values())) {
+            return true;
+        }
+        Log.w(TAG, "Connection limit of " + this.mLimit.getMaxConnections() + " reached, not connecting "
+                + address);
+        return false;
+    }
+
+    private boolean openTransport(BleDeviceSession session, boolean autoConnect) {
+        session.setConnectionState(BleDeviceSession.STATE_CONNECTING);
+        GattTransport transport = this.mTransportFactory.open(session.getAddress(), autoConnect, this.mTransportListener);
+        session.setTransport(transport);
+        if (transport == null) {
+            session.setConnectionState(BleDeviceSession.STATE_DISCONNECTED);
+            return false;
+        }
+        Log.d(TAG, "Trying to create a new connection to " + session.getAddress() + (autoConnect ? " (autoConnect)" : ""));
+        return true;
+    }
+
+    public void disconnect(String address) {
+        BleDeviceSession session = this.mSessions.get(address);
+        if (session != null && session.getTransport() != null) {
+            session.getTransport().disconnect();
+        }
+    }
+
+    /**
+     * Closes the GATT handle of {@code address} and forgets its session.
+     */
+    public synchronized void close(String address) {
+        BleDeviceSession session = this.mSessions.remove(address);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    public synchronized void closeAll() {
+        for (BleDeviceSession session : this.mSessions.values()) {
+            session.close();
+        }
+        this.mSessions.clear();
+    }
+
+    public BleDeviceSession get(String address) {
+        return address == null ? null : this.mSessions.get(address);
+    }
+
+    public BleDeviceSession get(BluetoothGatt gatt) {
+        return gatt == null ? null : this.mSessions.get(gatt.getDevice().getAddress());
+    }
+
+    public BleDeviceSession get(GattTransport transport) {
+        return transport == null ? null : this.mSessions.get(transport.getAddress());
+    }
+
+    public Collection<BleDeviceSession> getSessions() {
+        return Collections.unmodifiableCollection(this.mSessions.values());
+    }
+
+    public int getMaxConnections() {
+        return this.mLimit.getMaxConnections();
+    }
+}
@@ -0,0 +1,312 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection to one bracelet: its {@link GattTransport}, connection state, GATT operation
+ * scheduler and outbound write pipeline with its own queue and fragmentation state. Sessions
+ * are created and owned by {@link BleConnectionManager}.
+ */
+public class BleDeviceSession implements ConnectionLimit.Link {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    private final String mAddress;
+    private volatile GattTransport mTransport;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+
+    final GattOperationScheduler scheduler;
+    final BleWritePipeline pipeline;
+    final CharacteristicRegistry characteristics = new CharacteristicRegistry();
+    final LinkProfileController linkProfile;
+
+    // Characteristics whose notifications are currently enabled on this connection.
+    private final Set<UUID> mNotifying = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+
+    // Connection timeline, in elapsedRealtime milliseconds, and the last notification per
+    // characteristic, in nanoseconds.
+    volatile long connectingSince;
+    volatile long connectedAt;
+    volatile long discoveringSince;
+    private final ConcurrentHashMap<UUID, AtomicLong> mLastNotification = new ConcurrentHashMap<UUID, AtomicLong>();
+
+    private final BluetoothLeService.WriteCallBack mFragmentWriteCallback = new BluetoothLeService.WriteCallBack() {
+        public void onWrite(boolean success) {
+            pipeline.onWriteComplete(success);
+        }
+    };
+
+    BleDeviceSession(String address, Handler handler, int queueCapacity, OutboundCommandQueue.OverflowPolicy policy,
+                     BleMetrics metrics) {
+        this.mAddress = address;
+        this.scheduler = new GattOperationScheduler(handler, metrics);
+        this.pipeline = new BleWritePipeline(handler, new BleWritePipeline.FragmentWriter() {
+            public BleWritePipeline.PendingWrite writeFragment(byte[] fragment, boolean withResponse) {
+                return writeRXCharacteristic(fragment, withResponse, mFragmentWriteCallback);
+            }
+        }, queueCapacity, policy, metrics);
+        this.linkProfile = new LinkProfileController(this, handler);
+        this.pipeline.setTransferListener(this.linkProfile);
+    }
+
+    public String getAddress() {
+        return this.mAddress;
+    }
+
+    public GattTransport getTransport() {
+        return this.mTransport;
+    }
+
+    /**
+     * @return the Android GATT handle, or null if there is none or the session runs on another
+     * transport.
+     */
+    public BluetoothGatt getGatt() {
+        GattTransport transport = this.mTransport;
+        return transport instanceof AndroidGattTransport ? ((AndroidGattTransport) transport).getGatt() : null;
+    }
+
+    public int getConnectionState() {
+        return this.mConnectionState;
+    }
+
+    /**
+     * @return true while connecting or connected, i.e. while holding a connection slot.
+     */
+    public boolean isActive() {
+        return this.mConnectionState != STATE_DISCONNECTED;
+    }
+
+    /**
+     * Queues a payload for this bracelet.
+     *
+     * @see BleWritePipeline#send(byte[], OutboundCommandQueue.Priority)
+     */
+    public BleSendFuture send(byte[] data, OutboundCommandQueue.Priority priority) {
+        return this.pipeline.send(data, priority);
+    }
+
+    public OutboundCommandQueue<?> getOutboundQueue() {
+        return this.pipeline.getQueue();
+    }
+
+    /**
+     * @return the throughput of the last payload sent to this bracelet, in bytes/sec.
+     */
+    public double getLastBytesPerSecond() {
+        return this.pipeline.getLastBytesPerSecond();
+    }
+
+    /**
+     * @return the throughput of the last streamed ({@code BULK}) payload, in bytes/sec.
+     */
+    public double getLastStreamBytesPerSecond() {
+        return this.pipeline.getLastStreamBytesPerSecond();
+    }
+
+    /**
+     * @return how often a streamed payload fell back to acknowledged writes.
+     */
+    public long getStreamFallbackCount() {
+        return this.pipeline.getStreamFallbackCount();
+    }
+
+    /**
+     * @return the connection parameters currently requested for this bracelet.
+     */
+    public LinkProfile getLinkProfile() {
+        return this.linkProfile.getProfile();
+    }
+
+    void setTransport(GattTransport transport) {
+        this.mTransport = transport;
+        this.scheduler.setTransport(transport);
+    }
+
+    void setConnectionState(int state) {
+        long now = SystemClock.elapsedRealtime();
+        if (state == STATE_CONNECTING && this.mConnectionState != STATE_CONNECTING) {
+            this.connectingSince = now;
+        } else if (state == STATE_CONNECTED) {
+            this.connectedAt = now;
+        }
+        this.mConnectionState = state;
+    }
+
+    /**
+     * @return the nanoTime of the previous notification of the characteristic, or 0 for the
+     * first one.
+     */
+    long markNotification(UUID characteristicUuid, long now) {
+        AtomicLong last = this.mLastNotification.get(characteristicUuid);
+        if (last == null) {
+            this.mLastNotification.put(characteristicUuid, new AtomicLong(now));
+            return 0;
+        }
+        return last.getAndSet(now);
+    }
+
+    void enqueue(GattOperationScheduler.Operation operation) {
+        this.scheduler.enqueue(operation);
+    }
+
+    /**
+     * Writes {@code value} to the RX characteristic of this bracelet.
+     *
+     * @param withResponse false to use write-without-response. Ignored if the characteristic
+     *                     does not support the requested write type.
+     * @return the queued write, or null if the bracelet does not expose the RX characteristic.
+     */
+    GattOperationScheduler.Operation writeRXCharacteristic(byte[] value, boolean withResponse,
+                                                           BluetoothLeService.WriteCallBack callback) {
+        GattTransport transport = this.mTransport;
+        int properties = transport == null ? -1
+                : transport.getProperties(BluetoothLeService.RX_SERVICE_UUID, BluetoothLeService.RX_CHAR_UUID);
+        if (properties == -1) {
+            return null;
+        }
+        if (withResponse && (properties & GattTransport.PROPERTY_WRITE) == 0) {
+            withResponse = false;
+        } else if (!withResponse && (properties & GattTransport.PROPERTY_WRITE_NO_RESPONSE) == 0) {
+            withResponse = true;
+        }
+        GattOperationScheduler.Operation operation = GattOperationScheduler.write(BluetoothLeService.RX_SERVICE_UUID,
+                BluetoothLeService.RX_CHAR_UUID, value, withResponse, callback);
+        this.scheduler.enqueue(operation);
+        return operation;
+    }
+
+    /**
+     * @return true if notifications of the characteristic are enabled on this connection.
+     */
+    public boolean isNotifying(UUID characteristicUuid) {
+        return this.mNotifying.contains(characteristicUuid);
+    }
+
+    /**
+     * Enables or disables notifications of {@code characteristic}: registers locally and, if the
+     * characteristic has a CCCD, writes it. Characteristics that can only indicate, such as
+     * Service Changed, get indications instead. Idempotent; if the characteristic is already in
+     * the requested state when the request reaches the BLE thread, the callback reports success
+     * without any GATT traffic.
+     */
+    void setNotification(BluetoothGattCharacteristic characteristic, boolean enabled,
+                         BluetoothLeService.WriteCallBack callback) {
+        setNotification(characteristic.getService().getUuid(), characteristic.getUuid(), enabled, callback);
+    }
+
+    void setNotification(final UUID serviceUuid, final UUID uuid, final boolean enabled,
+                         final BluetoothLeService.WriteCallBack callback) {
+        GattTransport transport = this.mTransport;
+        int properties = transport == null ? -1 : transport.getProperties(serviceUuid, uuid);
+        if (properties == -1) {
+            if (callback != null) {
+                callback.onWrite(false);
+            }
+            return;
+        }
+        BluetoothLeService.WriteCallBack applied = new BluetoothLeService.WriteCallBack() {
+            public void onWrite(boolean success) {
+                if (success) {
+                    if (enabled) {
+                        mNotifying.add(uuid);
+                    } else {
+                        mNotifying.remove(uuid);
+                    }
+                }
+                if (callback != null) {
+                    callback.onWrite(success);
+                }
+            }
+        };
+        final GattOperationScheduler.Operation cccd;
+        if (transport.hasDescriptor(serviceUuid, uuid, BluetoothLeService.CCCD)) {
+            byte[] value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+            if (enabled) {
+                value = (properties & GattTransport.PROPERTY_NOTIFY) == 0
+                        && (properties & GattTransport.PROPERTY_INDICATE) != 0
+                        ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
+                        : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+            }
+            cccd = GattOperationScheduler.writeDescriptor(serviceUuid, uuid, BluetoothLeService.CCCD, value, applied);
+        } else {
+            cccd = null;
+        }
+        this.scheduler.enqueue(new GattOperationScheduler.Operation(GattOperationScheduler.TYPE_IMMEDIATE, uuid,
+                cccd == null ? applied : null) {
+            boolean execute(GattTransport transport) {
+                // checked on the BLE thread, after every earlier request was applied
+                if (mNotifying.contains(uuid) != enabled) {
+                    return transport.setCharacteristicNotification(serviceUuid, uuid, enabled);
+                }
+                if (cccd != null) {
+                    // a cancelled operation reports nothing, so report for it
+                    cccd.cancel();
+                    if (callback != null) {
+                        callback.onWrite(true);
+                    }
+                }
+                return true;
+            }
+        });
+        if (cccd != null) {
+            this.scheduler.enqueue(cccd);
+        }
+    }
+
+    /**
+     * Fails everything queued for the link that just dropped. The transport is kept so the
+     * connection can be resumed with {@link GattTransport#connect()}.
+     */
+    void onDisconnected() {
+        this.mConnectionState = STATE_DISCONNECTED;
+        this.characteristics.invalidate();
+        this.mNotifying.clear();
+        this.mLastNotification.clear();
+        this.pipeline.cancelAll();
+        this.pipeline.setMtu(BleWritePipeline.DEFAULT_MTU);
+        this.linkProfile.onDisconnected();
+        this.scheduler.clear();
+    }
+
+    /**
+     * Closes the transport but keeps the session, so a fresh one can be opened for the same
+     * bracelet. Reconnecting through a stale handle fails after errors such as status 133.
+     */
+    void releaseTransport() {
+        GattTransport transport = this.mTransport;
+        this.mTransport = null;
+        this.scheduler.setTransport(null);
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Releases the GATT client slot of this session.
+     */
+    void close() {
+        this.pipeline.cancelAll();
+        this.scheduler.setTransport(null);
+        this.characteristics.invalidate();
+        this.mNotifying.clear();
+        this.mConnectionState = STATE_DISCONNECTED;
+        GattTransport transport = this.mTransport;
+        this.mTransport = null;
+        if (transport != null) {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms of the BLE hot paths, registered by name. Recording is lock-free;
+ * callers look a metric up once and keep the reference. Histogram names end in their unit
+ * ({@code _us}, {@code _ms}) unless they count things.
+ * <p>
+ * Snapshots are JSON objects. {@link #startExport} appends one per interval to a local file,
+ * with histograms reset for each interval and counters cumulative, so field regressions can be
+ * found from the file alone.
+ */
+public class BleMetrics {
+    private final static String TAG = BleMetrics.class.getSimpleName();
+
+    public static final String GATT_WRITE_US = "gatt.write_us";
+    public static final String GATT_READ_US = "gatt.read_us";
+    public static final String GATT_DESCRIPTOR_US = "gatt.descriptor_us";
+    public static final String GATT_MTU_US = "gatt.mtu_us";
+    public static final String GATT_PHY_US = "gatt.phy_us";
+    public static final String GATT_FAILED = "gatt.failed";
+    public static final String GATT_TIMEOUTS = "gatt.timeouts";
+    public static final String WRITE_FRAGMENTS = "write.fragments";
+    public static final String WRITE_PAYLOAD_MS = "write.payload_ms";
+    public static final String WRITE_RETRIES = "write.retries";
+    public static final String WRITE_STREAM_FALLBACKS = "write.stream_fallbacks";
+    public static final String WRITE_FAILED = "write.failed";
+    public static final String NOTIFY_INTERARRIVAL_US = "notify.interarrival_us.";
+    public static final String CALLBACK_US = "callback_us.";
+    public static final String LINK_CONNECT_MS = "link.connect_ms";
+    public static final String LINK_DISCOVERY_MS = "link.discovery_ms";
+    public static final String LINK_READY_MS = "link.ready_ms";
+    public static final String LINK_DISCOVERY_SKIPPED = "link.discovery_skipped";
+    public static final String LINK_DISCONNECTS = "link.disconnects";
+    public static final String LINK_RECONNECT_MS = "link.reconnect_ms";
+
+    static final long EXPORT_LIMIT_BYTES = 256 * 1024;
+
+    private final ConcurrentHashMap<String, AtomicLong> mCounters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, LatencyHistogram> mHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    // Per-key histograms of the notification and callback paths, so they are not named per call.
+    private final ConcurrentHashMap<UUID, LatencyHistogram> mInterArrival = new ConcurrentHashMap<UUID, LatencyHistogram>();
+    private final ConcurrentHashMap<Class<?>, LatencyHistogram> mCallbacks = new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+
+    private volatile Handler mExportHandler;
+    private volatile File mExportFile;
+    private volatile long mExportIntervalMs;
+
+    private final Runnable mExportRunnable = new Runnable() {
+        public void run() {
+            exportSnapshot();
+            Handler handler = mExportHandler;
+            if (handler != null) {
+                handler.postDelayed(this, mExportIntervalMs);
+            }
+        }
+    };
+
+    public AtomicLong counter(String name) {
+        AtomicLong counter = this.mCounters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = this.mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = this.mHistograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = this.mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the inter-arrival histogram of notifications of {@code characteristicUuid}.
+     */
+    LatencyHistogram interArrival(UUID characteristicUuid) {
+        LatencyHistogram histogram = this.mInterArrival.get(characteristicUuid);
+        if (histogram == null) {
+            histogram = histogram(NOTIFY_INTERARRIVAL_US + characteristicUuid);
+            this.mInterArrival.put(characteristicUuid, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the dispatch duration histogram of listeners of the given class.
+     */
+    LatencyHistogram callback(Class<?> listenerClass) {
+        LatencyHistogram histogram = this.mCallbacks.get(listenerClass);
+        if (histogram == null) {
+            histogram = histogram(CALLBACK_US + listenerClass.getName());
+            this.mCallbacks.put(listenerClass, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * @param reset true to reset the histograms, starting a new interval.
+     * @return all metrics as one line of JSON.
+     */
+    public String snapshot(boolean reset) {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"uptime_ms\":").append(SystemClock.elapsedRealtime())
+                .append(",\"time\":").append(System.currentTimeMillis())
+                .append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(this.mCounters).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(entry.getKey()).append("\":").append(entry.getValue().get());
+        }
+        json.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(this.mHistograms).entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot(reset);
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(entry.getKey()).append("\":{\"count\":").append(snapshot.getCount())
+                    .append(",\"mean\":").append(Math.round(snapshot.getMean()))
+                    .append(",\"p50\":").append(snapshot.getValueAtPercentile(50))
+                    .append(",\"p90\":").append(snapshot.getValueAtPercentile(90))
+                    .append(",\"p99\":").append(snapshot.getValueAtPercentile(99))
+                    .append(",\"max\":").append(snapshot.getMax()).append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Appends an interval snapshot to {@code file} every {@code intervalMs} on the handler's
+     * thread, which must allow file I/O; not the BLE thread. Once the file exceeds
+     * {@link #EXPORT_LIMIT_BYTES} it is rotated to {@code .1}.
+     */
+    public void startExport(Handler handler, File file, long intervalMs) {
+        stopExport();
+        this.mExportHandler = handler;
+        this.mExportFile = file;
+        this.mExportIntervalMs = intervalMs;
+        handler.postDelayed(this.mExportRunnable, intervalMs);
+    }
+
+    public void stopExport() {
+        Handler handler = this.mExportHandler;
+        this.mExportHandler = null;
+        if (handler != null) {
+            handler.removeCallbacks(this.mExportRunnable);
+        }
+    }
+
+    /**
+     * Appends an interval snapshot to the export file now. Does file I/O.
+     */
+    public void exportSnapshot() {
+        File file = this.mExportFile;
+        if (file == null) {
+            return;
+        }
+        String line = snapshot(true);
+        try {
+            File directory = file.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("cannot create " + directory);
+            }
+            if (file.length() > EXPORT_LIMIT_BYTES && !file.renameTo(new File(file.getPath() + ".1"))) {
+                throw new IOException("cannot rotate " + file);
+            }
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                writer.write(line);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "metrics export failed", e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle for one outbound payload. The result is {@code true} once every fragment
+ * of the payload has been acknowledged by the bracelet, {@code false} if the transfer failed.
+ * After {@link #cancel(boolean)}, {@code get} throws {@link CancellationException} while a
+ * registered callback is told {@code false}.
+ */
+public class BleSendFuture implements Future<Boolean> {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile boolean done;
+    private volatile boolean success;
+    private volatile boolean cancelled;
+    private BluetoothLeService.WriteCallBack callback;
+
+    /**
+     * Registers a callback that is invoked once with the transfer result. If the payload has
+     * already completed the callback is invoked immediately on the calling thread.
+     */
+    public void setCallback(BluetoothLeService.WriteCallBack callback) {
+        boolean fireNow;
+        synchronized (this) {
+            this.callback = callback;
+            fireNow = this.done;
+        }
+        if (fireNow && callback != null) {
+            callback.onWrite(this.success);
+        }
+    }
+
+    boolean setResult(boolean success) {
+        return complete(success, false);
+    }
+
+    private boolean complete(boolean success, boolean cancel) {
+        BluetoothLeService.WriteCallBack cb;
+        synchronized (this) {
+            if (this.done) {
+                return false;
+            }
+            this.success = success;
+            this.cancelled = cancel;
+            this.done = true;
+            cb = this.callback;
+        }
+        this.latch.countDown();
+        if (cb != null) {
+            cb.onWrite(success);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the transfer at the next fragment boundary. A payload still queued is never sent;
+     * fragments already handed to the stack are not recalled and still reach the bracelet, so a
+     * payload cancelled mid-transfer may arrive truncated.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(false, true);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.done;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException, ExecutionException {
+        this.latch.await();
+        return result();
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!this.latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Boolean result() {
+        if (this.cancelled) {
+            throw new CancellationException();
+        }
+        return this.success;
+    }
+}
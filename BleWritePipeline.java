@@ -0,0 +1,382 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends outbound payloads to the bracelet fragment by fragment. All state is confined to the
+ * thread of the given handler.
+ * <p>
+ * Normal payloads use acknowledged writes: the next fragment is written only once
+ * {@code onCharacteristicWrite} has confirmed the previous one. Payloads of the
+ * {@link OutboundCommandQueue.Priority#BULK} lane are streamed with write-without-response
+ * instead, keeping up to {@link FragmentWindow#STREAM_WINDOW} fragments in flight in a
+ * {@link FragmentWindow}; every completed write
+ * returns a credit. If a streamed write fails, the fragments queued behind it are cancelled and
+ * the rest of the payload is resent in order with acknowledged writes, so the bracelet still
+ * sees a gapless packet_counter sequence.
+ */
+class BleWritePipeline {
+    private final static String TAG = BleWritePipeline.class.getSimpleName();
+
+    static final int SEND_PACKET_SIZE = 20;
+    static final int DEFAULT_MTU = 23;
+    static final int ATT_HEADER_SIZE = 3;
+    static final long QUEUE_BLOCK_TIMEOUT_MS = 1000;
+    static final long RETRY_DELAY_MS = 50;
+    static final int MAX_RETRIES = 3;
+
+    /**
+     * A queued fragment write that has not been executed yet.
+     */
+    interface PendingWrite {
+        /**
+         * Drops the write if it has not started. A cancelled write reports no result.
+         */
+        void cancel();
+    }
+
+    /**
+     * Issues a single GATT write for one fragment.
+     */
+    interface FragmentWriter {
+        /**
+         * @param withResponse false to use write-without-response.
+         * @return the queued write, or null if it was refused. The result of a queued write must
+         * be reported through {@link #onWriteComplete(boolean)} in issue order, including a
+         * failure when the write times out.
+         */
+        PendingWrite writeFragment(byte[] fragment, boolean withResponse);
+    }
+
+    /**
+     * Told when a payload starts and stops occupying the link. Called on the I/O thread.
+     */
+    interface TransferListener {
+        void onTransferStarted(int length, boolean stream);
+
+        void onTransferFinished(int length, boolean stream);
+    }
+
+    private final Handler mHandler;
+    private final FragmentWriter mWriter;
+    private final OutboundCommandQueue<Payload> mPending;
+    private final boolean mLogPackets = Log.isLoggable("lq", Log.DEBUG);
+
+    // Fragments issued but not yet confirmed, oldest first, and the matching queued writes.
+    private final FragmentWindow mWindow = new FragmentWindow();
+    private final ArrayDeque<PendingWrite> mWrites = new ArrayDeque<PendingWrite>(FragmentWindow.STREAM_WINDOW);
+
+    private TransferListener mTransferListener;
+    private int mPacketSize = SEND_PACKET_SIZE;
+    private Payload mCurrent;
+    private boolean mWithResponse;
+    private int mRetryCount;
+    private int mFragmentCount;
+    private long mStartedAt;
+
+    private final LatencyHistogram mFragmentsPerPayload;
+    private final LatencyHistogram mPayloadMillis;
+    private final AtomicLong mRetries;
+    private final AtomicLong mFallbacks;
+    private final AtomicLong mFailures;
+
+    private volatile double mLastBytesPerSecond;
+    private volatile double mLastStreamBytesPerSecond;
+    private volatile long mStreamFallbackCount;
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        public void run() {
+            resendInFlight();
+        }
+    };
+
+    private final Runnable mStartRunnable = new Runnable() {
+        public void run() {
+            if (mCurrent == null) {
+                startNext();
+            }
+        }
+    };
+
+    BleWritePipeline(Handler handler, FragmentWriter writer, int queueCapacity, OutboundCommandQueue.OverflowPolicy policy,
+                     BleMetrics metrics) {
+        this.mHandler = handler;
+        this.mWriter = writer;
+        this.mFragmentsPerPayload = metrics.histogram(BleMetrics.WRITE_FRAGMENTS);
+        this.mPayloadMillis = metrics.histogram(BleMetrics.WRITE_PAYLOAD_MS);
+        this.mRetries = metrics.counter(BleMetrics.WRITE_RETRIES);
+        this.mFallbacks = metrics.counter(BleMetrics.WRITE_STREAM_FALLBACKS);
+        this.mFailures = metrics.counter(BleMetrics.WRITE_FAILED);
+        this.mPending = new OutboundCommandQueue<Payload>(queueCapacity, policy, QUEUE_BLOCK_TIMEOUT_MS,
+                new OutboundCommandQueue.DropListener<Payload>() {
+                    public void onDropped(Payload payload) {
+                        Log.w(TAG, "outbound queue full, dropped " + payload.send_data.length + " bytes");
+                        payload.future.setResult(false);
+                    }
+                });
+    }
+
+    /**
+     * Queues a payload for transmission. May be called from any thread. The returned future
+     * fails immediately if the queue refused the payload. {@code BULK} payloads are streamed.
+     */
+    BleSendFuture send(byte[] data, OutboundCommandQueue.Priority priority) {
+        Payload payload = new Payload(data, priority == OutboundCommandQueue.Priority.BULK, new BleSendFuture());
+        if (!this.mPending.offer(payload, priority)) {
+            Log.w(TAG, "outbound queue full, rejected " + data.length + " bytes");
+            payload.future.setResult(false);
+        } else {
+            this.mHandler.post(this.mStartRunnable);
+        }
+        return payload.future;
+    }
+
+    /**
+     * Must be set before the first payload is sent.
+     */
+    void setTransferListener(TransferListener listener) {
+        this.mTransferListener = listener;
+    }
+
+    OutboundCommandQueue<?> getQueue() {
+        return this.mPending;
+    }
+
+    /**
+     * @return the throughput of the last payload that was sent successfully, in bytes/sec.
+     */
+    double getLastBytesPerSecond() {
+        return this.mLastBytesPerSecond;
+    }
+
+    /**
+     * @return the throughput of the last streamed payload that was sent successfully, in
+     * bytes/sec.
+     */
+    double getLastStreamBytesPerSecond() {
+        return this.mLastStreamBytesPerSecond;
+    }
+
+    /**
+     * @return how often streaming fell back to acknowledged writes.
+     */
+    long getStreamFallbackCount() {
+        return this.mStreamFallbackCount;
+    }
+
+    /**
+     * Sizes the following fragments to fit the negotiated ATT MTU. Values below the default
+     * MTU fall back to {@link #SEND_PACKET_SIZE}.
+     */
+    void setMtu(final int mtu) {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                mPacketSize = Math.max(SEND_PACKET_SIZE, mtu - ATT_HEADER_SIZE);
+            }
+        });
+    }
+
+    /**
+     * Called from {@code onCharacteristicWrite} for the RX characteristic, or by the operation
+     * scheduler when a fragment write was refused or timed out. When already on the I/O thread
+     * the result is handled at once, so a failed streamed write can cancel its successors
+     * before the scheduler starts them.
+     */
+    void onWriteComplete(final boolean success) {
+        if (Looper.myLooper() == this.mHandler.getLooper()) {
+            handleWriteComplete(success);
+            return;
+        }
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                handleWriteComplete(success);
+            }
+        });
+    }
+
+    /**
+     * Fails the payload in progress and everything still queued, e.g. after a disconnect.
+     */
+    void cancelAll() {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                mHandler.removeCallbacks(mRetryRunnable);
+                if (mCurrent != null) {
+                    mCurrent.future.setResult(false);
+                    transferFinished(mCurrent);
+                    mCurrent = null;
+                }
+                releaseInFlight();
+                Payload payload;
+                while ((payload = mPending.poll()) != null) {
+                    payload.future.setResult(false);
+                }
+            }
+        });
+    }
+
+    private void startNext() {
+        this.mCurrent = this.mPending.poll();
+        if (this.mCurrent != null) {
+            this.mWindow.begin(this.mCurrent.send_data, this.mCurrent.stream ? FragmentWindow.STREAM_WINDOW : 1);
+            this.mWithResponse = !this.mCurrent.stream;
+            this.mRetryCount = 0;
+            this.mFragmentCount = 0;
+            this.mStartedAt = SystemClock.elapsedRealtime();
+            if (this.mTransferListener != null) {
+                this.mTransferListener.onTransferStarted(this.mCurrent.send_data.length, this.mCurrent.stream);
+            }
+            pump();
+        }
+    }
+
+    private void handleWriteComplete(boolean success) {
+        if (this.mCurrent == null || this.mWrites.isEmpty()) {
+            return;
+        }
+        if (!success) {
+            Log.e(TAG, "onCharacteristicWrite failed");
+            retryOrFail();
+            return;
+        }
+        this.mWrites.poll();
+        this.mWindow.acknowledge();
+        this.mRetryCount = 0;
+        pump();
+    }
+
+    /**
+     * Issues fragments until the window is full or the payload is fragmented, and finishes the
+     * payload once every fragment was confirmed.
+     */
+    private void pump() {
+        if (this.mCurrent.future.isDone()) {
+            // cancelled by the caller
+            finish(false);
+            return;
+        }
+        while (this.mWindow.hasRoom()) {
+            PacketFragmenter.Fragment fragment = this.mWindow.next(this.mPacketSize);
+            this.mFragmentCount++;
+            if (!issue(fragment)) {
+                return;
+            }
+        }
+        if (this.mWindow.isDone()) {
+            finish(true);
+        }
+    }
+
+    /**
+     * @return false if the write was refused; the failure has then been handled.
+     */
+    private boolean issue(PacketFragmenter.Fragment fragment) {
+        PendingWrite write = this.mWriter.writeFragment(fragment.array(), this.mWithResponse);
+        if (this.mLogPackets) {
+            Log.d("lq", "send:" + ByteFormatter.toHex(fragment.array()) + "  packet_counter:" + fragment.packetCounter());
+        }
+        if (write == null) {
+            Log.e(TAG, "writeRXCharacteristic false");
+            retryOrFail();
+            return false;
+        }
+        this.mWrites.add(write);
+        return true;
+    }
+
+    /**
+     * Handles a failure of the oldest fragment in flight. Writes queued behind it are cancelled
+     * so nothing overtakes it; a streamed payload continues with acknowledged writes.
+     */
+    private void retryOrFail() {
+        cancelWrites();
+        if (!this.mWithResponse) {
+            Log.w(TAG, "write without response failed, falling back to acknowledged writes");
+            this.mWithResponse = true;
+            this.mWindow.setSize(1);
+            this.mStreamFallbackCount++;
+            this.mFallbacks.incrementAndGet();
+        } else if (this.mRetryCount >= MAX_RETRIES) {
+            Log.e(TAG, "giving up after " + this.mRetryCount + " retries");
+            finish(false);
+            return;
+        }
+        this.mRetryCount++;
+        this.mRetries.incrementAndGet();
+        this.mHandler.postDelayed(this.mRetryRunnable, RETRY_DELAY_MS * this.mRetryCount);
+    }
+
+    /**
+     * Re-issues every unconfirmed fragment in order, then continues with the payload.
+     */
+    private void resendInFlight() {
+        if (this.mCurrent == null) {
+            return;
+        }
+        for (PacketFragmenter.Fragment fragment : this.mWindow.inFlight()) {
+            if (!issue(fragment)) {
+                return;
+            }
+        }
+        if (this.mWindow.inFlightCount() == 0) {
+            pump();
+        }
+    }
+
+    private void cancelWrites() {
+        PendingWrite write;
+        while ((write = this.mWrites.poll()) != null) {
+            write.cancel();
+        }
+    }
+
+    private void releaseInFlight() {
+        cancelWrites();
+        this.mWindow.clear();
+    }
+
+    private void finish(boolean success) {
+        this.mHandler.removeCallbacks(this.mRetryRunnable);
+        if (success) {
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - this.mStartedAt);
+            this.mPayloadMillis.record(elapsed);
+            this.mFragmentsPerPayload.record(this.mFragmentCount);
+            double bytesPerSecond = this.mCurrent.send_data.length * 1000.0 / elapsed;
+            this.mLastBytesPerSecond = bytesPerSecond;
+            if (this.mCurrent.stream) {
+                this.mLastStreamBytesPerSecond = bytesPerSecond;
+            }
+        } else {
+            this.mFailures.incrementAndGet();
+        }
+        this.mCurrent.future.setResult(success);
+        transferFinished(this.mCurrent);
+        this.mCurrent = null;
+        releaseInFlight();
+        startNext();
+    }
+
+    private void transferFinished(Payload payload) {
+        if (this.mTransferListener != null) {
+            this.mTransferListener.onTransferFinished(payload.send_data.length, payload.stream);
+        }
+    }
+
+    private static class Payload {
+        final byte[] send_data;
+        final boolean stream;
+        final BleSendFuture future;
+
+        Payload(byte[] data, boolean stream, BleSendFuture future) {
+            this.send_data = data;
+            this.stream = stream;
+            this.future = future;
+        }
+    }
+}
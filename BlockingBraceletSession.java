@@ -0,0 +1,541 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One bracelet driven by straight-line blocking code, for hosts that run the session logic on
+ * a plain JVM. Every call issues one GATT request through the {@link GattTransport} and waits
+ * for its result, so a session reads like a script: connect, discover, subscribe, then loop
+ * over commands and notifications. Sessions are created and run by
+ * {@link BraceletSessionRuntime}; each one belongs to a single thread.
+ * <p>
+ * Waiting uses a {@link ReentrantLock} rather than monitors, so a session blocked on the
+ * bracelet does not pin the carrier of its virtual thread. Memory per session is bounded: a
+ * small fragment pool and a notification queue of fixed capacity that drops the oldest entry
+ * when full.
+ */
+public class BlockingBraceletSession {
+
+    public static final int DEFAULT_NOTIFICATION_CAPACITY = 64;
+
+    // same attributes as BluetoothLeService, which cannot be loaded off-device
+    public static final UUID RX_SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    public static final UUID RX_CHAR_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    public static final UUID TX_CHAR_UUID = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    private static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER_SIZE = 3;
+
+    private static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    private static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+    private static final int OP_NONE = 0;
+    private static final int OP_WRITE = 1;
+    private static final int OP_READ = 2;
+    private static final int OP_DESCRIPTOR = 3;
+    private static final int OP_MTU = 4;
+    private static final int OP_PHY = 5;
+    private static final int OP_DISCOVERY = 6;
+
+    /**
+     * A notification received from the bracelet.
+     */
+    public static final class Notification {
+        public final UUID characteristicUuid;
+        public final byte[] value;
+        /**
+         * {@code System.nanoTime()} at reception.
+         */
+        public final long receivedAt;
+
+        Notification(UUID characteristicUuid, byte[] value, long receivedAt) {
+            this.characteristicUuid = characteristicUuid;
+            this.value = value;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private final String mAddress;
+    private final GattTransport.Factory mFactory;
+    private final long mTimeoutNanos;
+    private final int mNotificationCapacity;
+    private final PacketFragmenter mFragmenter = new PacketFragmenter();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = this.mLock.newCondition();
+
+    // guarded by mLock
+    private boolean mClosed;
+    private GattTransport mTransport;
+    private boolean mConnected;
+    private int mDisconnectStatus;
+    private long mDisconnects;
+    /**
+     * Requests are numbered by {@link #begin(int)}; the armed one is done once
+     * {@code mCompletedSequence} reaches its number.
+     */
+    private long mOperationSequence;
+    private long mCompletedSequence;
+    private int mOperation = OP_NONE;
+    private int mOperationStatus;
+    private byte[] mOperationValue;
+    /**
+     * Callbacks still owed to timed-out requests, per operation. GATT callbacks carry no request
+     * id, so the next callback of that operation belongs to the oldest timed-out request.
+     */
+    private final int[] mLateCallbacks = new int[OP_DISCOVERY + 1];
+    private int mMtu = DEFAULT_MTU;
+    private final ArrayDeque<Notification> mNotifications = new ArrayDeque<Notification>();
+    private long mDroppedNotifications;
+
+    private final GattTransport.Listener mListener = new GattTransport.Listener() {
+        public void onConnectionStateChange(GattTransport transport, int status, int newState) {
+            mLock.lock();
+            try {
+                if (!isCurrent(transport)) {
+                    return;
+                }
+                mConnected = newState == GattTransport.STATE_CONNECTED;
+                if (!mConnected) {
+                    mDisconnects++;
+                    mDisconnectStatus = status;
+                    mMtu = DEFAULT_MTU;
+                    // a request in flight never completes once the link is gone, nor do late ones
+                    if (mOperation != OP_NONE && mCompletedSequence != mOperationSequence) {
+                        mCompletedSequence = mOperationSequence;
+                        mOperationStatus = status == GattTransport.GATT_SUCCESS ? -1 : status;
+                    }
+                    Arrays.fill(mLateCallbacks, 0);
+                }
+                mChanged.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public void onServicesDiscovered(GattTransport transport, int status) {
+            complete(transport, OP_DISCOVERY, status, null);
+        }
+
+        public void onCharacteristicRead(GattTransport transport, UUID serviceUuid, UUID characteristicUuid,
+                                         byte[] value, int status) {
+            complete(transport, OP_READ, status, value);
+        }
+
+        public void onCharacteristicWrite(GattTransport transport, UUID characteristicUuid, int status) {
+            complete(transport, OP_WRITE, status, null);
+        }
+
+        public void onDescriptorWrite(GattTransport transport, UUID descriptorUuid, int status) {
+            complete(transport, OP_DESCRIPTOR, status, null);
+        }
+
+        public void onCharacteristicChanged(GattTransport transport, UUID characteristicUuid, byte[] value) {
+            Notification notification = new Notification(characteristicUuid, value == null ? new byte[0] : value.clone(),
+                    System.nanoTime());
+            mLock.lock();
+            try {
+                if (!isCurrent(transport)) {
+                    return;
+                }
+                if (mNotifications.size() >= mNotificationCapacity) {
+                    mNotifications.poll();
+                    mDroppedNotifications++;
+                }
+                mNotifications.add(notification);
+                mChanged.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public void onMtuChanged(GattTransport transport, int mtu, int status) {
+            mLock.lock();
+            try {
+                if (isCurrent(transport) && status == GattTransport.GATT_SUCCESS) {
+                    mMtu = mtu;
+                }
+            } finally {
+                mLock.unlock();
+            }
+            complete(transport, OP_MTU, status, null);
+        }
+
+        public void onPhyUpdate(GattTransport transport, int txPhy, int rxPhy, int status) {
+            complete(transport, OP_PHY, status, null);
+        }
+    };
+
+    BlockingBraceletSession(String address, GattTransport.Factory factory, long timeoutMillis, int notificationCapacity) {
+        this.mAddress = address;
+        this.mFactory = factory;
+        this.mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.mNotificationCapacity = notificationCapacity;
+    }
+
+    public String getAddress() {
+        return this.mAddress;
+    }
+
+    public boolean isConnected() {
+        this.mLock.lock();
+        try {
+            return this.mConnected;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the HCI status of the last disconnect, 0 if it was requested locally.
+     */
+    public int getDisconnectStatus() {
+        this.mLock.lock();
+        try {
+            return this.mDisconnectStatus;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    public int getMtu() {
+        this.mLock.lock();
+        try {
+            return this.mMtu;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * @return notifications discarded because the queue was full.
+     */
+    public long getDroppedNotifications() {
+        this.mLock.lock();
+        try {
+            return this.mDroppedNotifications;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * Opens the link, or reconnects through the existing transport, and waits until it is up.
+     *
+     * @return false if the connection could not be initiated, failed or did not come up in time.
+     */
+    public boolean connect(long timeoutMillis) throws InterruptedException {
+        GattTransport transport;
+        long disconnects;
+        this.mLock.lock();
+        try {
+            if (this.mConnected) {
+                return true;
+            }
+            transport = this.mTransport;
+            // taken before the attempt starts, so its failure cannot slip past the wait below
+            disconnects = this.mDisconnects;
+        } finally {
+            this.mLock.unlock();
+        }
+        if (transport == null) {
+            transport = this.mFactory.open(this.mAddress, false, this.mListener);
+            if (transport == null) {
+                return false;
+            }
+            this.mLock.lock();
+            try {
+                if (this.mClosed) {
+                    transport.close();
+                    return false;
+                }
+                this.mTransport = transport;
+            } finally {
+                this.mLock.unlock();
+            }
+        } else if (!transport.connect()) {
+            return false;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.mLock.lock();
+        try {
+            while (!this.mConnected) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0 || this.mClosed || this.mDisconnects != disconnects) {
+                    return false;
+                }
+                this.mChanged.awaitNanos(left);
+            }
+            return true;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    public boolean discoverServices() throws InterruptedException {
+        GattTransport transport = begin(OP_DISCOVERY);
+        return transport != null && await(transport.discoverServices()) == GattTransport.GATT_SUCCESS;
+    }
+
+    /**
+     * @return the MTU in effect afterwards; the default MTU if the bracelet refused.
+     */
+    public int requestMtu(int mtu) throws InterruptedException {
+        GattTransport transport = begin(OP_MTU);
+        if (transport != null) {
+            await(transport.requestMtu(mtu));
+        }
+        return getMtu();
+    }
+
+    public boolean requestConnectionPriority(int connectionPriority) {
+        GattTransport transport = transport();
+        return transport != null && transport.requestConnectionPriority(connectionPriority);
+    }
+
+    public boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) throws InterruptedException {
+        GattTransport transport = begin(OP_PHY);
+        return transport != null
+                && await(transport.setPreferredPhy(txPhy, rxPhy, phyOptions)) == GattTransport.GATT_SUCCESS;
+    }
+
+    /**
+     * Registers for notifications of the characteristic and writes its CCCD.
+     */
+    public boolean setNotification(UUID serviceUuid, UUID characteristicUuid, boolean enabled)
+            throws InterruptedException {
+        GattTransport transport = transport();
+        if (transport == null || !transport.setCharacteristicNotification(serviceUuid, characteristicUuid, enabled)) {
+            return false;
+        }
+        if (!transport.hasDescriptor(serviceUuid, characteristicUuid, CCCD)) {
+            return true;
+        }
+        transport = begin(OP_DESCRIPTOR);
+        return transport != null && await(transport.writeDescriptor(serviceUuid, characteristicUuid,
+                CCCD, enabled ? ENABLE_NOTIFICATION_VALUE : DISABLE_NOTIFICATION_VALUE))
+                == GattTransport.GATT_SUCCESS;
+    }
+
+    public boolean write(UUID serviceUuid, UUID characteristicUuid, byte[] value, boolean withResponse)
+            throws InterruptedException {
+        GattTransport transport = begin(OP_WRITE);
+        return transport != null && await(transport.writeCharacteristic(serviceUuid, characteristicUuid, value,
+                withResponse)) == GattTransport.GATT_SUCCESS;
+    }
+
+    /**
+     * @return the value read, or null on failure.
+     */
+    public byte[] read(UUID serviceUuid, UUID characteristicUuid) throws InterruptedException {
+        GattTransport transport = begin(OP_READ);
+        if (transport == null || await(transport.readCharacteristic(serviceUuid, characteristicUuid))
+                != GattTransport.GATT_SUCCESS) {
+            return null;
+        }
+        this.mLock.lock();
+        try {
+            return this.mOperationValue;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a payload to the RX characteristic in bracelet packets sized to the current MTU,
+     * waiting for each packet to be acknowledged.
+     *
+     * @return false as soon as one packet fails.
+     */
+    public boolean send(byte[] payload, boolean withResponse) throws InterruptedException {
+        int packetSize = getMtu() - ATT_HEADER_SIZE;
+        this.mFragmenter.begin(payload);
+        while (!this.mFragmenter.isFinished()) {
+            PacketFragmenter.Fragment fragment = this.mFragmenter.next(packetSize);
+            try {
+                if (!write(RX_SERVICE_UUID, RX_CHAR_UUID, fragment.array(),
+                        withResponse)) {
+                    return false;
+                }
+            } finally {
+                this.mFragmenter.release(fragment);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the next notification.
+     *
+     * @return the notification, or null if none arrived in time or the link dropped.
+     */
+    public Notification awaitNotification(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.mLock.lock();
+        try {
+            while (this.mNotifications.isEmpty()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0 || !this.mConnected) {
+                    return null;
+                }
+                this.mChanged.awaitNanos(left);
+            }
+            return this.mNotifications.poll();
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * Disconnects and waits for the link to go down.
+     */
+    public void disconnect() throws InterruptedException {
+        GattTransport transport = transport();
+        if (transport == null) {
+            return;
+        }
+        transport.disconnect();
+        long deadline = System.nanoTime() + this.mTimeoutNanos;
+        this.mLock.lock();
+        try {
+            while (this.mConnected) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return;
+                }
+                this.mChanged.awaitNanos(left);
+            }
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * Releases the transport. Called by the runtime once the session body returned.
+     */
+    void close() {
+        GattTransport transport;
+        this.mLock.lock();
+        try {
+            transport = this.mTransport;
+            this.mTransport = null;
+            this.mClosed = true;
+            this.mConnected = false;
+            this.mNotifications.clear();
+            this.mChanged.signalAll();
+        } finally {
+            this.mLock.unlock();
+        }
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Events may arrive before {@code open()} returned the transport they belong to.
+     */
+    private boolean isCurrent(GattTransport transport) {
+        return !this.mClosed && (this.mTransport == null || this.mTransport == transport);
+    }
+
+    private GattTransport transport() {
+        this.mLock.lock();
+        try {
+            return this.mConnected ? this.mTransport : null;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * Arms the completion slot for the next request. If a timed-out request of the same operation
+     * still owes its callback, waits up to one more timeout for it, then assumes it was lost.
+     *
+     * @return the transport to issue it on, or null if the link is down.
+     */
+    private GattTransport begin(int operation) throws InterruptedException {
+        this.mLock.lock();
+        try {
+            long deadline = System.nanoTime() + this.mTimeoutNanos;
+            while (this.mConnected && this.mLateCallbacks[operation] > 0) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    this.mLateCallbacks[operation] = 0;
+                    break;
+                }
+                this.mChanged.awaitNanos(left);
+            }
+            if (!this.mConnected) {
+                return null;
+            }
+            this.mOperation = operation;
+            this.mOperationSequence++;
+            this.mOperationStatus = -1;
+            this.mOperationValue = null;
+            return this.mTransport;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the request armed by {@link #begin(int)}.
+     *
+     * @param issued what the transport returned for the request.
+     * @return the GATT status, or -1 if the request was refused, timed out or the link dropped.
+     */
+    private int await(boolean issued) throws InterruptedException {
+        this.mLock.lock();
+        try {
+            long sequence = this.mOperationSequence;
+            if (!issued) {
+                this.mOperation = OP_NONE;
+                return -1;
+            }
+            long deadline = System.nanoTime() + this.mTimeoutNanos;
+            while (this.mCompletedSequence != sequence) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    // its callback may still come and must not complete the next request
+                    this.mLateCallbacks[this.mOperation]++;
+                    this.mOperation = OP_NONE;
+                    return -1;
+                }
+                this.mChanged.awaitNanos(left);
+            }
+            this.mOperation = OP_NONE;
+            return this.mOperationStatus;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    private void complete(GattTransport transport, int operation, int status, byte[] value) {
+        this.mLock.lock();
+        try {
+            if (!isCurrent(transport)) {
+                return;
+            }
+            if (this.mLateCallbacks[operation] > 0) {
+                this.mLateCallbacks[operation]--;
+                this.mChanged.signalAll();
+                return;
+            }
+            if (operation != this.mOperation || this.mCompletedSequence == this.mOperationSequence) {
+                return;
+            }
+            this.mCompletedSequence = this.mOperationSequence;
+            this.mOperationStatus = status;
+            this.mOperationValue = value;
+            this.mChanged.signalAll();
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+}
@@ -19,9 +19,7 @@ package com.example.android.bluetoothlegatt.ble_service;
 import android.annotation.TargetApi;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
@@ -34,19 +32,23 @@ import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import com.example.android.bluetoothlegatt.constant.Constants;
 import com.example.android.bluetoothlegatt.models.BroadcastData;
 import com.example.android.bluetoothlegatt.util.FormatUtils;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.List;
-import java.util.Timer;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -58,9 +60,9 @@ public class BluetoothLeService extends Service {
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
+    // Address of the bracelet served by the single-device API below.
     private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
+    private BleConnectionManager mConnectionManager;
 
     private static final int STATE_DISCONNECTED = 0;
     private static final int STATE_CONNECTING = 1;
@@ -76,6 +78,8 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_DEVICE_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_DEVICE_ADDRESS";
 
 
     //CLIENT_CHARACTERISTIC_CONFIG
@@ -84,20 +88,26 @@ public class BluetoothLeService extends Service {
     public static final UUID RX_SERVICE_UUID;
     public static final UUID TX_CHAR_UUID;
 
-    private static final int FREE = 0;
-    private static final int SEND_PACKET_SIZE = 20;
-
-    private boolean final_packet;
-    private boolean first_packet;
-    private int send_data_pointer;
-    private boolean packet_send;
-
-    private byte[] send_data;
-    private int packet_counter;
-
-    public ArrayList<byte[]> data_queue;
-
-    private List<IServiceCallback> mServiceCallbacks = new ArrayList();
+    private static final int OUTBOUND_QUEUE_CAPACITY = 64;
+    private static final int PREFERRED_MTU = 247;
+    // One consumer keeps IServiceCallback listeners single-threaded, as on the binder thread.
+    private static final int NOTIFICATION_CONSUMERS = 1;
+    private static final int OUTBOX_BATCH_SIZE = 16;
+    private static final String OUTBOX_DIRECTORY = "ble_outbox";
+    private static final String METRICS_FILE = "ble_metrics/metrics.jsonl";
+    private static final long METRICS_EXPORT_INTERVAL_MS = 5 * 60 * 1000;
+
+    private final ServiceCallbackRegistry<IServiceCallback> mServiceCallbacks =
+            new ServiceCallbackRegistry<IServiceCallback>(IServiceCallback.class);
+    private final BleMetrics mMetrics = new BleMetrics();
+    private final CopyOnWriteArrayList<HeartRateListener> mHeartRateListeners = new CopyOnWriteArrayList<HeartRateListener>();
+    // Keyed by address: transports that are not backed by android.bluetooth have no BluetoothGatt.
+    private final ConcurrentHashMap<String, HeartRateDecoder> mHeartRateDecoders =
+            new ConcurrentHashMap<String, HeartRateDecoder>();
+    private final CopyOnWriteArrayList<NotificationBatchListener> mBatchListeners =
+            new CopyOnWriteArrayList<NotificationBatchListener>();
+    // Commands issued while their bracelet was offline, per address.
+    private final ConcurrentHashMap<String, CommandOutbox> mOutboxes = new ConcurrentHashMap<String, CommandOutbox>();
 
     static {
         CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
@@ -106,30 +116,87 @@ public class BluetoothLeService extends Service {
         TX_CHAR_UUID = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
     }
 
-    private int ble_status;
-    private boolean sendingStoredData;
-    private Timer mTimer;
     private DataFromActivityReceiver dataFromActivityReceiver;
 
+    // All GATT operations and the write pipelines run on this thread.
+    private HandlerThread mBleThread;
+    private Handler mBleHandler;
+    // Outbox and metrics file I/O, kept off the binder and BLE threads.
+    private HandlerThread mStorageThread;
+    private Handler mStorageHandler;
+    private NotificationPipeline mNotificationPipeline;
+    private InboundMessageRouter mMessageRouter;
+    private NotificationBatcher mNotificationBatcher;
+    private ReconnectSupervisor mReconnectSupervisor;
+    private GattLayoutCache mLayoutCache;
+
     public BluetoothLeService() {
         this.bleDataHandler = new BleDataHandler();
-        this.send_data_pointer = FREE;
-        this.packet_counter = FREE;
-        this.packet_send = false;
-        this.ble_status = FREE;
-        this.data_queue = new ArrayList();
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
         sInBluetoothLeService = this;
+        this.mBleThread = new HandlerThread("BleIo");
+        this.mBleThread.start();
+        this.mBleHandler = new Handler(this.mBleThread.getLooper());
+        this.mStorageThread = new HandlerThread("BleStorage");
+        this.mStorageThread.start();
+        this.mStorageHandler = new Handler(this.mStorageThread.getLooper());
+        this.mConnectionManager = new BleConnectionManager(new AndroidGattTransport.Factory(this), this.mBleHandler,
+                this.mTransportListener,
+                BleConnectionManager.DEFAULT_MAX_CONNECTIONS, OUTBOUND_QUEUE_CAPACITY, OutboundCommandQueue.OverflowPolicy.REJECT,
+                this.mMetrics);
+        this.mReconnectSupervisor = new ReconnectSupervisor(this.mBleHandler, this.mConnectionManager, this.mMetrics);
+        this.mLayoutCache = new GattLayoutCache();
+        this.mMetrics.startExport(this.mStorageHandler, new File(getFilesDir(), METRICS_FILE), METRICS_EXPORT_INTERVAL_MS);
+        this.mNotificationPipeline = new NotificationPipeline(this.mNotificationSink, NOTIFICATION_CONSUMERS,
+                NotificationPipeline.DEFAULT_CAPACITY, NotificationPipeline.OverflowPolicy.DROP_OLDEST);
+        this.mMessageRouter = new InboundMessageRouter(this.mBleHandler, this.mNotificationPipeline);
+        this.mNotificationBatcher = new NotificationBatcher(new NotificationBatchListener() {
+            public void onNotificationBatch(BluetoothGatt gatt, UUID characteristicUuid, NotificationBatch batch) {
+                for (NotificationBatchListener listener : mBatchListeners) {
+                    listener.onNotificationBatch(gatt, characteristicUuid, batch);
+                }
+            }
+        });
         if (this.dataFromActivityReceiver == null) {
             this.dataFromActivityReceiver = new DataFromActivityReceiver();
             LocalBroadcastManager.getInstance(this).registerReceiver(this.dataFromActivityReceiver, makeGattUpdateIntentFilter());
         }
     }
 
+    @Override
+    public void onDestroy() {
+        if (this.dataFromActivityReceiver != null) {
+            LocalBroadcastManager.getInstance(this).unregisterReceiver(this.dataFromActivityReceiver);
+            this.dataFromActivityReceiver = null;
+        }
+        this.mReconnectSupervisor.unwatchAll();
+        this.mConnectionManager.closeAll();
+        this.mMetrics.stopExport();
+        this.mStorageHandler.post(new Runnable() {
+            public void run() {
+                mMetrics.exportSnapshot();
+                for (CommandOutbox outbox : mOutboxes.values()) {
+                    try {
+                        outbox.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "closing outbox failed", e);
+                    }
+                }
+                mOutboxes.clear();
+            }
+        });
+        // runs the appends still queued, then the final export and close above
+        this.mStorageThread.quitSafely();
+        this.mNotificationPipeline.shutdown();
+        this.mNotificationBatcher.shutdown();
+        this.mBleThread.quitSafely();
+        super.onDestroy();
+    }
+
     class DataFromActivityReceiver extends BroadcastReceiver {
         DataFromActivityReceiver() {
         }
@@ -139,8 +206,9 @@ public class BluetoothLeService extends Service {
                 BroadcastData bData = (BroadcastData) intent.getSerializableExtra(BroadcastData.keyword);
                 if (bData.commandID == 0) {
                 } else if (bData.commandID == 10) {
+                    // compatibility adapter; in-process callers should use sendCommand directly
                     Log.d(BluetoothLeService.TAG, "BLE_RECEIVE_DATA");
-                    BluetoothLeService.this.BLE_send_data_set((byte[]) bData.data, false);
+                    BluetoothLeService.this.sendCommand((byte[]) bData.data, OutboundCommandQueue.Priority.NORMAL);
                 }
             }
         }
@@ -152,55 +220,93 @@ public class BluetoothLeService extends Service {
         return intentFilter;
     }
 
+    // Delivers notifications on the consumer thread of the notification pipeline.
+    private final NotificationPipeline.Sink mNotificationSink = new NotificationPipeline.Sink() {
+        public void onNotification(String address, BluetoothGatt gatt, UUID characteristicUuid, byte[] value,
+                                   long receivedAt) {
+            mMessageRouter.onNotification(address, gatt, characteristicUuid, value, receivedAt);
+            if (DeviceConfig.HEARTRATE_FOR_TIRED_NOTIFY.equals(characteristicUuid) && !mHeartRateListeners.isEmpty()) {
+                heartRateDecoder(address, gatt).onNotification(value, receivedAt);
+            }
+            if (!mBatchListeners.isEmpty()) {
+                mNotificationBatcher.onNotification(address, gatt, characteristicUuid, value, receivedAt);
+            }
+            IServiceCallback[] callbacks = mServiceCallbacks.forCharacteristic(characteristicUuid);
+            if (callbacks.length == 0) {
+                return;
+            }
+            LocalDeviceEntity device = Engine.getInstance().getDeviceFromGatt(gatt);
+            String uuid = CharacteristicRegistry.uuidString(characteristicUuid);
+            for (IServiceCallback callback : callbacks) {
+                long startedAt = System.nanoTime();
+                callback.onCharacteristicChanged(device, gatt, uuid, value);
+                mMetrics.callback(callback.getClass()).record((System.nanoTime() - startedAt) / 1000);
+            }
+        }
+    };
+
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+    private final GattTransport.Listener mTransportListener = new GattTransport.Listener() {
+        public void onConnectionStateChange(GattTransport transport, int status, int newState) {
+            BleDeviceSession session = mConnectionManager.get(transport);
+            if (session == null) {
+                return;
+            }
+            if (session.getTransport() != null && session.getTransport() != transport) {
+                Log.w(TAG, "ignoring state change of a replaced GATT handle for " + session.getAddress());
+                return;
+            }
+            BluetoothGatt gatt = session.getGatt();
             String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
+            if (newState == GattTransport.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                session.setConnectionState(BleDeviceSession.STATE_CONNECTED);
+                broadcastUpdate(intentAction, session);
+                mReconnectSupervisor.onConnected(session.getAddress());
+                mMetrics.histogram(BleMetrics.LINK_CONNECT_MS).record(session.connectedAt - session.connectingSince);
+                Log.i(TAG, "Connected to GATT server " + session.getAddress());
+                if (!resumeCachedLayout(gatt, session)) {
+                    // Attempts to discover services after successful connection.
+                    startDiscovery(session);
+                }
+
+            } else if (newState == GattTransport.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                session.onDisconnected();
+                mMessageRouter.forget(session.getAddress());
+                HeartRateDecoder decoder = mHeartRateDecoders.remove(session.getAddress());
+                if (decoder != null) {
+                    decoder.flushLater();
+                }
+                mNotificationBatcher.flush(session.getAddress());
+                mReconnectSupervisor.onDisconnected(session.getAddress(), status);
+                mMetrics.counter(BleMetrics.LINK_DISCONNECTS).incrementAndGet();
+                Log.i(TAG, "Disconnected from GATT server " + session.getAddress());
+                broadcastUpdate(intentAction, session);
             }
         }
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
+        public void onServicesDiscovered(GattTransport transport, int status) {
+            if (status == GattTransport.GATT_SUCCESS) {
 //                enableTXNotification();
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                LocalDeviceEntity device = Engine.getInstance().getDeviceFromGatt(gatt);
-                List<BluetoothGattService> services = gatt.getServices();
+                BleDeviceSession session = mConnectionManager.get(transport);
+                BluetoothGatt gatt = session == null ? null : session.getGatt();
+                List<BluetoothGattService> services = gatt == null ? null : gatt.getServices();
                 if (services != null) {
-                    BluetoothLeService.this.notifyAndSendBrocast(gatt.getServices(), gatt);
-                    if (!BluetoothLeService.this.mServiceCallbacks.isEmpty()) {
-                        int size = BluetoothLeService.this.mServiceCallbacks.size();
-                        for (int i = 0; i < size; i++) {
-                            BluetoothLeService.this.mServiceCallbacks.get(i).onBLEServiceFound(device, gatt, gatt.getServices());
-                        }
-                    }
+                    mMetrics.histogram(BleMetrics.LINK_DISCOVERY_MS).record(
+                            SystemClock.elapsedRealtime() - session.discoveringSince);
+                    BluetoothLeService.this.onServicesReady(gatt, session, services);
+                    BluetoothLeService.this.rememberLayout(gatt, session, services);
                 }
-                Log.i("onServicesDiscovered", services.toString());
+                Log.i("onServicesDiscovered", String.valueOf(services));
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
         }
 
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
+        public void onCharacteristicRead(GattTransport transport, UUID serviceUuid, UUID characteristicUuid,
+                                         byte[] value, int status) {
 //            if (status == BluetoothGatt.GATT_SUCCESS) {
 //                byte[] data = characteristic.getValue();
 //                StringBuilder stringBuilder = new StringBuilder(data.length);
@@ -212,181 +318,235 @@ public class BluetoothLeService extends Service {
 //                Log.d("onCharacteristicRead", stringBuilder.toString());
 //            }
 
-            boolean success = status == 0;
-            Log.i("TAGBLE", "onCharacteristicRead success: " + success + " value:" + FormatUtils.bytesToHexString(characteristic.getValue()));
+            boolean success = status == GattTransport.GATT_SUCCESS;
+            BleDeviceSession session = mConnectionManager.get(transport);
+            if (session == null) {
+                return;
+            }
+            session.scheduler.onOperationComplete(GattOperationScheduler.TYPE_READ, characteristicUuid, success);
+            Log.i("TAGBLE", "onCharacteristicRead success: " + success + " value:" + FormatUtils.bytesToHexString(value));
+            BluetoothGatt gatt = session.getGatt();
+            BluetoothGattCharacteristic characteristic = session.characteristics.get(serviceUuid, characteristicUuid);
+            if (gatt == null || characteristic == null) {
+                return;
+            }
             LocalDeviceEntity device = Engine.getInstance().getDeviceFromGatt(gatt);
-            if (!BluetoothLeService.this.mServiceCallbacks.isEmpty()) {
-                int size = BluetoothLeService.this.mServiceCallbacks.size();
-                for (int i = 0; i < size; i++) {
-                    BluetoothLeService.this.mServiceCallbacks.get(i).onCharacteristicRead(device, gatt, characteristic, success);
-                }
+            for (IServiceCallback callback : BluetoothLeService.this.mServiceCallbacks.all()) {
+                callback.onCharacteristicRead(device, gatt, characteristic, success);
             }
         }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-//            BluetoothLeService.this.broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onCharacteristicChanged(GattTransport transport, UUID characteristicUuid, byte[] value) {
+            BleDeviceSession session = mConnectionManager.get(transport);
+            if (session == null) {
+                return;
+            }
+            if (GattLayoutCache.SERVICE_CHANGED_UUID.equals(characteristicUuid)) {
+                onServiceChanged(transport, session);
+            }
+            session.linkProfile.onNotification(SystemClock.elapsedRealtime());
+            long now = System.nanoTime();
+            long previous = session.markNotification(characteristicUuid, now);
+            if (previous != 0) {
+                mMetrics.interArrival(characteristicUuid).record((now - previous) / 1000);
+            }
+            // copied and handed off at once; listeners run on the notification consumer
+            mNotificationPipeline.offer(session.getAddress(), session.getGatt(), characteristicUuid, value);
+        }
 
-            String uuid = characteristic.getUuid().toString();
-//            if (uuid.equals(DeviceConfig.HEARTRATE_FOR_TIRED_NOTIFY.toString())) {
-////                BluetoothLeService.this.broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-//                broadcastUpdateHR(ACTION_DATA_AVAILABLE, characteristic);
-//            } else {
-                byte[] value = characteristic.getValue();
-                LocalDeviceEntity device = Engine.getInstance().getDeviceFromGatt(gatt);
-                if (!BluetoothLeService.this.mServiceCallbacks.isEmpty()) {
-                    int size = BluetoothLeService.this.mServiceCallbacks.size();
-                    for (int i = 0; i < size; i++) {
-                        BluetoothLeService.this.mServiceCallbacks.get(i).onCharacteristicChanged(device, gatt, uuid, value);
-                    }
-                }
-//            }
+        public void onMtuChanged(GattTransport transport, int mtu, int status) {
+            Log.i(TAG, "onMtuChanged mtu:" + mtu + " status:" + status);
+            BleDeviceSession session = mConnectionManager.get(transport);
+            if (session != null && status == GattTransport.GATT_SUCCESS) {
+                session.pipeline.setMtu(mtu);
+            }
+            completeOperation(transport, GattOperationScheduler.TYPE_MTU, null, status == GattTransport.GATT_SUCCESS);
+        }
 
+        public void onPhyUpdate(GattTransport transport, int txPhy, int rxPhy, int status) {
+            completeOperation(transport, GattOperationScheduler.TYPE_PHY, null, status == GattTransport.GATT_SUCCESS);
         }
 
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        public void onCharacteristicWrite(GattTransport transport, UUID characteristicUuid, int status) {
+            completeOperation(transport, GattOperationScheduler.TYPE_WRITE, characteristicUuid, status == GattTransport.GATT_SUCCESS);
         }
 
-        @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        public void onDescriptorWrite(GattTransport transport, UUID descriptorUuid, int status) {
+            completeOperation(transport, GattOperationScheduler.TYPE_WRITE_DESCRIPTOR, descriptorUuid, status == GattTransport.GATT_SUCCESS);
         }
     };
 
-    private void BLE_send_data_set(byte[] data, boolean retry_status) {
-//        if (this.ble_status == 0 && this.mConnectionState == STATE_CONNECTED) {
-        this.ble_status = STATE_CONNECTING;
-        if (this.data_queue.size() != 0) {
-            this.send_data = this.data_queue.get(FREE);
-            this.sendingStoredData = false;
-        } else {
-            this.send_data = data;
-        }
-        this.packet_counter = FREE;
-        this.send_data_pointer = FREE;
-        this.first_packet = true;
-        BLE_data_send();
-        if (this.data_queue.size() != 0) {
-            this.data_queue.remove(FREE);
-        }
-        if (this.data_queue.size() == 0 && this.mTimer != null) {
-            this.mTimer.cancel();
-        }
-//        } else if (!this.sendingStoredData) {
-//            this.data_queue.add(data);
-////            start_timer();
-//            Intent intent = new Intent(BroadcastCommand.ACTION_BLE_SEND_REQUEST_DENIED);
-//            BroadcastData bData = new BroadcastData();
-//            bData.data = null;
-//            intent.putExtra(BroadcastData.keyword, bData);
-//            LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
-//        } else if (!retry_status) {
-//            this.data_queue.add(data);
-//        }
+    private void completeOperation(GattTransport transport, int type, UUID uuid, boolean success) {
+        BleDeviceSession session = this.mConnectionManager.get(transport);
+        if (session != null) {
+            session.scheduler.onOperationComplete(type, uuid, success);
+        }
     }
 
-    public static String byte2HexStr(byte[] b) {
-//        String stmp = BuildConfig.VERSION_NAME;
-        String stmp = "1.0";
-        StringBuilder sb = new StringBuilder("");
-        for (int n = FREE; n < b.length; n += STATE_CONNECTING) {
-            String str;
-//            stmp = Integer.toHexString(b[n] & BallSpinFadeLoaderIndicator.ALPHA);
-            stmp = Integer.toHexString(b[n]);
-            if (stmp.length() == STATE_CONNECTING) {
-                str = Constants.VIA_RESULT_SUCCESS + stmp;
-            } else {
-                str = stmp;
-            }
-            sb.append(str);
-//            sb.append(CommonConsts.SPACE);
-        }
-        return sb.toString().toUpperCase().trim();
-    }
-
-    private void BLE_data_send() {
-        int err_count = FREE;
-        while (!this.final_packet) {
-            byte[] temp_buffer;
-            int send_data_pointer_save = this.send_data_pointer;
-            boolean first_packet_save = this.first_packet;
-            int i;
-            if (this.first_packet) {
-                if (this.send_data.length - this.send_data_pointer > SEND_PACKET_SIZE) {
-                    temp_buffer = new byte[SEND_PACKET_SIZE];
-                    for (i = FREE; i < SEND_PACKET_SIZE; i += STATE_CONNECTING) {
-                        temp_buffer[i] = this.send_data[this.send_data_pointer];
-                        this.send_data_pointer += STATE_CONNECTING;
-                    }
-                } else {
-                    temp_buffer = new byte[(this.send_data.length - this.send_data_pointer)];
-                    for (i = FREE; i < temp_buffer.length; i += STATE_CONNECTING) {
-                        temp_buffer[i] = this.send_data[this.send_data_pointer];
-                        this.send_data_pointer += STATE_CONNECTING;
-                    }
-                    this.final_packet = true;
-                }
-                this.first_packet = false;
-            } else {
-                if (this.send_data.length - this.send_data_pointer >= SEND_PACKET_SIZE) {
-                    temp_buffer = new byte[SEND_PACKET_SIZE];
-                    temp_buffer[FREE] = (byte) this.packet_counter;
-                    for (i = STATE_CONNECTING; i < SEND_PACKET_SIZE; i += STATE_CONNECTING) {
-                        temp_buffer[i] = this.send_data[this.send_data_pointer];
-                        this.send_data_pointer += STATE_CONNECTING;
-                    }
-                } else {
-                    this.final_packet = true;
-                    temp_buffer = new byte[((this.send_data.length - this.send_data_pointer) + STATE_CONNECTING)];
-                    temp_buffer[FREE] = (byte) this.packet_counter;
-                    for (i = STATE_CONNECTING; i < temp_buffer.length; i += STATE_CONNECTING) {
-                        temp_buffer[i] = this.send_data[this.send_data_pointer];
-                        this.send_data_pointer += STATE_CONNECTING;
-                    }
+    /**
+     * @return the session behind the single-device API, or null if none was connected yet.
+     */
+    private BleDeviceSession primarySession() {
+        return this.mConnectionManager.get(this.mBluetoothDeviceAddress);
+    }
+
+    /**
+     * Queues {@code operation} on the primary bracelet, failing it if there is none.
+     */
+    private void enqueue(GattOperationScheduler.Operation operation) {
+        BleDeviceSession session = primarySession();
+        if (session != null) {
+            session.enqueue(operation);
+        } else if (operation.callback != null) {
+            operation.callback.onWrite(false);
+        }
+    }
+
+    /**
+     * Resolves the characteristic handles of a connection whose services are known, then starts
+     * the per-connection setup: RX and Service Changed subscriptions, MTU exchange and outbox
+     * replay.
+     */
+    private void onServicesReady(BluetoothGatt gatt, BleDeviceSession session, List<BluetoothGattService> services) {
+        broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+        this.mMetrics.histogram(BleMetrics.LINK_READY_MS).record(SystemClock.elapsedRealtime() - session.connectedAt);
+        LocalDeviceEntity device = Engine.getInstance().getDeviceFromGatt(gatt);
+        session.characteristics.build(services);
+        BluetoothGattCharacteristic RxChar = session.characteristics.get(RX_SERVICE_UUID, RX_CHAR_UUID);
+        if (RxChar != null) {
+            // once per connection instead of after every RX write
+            session.setNotification(RxChar, true, null);
+        }
+        BluetoothGattCharacteristic serviceChanged = session.characteristics.get(
+                GattLayoutCache.GENERIC_ATTRIBUTE_SERVICE_UUID, GattLayoutCache.SERVICE_CHANGED_UUID);
+        if (serviceChanged != null) {
+            session.setNotification(serviceChanged, true, null);
+        }
+        requestMtu(session);
+        drainOutbox(session);
+        for (IServiceCallback callback : this.mServiceCallbacks.all()) {
+            callback.onBLEServiceFound(device, gatt, services);
+        }
+    }
+
+    /**
+     * Skips service discovery when {@code gatt} was resumed with the services of its previous
+     * connection still attached and they match the cached layout of the bracelet. The firmware
+     * revision is read back first; if it changed, the layout is treated as stale and discovered
+     * again. Without a Firmware Revision characteristic the layout cannot be validated, so
+     * discovery always runs.
+     *
+     * @return false if discovery has to run.
+     */
+    private boolean resumeCachedLayout(final BluetoothGatt gatt, final BleDeviceSession session) {
+        final GattTransport transport = session.getTransport();
+        final GattLayoutCache.Entry entry = this.mLayoutCache.get(session.getAddress());
+        final List<BluetoothGattService> services = gatt.getServices();
+        if (entry == null || services == null || services.isEmpty()
+                || GattLayoutCache.signature(services) != entry.signature) {
+            return false;
+        }
+        final BluetoothGattCharacteristic firmware = GattLayoutCache.firmwareRevision(gatt);
+        if (firmware == null) {
+            return false;
+        }
+        session.enqueue(GattOperationScheduler.read(firmware, new WriteCallBack() {
+            public void onWrite(boolean success) {
+                String revision = firmware.getStringValue(0);
+                if (success && entry.firmwareRevision.equals(revision == null ? "" : revision)) {
+                    Log.i(TAG, "Reusing cached GATT layout of " + session.getAddress());
+                    mMetrics.counter(BleMetrics.LINK_DISCOVERY_SKIPPED).incrementAndGet();
+                    onServicesReady(gatt, session, services);
+                } else if (session.getTransport() == transport
+                        && session.getConnectionState() == BleDeviceSession.STATE_CONNECTED) {
+                    Log.i(TAG, "Cached GATT layout of " + session.getAddress() + " is stale");
+                    rediscover(session);
                 }
-                this.packet_counter += STATE_CONNECTING;
             }
-            this.packet_send = false;
-            boolean status = writeRXCharacteristic(temp_buffer);
-            Log.d("lq", "send:" + byte2HexStr(temp_buffer) + "  packet_counter:" + this.packet_counter);
-            if (!status && err_count < 3) {
-                err_count += STATE_CONNECTING;
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
+        }));
+        return true;
+    }
+
+    /**
+     * Stores the layout found by a full discovery together with the firmware revision it
+     * belongs to. Layouts without a firmware revision are not stored.
+     */
+    private void rememberLayout(BluetoothGatt gatt, final BleDeviceSession session, List<BluetoothGattService> services) {
+        final long signature = GattLayoutCache.signature(services);
+        final BluetoothGattCharacteristic firmware = GattLayoutCache.firmwareRevision(gatt);
+        if (firmware == null) {
+            return;
+        }
+        session.enqueue(GattOperationScheduler.read(firmware, new WriteCallBack() {
+            public void onWrite(boolean success) {
+                if (success) {
+                    mLayoutCache.put(session.getAddress(), signature, firmware.getStringValue(0));
                 }
-                Log.e(TAG, "writeRXCharacteristic false");
-                this.send_data_pointer = send_data_pointer_save;
-                this.first_packet = first_packet_save;
-                this.packet_counter--;
             }
-            for (int wait_counter = FREE; wait_counter < 5 && !this.packet_send; wait_counter += STATE_CONNECTING) {
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e2) {
+        }));
+    }
+
+    /**
+     * The bracelet announced a new GATT layout: forget it and discover again.
+     */
+    private void onServiceChanged(final GattTransport transport, final BleDeviceSession session) {
+        Log.i(TAG, "Service Changed indicated by " + session.getAddress());
+        this.mBleHandler.post(new Runnable() {
+            public void run() {
+                if (session.getTransport() == transport) {
+                    rediscover(session);
                 }
             }
+        });
+    }
+
+    private void rediscover(BleDeviceSession session) {
+        this.mLayoutCache.invalidate(session.getAddress());
+        session.characteristics.invalidate();
+        session.getTransport().refresh();
+        startDiscovery(session);
+    }
+
+    private void startDiscovery(BleDeviceSession session) {
+        session.discoveringSince = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Attempting to start service discovery:" + session.getTransport().discoverServices());
+    }
+
+    /**
+     * Asks the bracelet for a larger ATT MTU once services are known. Notifications are only
+     * enabled after the exchange finished, so the two never overlap on the link. Peers that
+     * reject or ignore the request keep the default MTU.
+     */
+    private void requestMtu(BleDeviceSession session) {
+        final BluetoothGatt gatt = session.getGatt();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            session.enqueue(GattOperationScheduler.requestMtu(PREFERRED_MTU, new WriteCallBack() {
+                public void onWrite(boolean success) {
+                    if (!success) {
+                        Log.w(TAG, "MTU request rejected, keeping default MTU");
+                    }
+                    notifyAndSendBrocast(gatt.getServices(), gatt);
+                }
+            }));
+        } else {
+            notifyAndSendBrocast(gatt.getServices(), gatt);
         }
-        this.final_packet = false;
-        this.ble_status = FREE;
+    }
+
+    /**
+     * @return {@code b} as upper-case hex, two digits per byte.
+     * @see ByteFormatter
+     */
+    public static String byte2HexStr(byte[] b) {
+        return ByteFormatter.toHex(b);
     }
 
     public void enableTXNotification() {
-        BluetoothGattService RxService = this.mBluetoothGatt.getService(RX_SERVICE_UUID);
-        if (RxService == null) {
-            return;
-        }
-        BluetoothGattCharacteristic TxChar = RxService.getCharacteristic(TX_CHAR_UUID);
+        BluetoothGattCharacteristic TxChar = getBluetoothGattCharacteristic(RX_SERVICE_UUID, TX_CHAR_UUID);
         if (TxChar == null) {
             return;
         }
-        this.mBluetoothGatt.setCharacteristicNotification(TxChar, true);
-        BluetoothGattDescriptor descriptor = TxChar.getDescriptor(CCCD);
-        if (descriptor != null) {
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            this.mBluetoothGatt.writeDescriptor(descriptor);
-        }
+        setCharacteristicNotification(TxChar, true);
     }
 
     /**
@@ -408,6 +568,16 @@ public class BluetoothLeService extends Service {
         sendBroadcast(intent);
     }
 
+    /**
+     * @param action
+     * @param session the bracelet the event belongs to
+     */
+    private void broadcastUpdate(final String action, BleDeviceSession session) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, session.getAddress());
+        sendBroadcast(intent);
+    }
+
     /**
      * @param action
      * @param data
@@ -427,26 +597,183 @@ public class BluetoothLeService extends Service {
     private BleDataHandler bleDataHandler;
 
 
-    private String bytesToByteString(byte[] bytes) {
-        String btyesString = "";
-        for (int i = 0; i < bytes.length; i++) {
-            btyesString += " " + bytes[i];
+    public class LocalBinder extends Binder {
+        public BluetoothLeService getService() {
+            return BluetoothLeService.this;
+        }
+
+        /**
+         * @see BluetoothLeService#sendCommand(byte[], OutboundCommandQueue.Priority)
+         */
+        public BleSendFuture sendCommand(byte[] data, OutboundCommandQueue.Priority priority) {
+            return BluetoothLeService.this.sendCommand(data, priority);
+        }
+
+        /**
+         * @see BluetoothLeService#sendCommand(ByteBuffer, OutboundCommandQueue.Priority)
+         */
+        public BleSendFuture sendCommand(ByteBuffer data, OutboundCommandQueue.Priority priority) {
+            return BluetoothLeService.this.sendCommand(data, priority);
         }
-        return btyesString;
     }
 
-    private String bytesToByteString(ArrayList<Byte> bytes) {
-        String btyesString = "";
-        for (int i = 0; i < bytes.size(); i++) {
-            btyesString += " " + bytes.get(i);
+    /**
+     * Queues a command for the primary bracelet without going through a broadcast. May be
+     * called from any thread; the payload is handed straight to the outbound queue.
+     *
+     * @return completes once every fragment has been sent, or fails if there is no connection
+     * or the outbound queue refused the command.
+     */
+    public BleSendFuture sendCommand(byte[] data, OutboundCommandQueue.Priority priority) {
+        return sendCommand(this.mBluetoothDeviceAddress, data, priority);
+    }
+
+    /**
+     * {@link ByteBuffer} variant of {@link #sendCommand(byte[], OutboundCommandQueue.Priority)}.
+     * Consumes the remaining bytes of {@code data}, which may be reused once this returns.
+     */
+    public BleSendFuture sendCommand(ByteBuffer data, OutboundCommandQueue.Priority priority) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return sendCommand(bytes, priority);
+    }
+
+    /**
+     * Queues a command for the bracelet at {@code address}.
+     */
+    public BleSendFuture sendCommand(String address, byte[] data, OutboundCommandQueue.Priority priority) {
+        return sendCommand(address, data, priority, CommandOutbox.NO_KEY);
+    }
+
+    /**
+     * Queues a command for the bracelet at {@code address}. While the bracelet is not connected
+     * the command is stored in its persistent outbox and sent after the next service discovery;
+     * a newer offline command of the same {@code commandType} replaces an older one that is
+     * still waiting. Use {@code CommandOutbox.NO_KEY} (-1) to keep every command. The outbox
+     * is written on the storage thread; the returned future fails if that write fails.
+     */
+    public BleSendFuture sendCommand(final String address, final byte[] data, final OutboundCommandQueue.Priority priority,
+                                     final int commandType) {
+        if (data == null) {
+            throw new NullPointerException("data");
         }
-        return btyesString;
+        BleDeviceSession session = this.mConnectionManager.get(address);
+        if (isReady(session)) {
+            return session.send(data, priority);
+        }
+        final BleSendFuture future = new BleSendFuture();
+        if (address == null) {
+            future.setResult(false);
+            return future;
+        }
+        this.mStorageHandler.post(new Runnable() {
+            public void run() {
+                CommandOutbox outbox;
+                try {
+                    outbox = openOutbox(address, true);
+                    outbox.append(commandType, priority, data, new CommandOutbox.Callback() {
+                        public void onSent(boolean success) {
+                            future.setResult(success);
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "cannot queue command for " + address, e);
+                    future.setResult(false);
+                    return;
+                }
+                // the link may have come up, and drained the outbox, since the check above
+                BleDeviceSession session = mConnectionManager.get(address);
+                if (isReady(session)) {
+                    drain(session, outbox);
+                }
+            }
+        });
+        return future;
     }
 
-    public class LocalBinder extends Binder {
-        public BluetoothLeService getService() {
-            return BluetoothLeService.this;
+    /**
+     * @return true if commands can be sent to the session right away.
+     */
+    private static boolean isReady(BleDeviceSession session) {
+        return session != null && session.getConnectionState() == BleDeviceSession.STATE_CONNECTED
+                && !session.characteristics.isEmpty();
+    }
+
+    /**
+     * @return commands waiting in the outbox of {@code address}.
+     */
+    public int getOutboxSize(String address) {
+        CommandOutbox outbox = address == null ? null : this.mOutboxes.get(address);
+        return outbox == null ? 0 : outbox.size();
+    }
+
+    /**
+     * @param create false to only open an outbox that already exists on disk.
+     * @return the outbox, or null if it does not exist and {@code create} is false.
+     */
+    private CommandOutbox openOutbox(String address, boolean create) throws IOException {
+        CommandOutbox outbox = this.mOutboxes.get(address);
+        if (outbox != null) {
+            return outbox;
         }
+        synchronized (this.mOutboxes) {
+            outbox = this.mOutboxes.get(address);
+            if (outbox == null) {
+                File directory = new File(getFilesDir(), OUTBOX_DIRECTORY);
+                File file = new File(directory, address.replace(":", "") + ".log");
+                if (!create && !file.exists()) {
+                    return null;
+                }
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("cannot create " + directory);
+                }
+                outbox = new CommandOutbox(file);
+                this.mOutboxes.put(address, outbox);
+            }
+            return outbox;
+        }
+    }
+
+    /**
+     * Sends what was queued for the bracelet while it was offline. The outbox is read and
+     * updated on the storage thread.
+     */
+    private void drainOutbox(final BleDeviceSession session) {
+        this.mStorageHandler.post(new Runnable() {
+            public void run() {
+                CommandOutbox outbox;
+                try {
+                    outbox = openOutbox(session.getAddress(), false);
+                } catch (IOException e) {
+                    Log.e(TAG, "cannot open outbox of " + session.getAddress(), e);
+                    return;
+                }
+                if (outbox != null && outbox.size() != 0) {
+                    drain(session, outbox);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the outbox through the session's write pipeline. Runs on the storage thread; does
+     * nothing while a drain of the outbox is in progress, which picks up new commands itself.
+     */
+    private void drain(final BleDeviceSession session, CommandOutbox outbox) {
+        outbox.drain(new CommandOutbox.Sender() {
+            public void send(byte[] payload, OutboundCommandQueue.Priority priority,
+                             final CommandOutbox.Callback callback) {
+                session.send(payload, priority).setCallback(new WriteCallBack() {
+                    public void onWrite(final boolean success) {
+                        mStorageHandler.post(new Runnable() {
+                            public void run() {
+                                callback.onSent(success);
+                            }
+                        });
+                    }
+                });
+            }
+        }, OUTBOX_BATCH_SIZE);
     }
 
     @Override
@@ -504,31 +831,11 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
+        if (!mConnectionManager.connect(address)) {
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-//        Log.d(TAG, String.valueOf(device.createBond()));
-        Log.d(TAG, "Trying to create a new connection.");
+        mReconnectSupervisor.watch(address);
         mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
         return true;
     }
 
@@ -539,11 +846,15 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothDeviceAddress != null) {
+            // also stops a pending automatic reconnect
+            mReconnectSupervisor.unwatch(mBluetoothDeviceAddress);
+        }
+        if (mBluetoothAdapter == null || getBluetoothGatt() == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mConnectionManager.disconnect(mBluetoothDeviceAddress);
     }
 
     /**
@@ -551,11 +862,38 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        if (mBluetoothDeviceAddress == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mReconnectSupervisor.unwatch(mBluetoothDeviceAddress);
+        mConnectionManager.close(mBluetoothDeviceAddress);
+    }
+
+    /**
+     * @return how long the last automatic reconnect took, from link loss to connected.
+     */
+    public long getLastReconnectMillis() {
+        return mReconnectSupervisor.getLastReconnectMillis();
+    }
+
+    public long getMaxReconnectMillis() {
+        return mReconnectSupervisor.getMaxReconnectMillis();
+    }
+
+    public double getAverageReconnectMillis() {
+        return mReconnectSupervisor.getAverageReconnectMillis();
+    }
+
+    public long getReconnectCount() {
+        return mReconnectSupervisor.getReconnectCount();
+    }
+
+    /**
+     * @return the manager holding one session per connected bracelet. The methods of this
+     * service act on the bracelet passed to the last successful {@link #connect(String)}.
+     */
+    public BleConnectionManager getConnectionManager() {
+        return mConnectionManager;
     }
 
     /**
@@ -566,11 +904,11 @@ public class BluetoothLeService extends Service {
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || getBluetoothGatt() == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        enqueue(GattOperationScheduler.read(characteristic, null));
     }
 
 
@@ -581,94 +919,109 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        BluetoothGatt gatt = getBluetoothGatt();
+        if (gatt == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return gatt.getServices();
     }
 
     public BluetoothGatt getBluetoothGatt() {
-        return mBluetoothGatt;
+        BleDeviceSession session = primarySession();
+        return session == null ? null : session.getGatt();
+    }
+
+    /**
+     * @return the outbound command queue of the primary bracelet, for its depth and wait-time
+     * counters, or null if no bracelet was connected yet.
+     */
+    public OutboundCommandQueue<?> getOutboundQueue() {
+        BleDeviceSession session = primarySession();
+        return session == null ? null : session.getOutboundQueue();
+    }
+
+    /**
+     * @return the throughput of the last bulk payload streamed to the bracelet, in bytes/sec.
+     */
+    public double getLastStreamBytesPerSecond() {
+        BleDeviceSession session = primarySession();
+        return session == null ? 0 : session.getLastStreamBytesPerSecond();
+    }
+
+    /**
+     * @return the link profile currently requested for the bracelet at {@code address}, or null
+     * if it has no session.
+     */
+    public LinkProfile getLinkProfile(String address) {
+        BleDeviceSession session = this.mConnectionManager.get(address);
+        return session == null ? null : session.getLinkProfile();
+    }
+
+    /**
+     * @return the hot-path counters and histograms of this service.
+     */
+    public BleMetrics getMetrics() {
+        return this.mMetrics;
+    }
+
+    /**
+     * @return notifications lost because listeners could not keep up.
+     */
+    public long getDroppedNotificationCount() {
+        return this.mNotificationPipeline.getDroppedCount();
+    }
+
+    /**
+     * @return notifications received but not yet delivered to the listeners.
+     */
+    public int getNotificationQueueDepth() {
+        return this.mNotificationPipeline.getDepth();
     }
 
 
     @Deprecated
     public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (this.mBluetoothAdapter == null || this.mBluetoothGatt == null) {
+        if (this.mBluetoothAdapter == null || getBluetoothGatt() == null) {
         } else {
-            this.mBluetoothGatt.writeCharacteristic(characteristic);
+            enqueue(GattOperationScheduler.write(characteristic, null, -1, null));
         }
     }
 
     @Deprecated
     public boolean writeRXCharacteristic(String serviceUUID, String charactersticUUID, byte[] value) {
-        BluetoothGattService RxService = null;
-        if (this.mBluetoothGatt != null) {
-            try {
-                RxService = this.mBluetoothGatt.getService(UUID.fromString(serviceUUID));
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-        if (RxService == null) {
-            return false;
-        }
-        BluetoothGattCharacteristic RxChar = RxService.getCharacteristic(UUID.fromString(charactersticUUID));
+        BluetoothGattCharacteristic RxChar = getBluetoothGattCharacteristic(serviceUUID, charactersticUUID);
         if (RxChar == null) {
             return false;
         }
-        RxChar.setValue(value);
-        return this.mBluetoothGatt.writeCharacteristic(RxChar);
+        enqueue(GattOperationScheduler.write(RxChar, value, -1, null));
+        return true;
     }
 
     @Deprecated
     public boolean writeRXCharacteristic(BluetoothGattCharacteristic bluetoothGattCharacteristic, byte[] value) {
-        if (this.mBluetoothGatt == null) {
+        if (getBluetoothGatt() == null) {
             return false;
         }
-        bluetoothGattCharacteristic.setValue(value);
-        return this.mBluetoothGatt.writeCharacteristic(bluetoothGattCharacteristic);
+        enqueue(GattOperationScheduler.write(bluetoothGattCharacteristic, value, -1, null));
+        return true;
     }
 
     @Deprecated
     public boolean writeUDCharacteristic(String serviceUUID, String charactersticUUID, byte[] value) {
-        BluetoothGattService RxService = null;
-        try {
-            RxService = this.mBluetoothGatt.getService(UUID.fromString(serviceUUID));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        if (RxService == null) {
-            return false;
-        }
-        BluetoothGattCharacteristic RxChar = RxService.getCharacteristic(UUID.fromString(charactersticUUID));
+        BluetoothGattCharacteristic RxChar = getBluetoothGattCharacteristic(serviceUUID, charactersticUUID);
         if (RxChar == null) {
             return false;
         }
-        RxChar.setValue(value);
-        RxChar.setWriteType(1);
-        boolean status = this.mBluetoothGatt.writeCharacteristic(RxChar);
-        return status;
+        enqueue(GattOperationScheduler.write(RxChar, value,
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, null));
+        return true;
     }
 
     public boolean writeRXCharacteristic(byte[] value) {
-        if (mBluetoothGatt != null) {
-            BluetoothGattService RxService = this.mBluetoothGatt.getService(RX_SERVICE_UUID);
-            if (RxService == null) {
+        BleDeviceSession session = primarySession();
+        if (session != null) {
 //            showMessage("Rx service not found!");
 //            broadcastUpdate(BroadcastCommand.DEVICE_DOES_NOT_SUPPORT_UART);
-                return false;
-            }
-            BluetoothGattCharacteristic RxChar = RxService.getCharacteristic(RX_CHAR_UUID);
-            if (RxChar == null) {
-//            showMessage("Rx charateristic not found!");
-//            broadcastUpdate(BroadcastCommand.DEVICE_DOES_NOT_SUPPORT_UART);
-                return false;
-            }
-            RxChar.setValue(value);
-            boolean status = this.mBluetoothGatt.writeCharacteristic(RxChar);
-            mBluetoothGatt.setCharacteristicNotification(RxChar, true);
-            Log.d("lq", "write TXchar - status=" + status);
-            return status;
+            return session.writeRXCharacteristic(value, true, null) != null;
         }
         return false;
     }
@@ -677,6 +1030,106 @@ public class BluetoothLeService extends Service {
         void onWrite(boolean z);
     }
 
+    /**
+     * Receives complete messages reassembled from the notifications of one characteristic.
+     * Called on the notification consumer thread; {@code message} is only valid during the call.
+     */
+    public interface MessageListener {
+        void onMessage(BluetoothGatt gatt, UUID characteristicUuid, byte[] message, int length);
+    }
+
+    /**
+     * Receives batches of decoded heart-rate measurements when a batch is full, once its first
+     * sample is {@link HeartRateDecoder#DEFAULT_MAX_AGE_MS} old, and on disconnect. Always called
+     * on the notification consumer thread of the heart-rate characteristic, never on the BLE
+     * thread; {@code samples} is reused after the call.
+     */
+    public interface HeartRateListener {
+        void onHeartRateSamples(BluetoothGatt gatt, HeartRateSamples samples);
+    }
+
+    public void addHeartRateListener(HeartRateListener listener) {
+        this.mHeartRateListeners.addIfAbsent(listener);
+    }
+
+    public void removeHeartRateListener(HeartRateListener listener) {
+        this.mHeartRateListeners.remove(listener);
+    }
+
+    private final HeartRateListener mHeartRateFanOut = new HeartRateListener() {
+        public void onHeartRateSamples(BluetoothGatt gatt, HeartRateSamples samples) {
+            for (HeartRateListener listener : mHeartRateListeners) {
+                listener.onHeartRateSamples(gatt, samples);
+            }
+        }
+    };
+
+    private HeartRateDecoder heartRateDecoder(String address, BluetoothGatt gatt) {
+        HeartRateDecoder decoder = this.mHeartRateDecoders.get(address);
+        if (decoder == null) {
+            HeartRateDecoder created = new HeartRateDecoder(gatt, this.mHeartRateFanOut, this.mBleHandler,
+                    this.mNotificationPipeline, DeviceConfig.HEARTRATE_FOR_TIRED_NOTIFY,
+                    HeartRateDecoder.DEFAULT_BATCH_SIZE, HeartRateDecoder.DEFAULT_MAX_AGE_MS);
+            decoder = this.mHeartRateDecoders.putIfAbsent(address, created);
+            if (decoder == null) {
+                decoder = created;
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * Receives notifications coalesced per characteristic, see
+     * {@link #setNotificationBatching(UUID, long, int)}. Called on the batcher's delivery thread,
+     * never concurrently; {@code batch} is reused after the call.
+     */
+    public interface NotificationBatchListener {
+        void onNotificationBatch(BluetoothGatt gatt, UUID characteristicUuid, NotificationBatch batch);
+    }
+
+    public void addNotificationBatchListener(NotificationBatchListener listener) {
+        this.mBatchListeners.addIfAbsent(listener);
+    }
+
+    public void removeNotificationBatchListener(NotificationBatchListener listener) {
+        this.mBatchListeners.remove(listener);
+    }
+
+    /**
+     * Coalesces notifications of {@code characteristicUuid} for up to {@code windowMs} or
+     * {@code maxCount} samples before they reach the batch listeners. A window of 0 delivers
+     * every notification at once, which is the default for all characteristics. Registered
+     * {@code IServiceCallback}s are not affected and still get one call per notification.
+     */
+    public void setNotificationBatching(UUID characteristicUuid, long windowMs, int maxCount) {
+        this.mNotificationBatcher.setPolicy(characteristicUuid, windowMs, maxCount);
+    }
+
+    public void addMessageListener(UUID characteristicUuid, MessageListener listener) {
+        this.mMessageRouter.addListener(characteristicUuid, listener);
+    }
+
+    public void removeMessageListener(UUID characteristicUuid, MessageListener listener) {
+        this.mMessageRouter.removeListener(characteristicUuid, listener);
+    }
+
+    /**
+     * Lets the reassembler of {@code characteristicUuid} read message lengths from the header
+     * instead of relying on short packets and timeouts. Null removes the sizer.
+     */
+    public void setMessageFrameSizer(UUID characteristicUuid, MessageFrameSizer sizer) {
+        this.mMessageRouter.setFrameSizer(characteristicUuid, sizer);
+    }
+
+    /**
+     * Sets the size of the full notification packets the bracelet sends on
+     * {@code characteristicUuid}, for firmware that does not fill the negotiated MTU. By default,
+     * or with 0, the size is taken from the longest packet received.
+     */
+    public void setMessagePacketSize(UUID characteristicUuid, int packetSize) {
+        this.mMessageRouter.setPacketSize(characteristicUuid, packetSize);
+    }
+
     public synchronized void writeCharacteristic(final BluetoothGattCharacteristic characteristic, final WriteCallBack callback) {
 //        if (!isRunOnUIThread()) {
 //            this.mHandler.post(new Runnable() {
@@ -685,15 +1138,12 @@ public class BluetoothLeService extends Service {
 //                }
 //            });
 //        } else
-        if (this.mBluetoothGatt == null) {
+        if (getBluetoothGatt() == null) {
             if (callback != null) {
                 callback.onWrite(false);
             }
         } else if (characteristic != null) {
-            boolean result2 = this.mBluetoothGatt.writeCharacteristic(characteristic);
-            if (callback != null && result2) {
-                callback.onWrite(true);
-            }
+            enqueue(GattOperationScheduler.write(characteristic, null, -1, callback));
         } else {
             if (callback != null) {
                 callback.onWrite(false);
@@ -704,33 +1154,21 @@ public class BluetoothLeService extends Service {
 
     @Deprecated
     public boolean setCharacteristicNotification(String serviceUUID, String characteristicUUID, boolean enabled) {
-        if (this.mBluetoothAdapter == null || this.mBluetoothGatt == null) {
-            return false;
-        }
-        BluetoothGattService RxService = this.mBluetoothGatt.getService(UUID.fromString(serviceUUID));
-        if (RxService == null) {
-            return false;
-        }
-        BluetoothGattCharacteristic TxChar = RxService.getCharacteristic(UUID.fromString(characteristicUUID));
+        BluetoothGattCharacteristic TxChar = getBluetoothGattCharacteristic(serviceUUID, characteristicUUID);
         if (TxChar == null) {
             return false;
         }
-        boolean status = this.mBluetoothGatt.setCharacteristicNotification(TxChar, enabled);
-        return status;
+        return setCharacteristicNotification(TxChar, enabled);
     }
 
     public void writeDelayValue(byte[] value, BluetoothGattCharacteristic characteristic, WriteCallBack callback) {
-        if (this.mBluetoothGatt == null) {
+        if (getBluetoothGatt() == null) {
             if (callback != null) {
                 callback.onWrite(false);
             }
         } else if (characteristic != null) {
-            characteristic.setValue(value);
-            characteristic.setWriteType(1);
-            boolean already = this.mBluetoothGatt.writeCharacteristic(characteristic);
-            if (callback != null) {
-                callback.onWrite(already);
-            }
+            enqueue(GattOperationScheduler.write(characteristic, value,
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, callback));
         } else {
             if (callback != null) {
                 callback.onWrite(false);
@@ -739,16 +1177,13 @@ public class BluetoothLeService extends Service {
     }
 
     public void writeDelayValue(int value, int formatType, int offset, BluetoothGattCharacteristic characteristic, WriteCallBack callback) {
-        if (this.mBluetoothGatt == null) {
+        if (getBluetoothGatt() == null) {
             if (callback != null) {
                 callback.onWrite(false);
             }
         } else if (characteristic != null) {
-            boolean result = characteristic.setValue(value, formatType, offset);
-            boolean result2 = this.mBluetoothGatt.writeCharacteristic(characteristic);
-            if (callback != null) {
-                callback.onWrite(true);
-            }
+            characteristic.setValue(value, formatType, offset);
+            enqueue(GattOperationScheduler.write(characteristic, characteristic.getValue().clone(), -1, callback));
         } else {
             if (callback != null) {
                 callback.onWrite(false);
@@ -764,15 +1199,12 @@ public class BluetoothLeService extends Service {
 //                }
 //            });
 //        } else
-        if (this.mBluetoothGatt == null) {
+        if (getBluetoothGatt() == null) {
             if (callback != null) {
                 callback.onWrite(false);
             }
         } else if (characteristic != null) {
-            boolean result2 = this.mBluetoothGatt.writeCharacteristic(characteristic);
-            if (callback != null) {
-                callback.onWrite(true);
-            }
+            enqueue(GattOperationScheduler.write(characteristic, null, -1, callback));
         } else {
             if (callback != null) {
                 callback.onWrite(false);
@@ -806,80 +1238,159 @@ public class BluetoothLeService extends Service {
 //        return mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
 //    }
 
+    /**
+     * Looks up a characteristic of the primary bracelet in the registry built at service
+     * discovery. Resolve a handle once and pass it to {@link #writeCharacteristic(BluetoothGattCharacteristic, WriteCallBack)}
+     * or {@link #writeDelayValue(byte[], BluetoothGattCharacteristic, WriteCallBack)} to skip
+     * the lookup on every write.
+     *
+     * @return the characteristic, or null if not connected or the service or characteristic
+     * is missing.
+     */
     public BluetoothGattCharacteristic getBluetoothGattCharacteristic(String serviceUUID, String charUUID) {
-        if (mBluetoothGatt == null) {
-            return null;
-        }
-        return mBluetoothGatt.getService(UUID.fromString(serviceUUID)).getCharacteristic(UUID.fromString(charUUID));
+        BleDeviceSession session = primarySession();
+        return session == null ? null : session.characteristics.get(serviceUUID, charUUID);
+    }
+
+    public BluetoothGattCharacteristic getBluetoothGattCharacteristic(UUID serviceUUID, UUID charUUID) {
+        BleDeviceSession session = primarySession();
+        return session == null ? null : session.characteristics.get(serviceUUID, charUUID);
     }
 
 
     public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
-        if (this.mBluetoothAdapter == null || this.mBluetoothGatt == null) {
+        return setCharacteristicNotification(primarySession(), characteristic, enabled, null);
+    }
+
+    /**
+     * @return true if notifications of the characteristic are enabled on the primary bracelet.
+     */
+    public boolean isCharacteristicNotificationEnabled(UUID characteristicUUID) {
+        BleDeviceSession session = primarySession();
+        return session != null && session.isNotifying(characteristicUUID);
+    }
+
+    /**
+     * Queues the subscription change; a characteristic already in the requested state causes
+     * no GATT traffic. The result is reported to {@code chain}, if given.
+     *
+     * @return false if there is no connection or no such characteristic.
+     */
+    private boolean setCharacteristicNotification(BleDeviceSession session, BluetoothGattCharacteristic characteristic,
+                                                  boolean enabled, NotifyChain chain) {
+        if (this.mBluetoothAdapter == null || session == null || session.getTransport() == null || characteristic == null) {
             return false;
         }
-        boolean isNotify = this.mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-        List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
-        if (descriptors == null || descriptors.isEmpty()) {
-            return isNotify;
+        if (chain != null) {
+            chain.expect();
         }
-        for (int i = 0; i < descriptors.size(); i++) {
-            BluetoothGattDescriptor lastDescriptor = descriptors.get(i);
-            if (enabled) {
-                lastDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            } else {
-                lastDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        session.setNotification(characteristic, enabled, chain);
+        return true;
+    }
+
+    /**
+     * Collects the descriptor writes of one notification setup and reports a single result
+     * once the last of them has completed.
+     */
+    private static class NotifyChain implements WriteCallBack {
+        private final WriteCallBack mCallback;
+        private int mPending;
+        private boolean mSealed;
+        private boolean mFired;
+        private boolean mSuccess = true;
+
+        NotifyChain(WriteCallBack callback) {
+            this.mCallback = callback;
+        }
+
+        synchronized void expect() {
+            this.mPending++;
+        }
+
+        /**
+         * Marks the end of the setup; no further writes will be added.
+         */
+        void seal() {
+            synchronized (this) {
+                this.mSealed = true;
+            }
+            fireIfDone();
+        }
+
+        public void onWrite(boolean success) {
+            synchronized (this) {
+                this.mSuccess &= success;
+                this.mPending--;
+            }
+            fireIfDone();
+        }
+
+        private void fireIfDone() {
+            boolean success;
+            synchronized (this) {
+                if (this.mFired || !this.mSealed || this.mPending != 0) {
+                    return;
+                }
+                this.mFired = true;
+                success = this.mSuccess;
+            }
+            if (this.mCallback != null) {
+                this.mCallback.onWrite(success);
             }
-            this.mBluetoothGatt.writeDescriptor(lastDescriptor);
         }
-        return isNotify;
     }
 
     public void setBLENotify(BluetoothGatt gatt, boolean isOpenFFF0, boolean isOpen2a37) {
+        setBLENotify(gatt, isOpenFFF0, isOpen2a37, null);
+    }
+
+    /**
+     * Enables or disables the bracelet notifications without blocking the calling thread.
+     * The CCCD writes run one after another on the BLE thread, each started by the
+     * {@code onDescriptorWrite} of the previous one; {@code callback} is invoked once with
+     * true when every subscription is in place.
+     */
+    public void setBLENotify(BluetoothGatt gatt, boolean isOpenFFF0, boolean isOpen2a37, WriteCallBack callback) {
+        NotifyChain chain = new NotifyChain(callback);
         if (gatt == null) {
             BluetoothLeService serviceMain = getInstance();
             if (serviceMain == null) {
 //                Log.e(TAGBLE, "writeDelayValue  e1");
+                chain.onWrite(false);
+                chain.seal();
                 return;
             }
             gatt = serviceMain.getBluetoothGatt();
             if (gatt == null) {
 //                Log.e(TAGBLE, "writeDelayValue  e2");
+                chain.onWrite(false);
+                chain.seal();
                 return;
             }
         }
 //        Log.e(TAGBLE, "setBLENotify  -bdoChecked; BluetoothAdapter.getDefaultAdapter().isEnabled()= " + BluetoothAdapter.getDefaultAdapter().isEnabled());
-        if (BluetoothAdapter.getDefaultAdapter().isEnabled()) {
-            BluetoothGattService main = gatt.getService(DeviceConfig.MAIN_SERVICE_UUID);
+        BleDeviceSession session = this.mConnectionManager.get(gatt);
+        if (BluetoothAdapter.getDefaultAdapter().isEnabled() && session != null) {
+            CharacteristicRegistry registry = session.characteristics;
 //            Log.e(TAGBLE, "onBLEServiceFound doChecked main=" + main);
-            if (main != null) {
+            if (registry.hasService(DeviceConfig.MAIN_SERVICE_UUID)) {
                 try {
-                    BluetoothGattCharacteristic characteristic = main.getCharacteristic(DeviceConfig.UUID_CHARACTERISTIC_NOTIFY);
+                    BluetoothGattCharacteristic characteristic = registry.get(DeviceConfig.MAIN_SERVICE_UUID, DeviceConfig.UUID_CHARACTERISTIC_NOTIFY);
 //                    printCharacteristicProperty(characteristic);
-                    getInstance().setCharacteristicNotification(characteristic, isOpenFFF0);
+                    setCharacteristicNotification(session, characteristic, isOpenFFF0, chain);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
-            try {
-                Thread.sleep(300);
-            } catch (InterruptedException e2) {
-                e2.printStackTrace();
-            }
-            BluetoothGattService hrate = gatt.getService(DeviceConfig.HEARTRATE_SERVICE_UUID);
 //            Log.e(TAGBLE, "onBLEServiceFound doChecked hrate=" + hrate);
-            if (hrate != null) {
-                getInstance().setCharacteristicNotification(hrate.getCharacteristic(DeviceConfig.HEARTRATE_FOR_TIRED_NOTIFY), isOpen2a37);
+            if (registry.hasService(DeviceConfig.HEARTRATE_SERVICE_UUID)) {
+                setCharacteristicNotification(session, registry.get(DeviceConfig.HEARTRATE_SERVICE_UUID, DeviceConfig.HEARTRATE_FOR_TIRED_NOTIFY), isOpen2a37, chain);
             }
-            try {
-                Thread.sleep(300);
-                return;
-            } catch (InterruptedException e22) {
-                e22.printStackTrace();
-                return;
-            }
-        }
+        } else {
 //        Log.e(TAGBLE, "have  found service, but bt have disabled  doChecked");
+            chain.onWrite(false);
+        }
+        chain.seal();
     }
 
 //    private void notifyAndSendBrocast(List<BluetoothGattService> list, final BluetoothGatt gatt, LocalDeviceEntity device) {
@@ -906,14 +1417,11 @@ public class BluetoothLeService extends Service {
         return bluetoothLeService;
     }
 
-    private Handler blueHandler = new Handler(Looper.getMainLooper()) {
-    };
-
     private void notifyAndSendBrocast(List<BluetoothGattService> list, final BluetoothGatt gatt) {
         if (!(list == null || getInstance() == null)) {
-            this.blueHandler.post(new Runnable() {
-                public void run() {
-                    BluetoothLeService.this.setBLENotify(gatt, true, true);
+            setBLENotify(gatt, true, true, new WriteCallBack() {
+                public void onWrite(boolean success) {
+                    Log.i(TAG, "setBLENotify complete, success:" + success);
                 }
             });
         }
@@ -921,15 +1429,19 @@ public class BluetoothLeService extends Service {
 
 
     public void addCallback(IServiceCallback callback) {
-        if (!this.mServiceCallbacks.contains(callback)) {
-            this.mServiceCallbacks.add(callback);
-        }
+        this.mServiceCallbacks.add(callback);
+    }
+
+    /**
+     * Registers a callback whose {@code onCharacteristicChanged} only fires for the given
+     * characteristics. Other events are delivered as usual.
+     */
+    public void addCallback(IServiceCallback callback, Collection<UUID> characteristicUuids) {
+        this.mServiceCallbacks.add(callback, characteristicUuids);
     }
 
     public void removeCallback(IServiceCallback callback) {
-        if (this.mServiceCallbacks.contains(callback)) {
-            this.mServiceCallbacks.remove(callback);
-        }
+        this.mServiceCallbacks.remove(callback);
     }
 
     public void removeAllCallback() {
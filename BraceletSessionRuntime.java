@@ -0,0 +1,143 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one {@link BlockingBraceletSession} per bracelet, each on its own thread, for gateway
+ * hosts and load tests on a plain JVM. On Java 21 and later every session gets a virtual
+ * thread; they all share the JDK's carrier pool, so thousands of sessions blocked on their
+ * bracelets cost a few kilobytes of stack each instead of a platform thread.
+ * <p>
+ * Virtual threads are looked up by reflection so this class still loads on older runtimes and
+ * on Android. There it falls back to a fixed pool of platform threads, by default
+ * {@link #DEFAULT_PLATFORM_THREADS}, which caps how many sessions run at once: sessions beyond
+ * the pool size wait until an earlier one finished. Thousands of concurrent sessions therefore
+ * need Java 21; check {@link #isVirtual()}.
+ */
+public class BraceletSessionRuntime {
+
+    public static final long DEFAULT_OPERATION_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_PLATFORM_THREADS = 64;
+
+    private static final String THREAD_NAME = "BraceletSession-";
+
+    /**
+     * The script of one bracelet session. Returning or throwing ends the session and closes its
+     * transport.
+     */
+    public interface SessionBody {
+        void run(BlockingBraceletSession session) throws Exception;
+    }
+
+    private final GattTransport.Factory mFactory;
+    private final long mOperationTimeoutMillis;
+    private final int mNotificationCapacity;
+    private final ExecutorService mExecutor;
+    private final boolean mVirtual;
+    private final AtomicInteger mActive = new AtomicInteger();
+
+    public BraceletSessionRuntime(GattTransport.Factory factory) {
+        this(factory, DEFAULT_OPERATION_TIMEOUT_MS, BlockingBraceletSession.DEFAULT_NOTIFICATION_CAPACITY,
+                DEFAULT_PLATFORM_THREADS);
+    }
+
+    /**
+     * @param operationTimeoutMillis how long a session waits for the result of one GATT request.
+     * @param platformThreads        pool size if virtual threads are not available.
+     */
+    public BraceletSessionRuntime(GattTransport.Factory factory, long operationTimeoutMillis, int notificationCapacity,
+                                  int platformThreads) {
+        this.mFactory = factory;
+        this.mOperationTimeoutMillis = operationTimeoutMillis;
+        this.mNotificationCapacity = notificationCapacity;
+        ExecutorService executor = newVirtualThreadExecutor();
+        this.mVirtual = executor != null;
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(platformThreads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, THREAD_NAME + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        this.mExecutor = executor;
+    }
+
+    /**
+     * @return true if sessions run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return this.mVirtual;
+    }
+
+    /**
+     * @return sessions started and not yet finished.
+     */
+    public int getActiveCount() {
+        return this.mActive.get();
+    }
+
+    /**
+     * Starts a session for the bracelet at {@code address}.
+     *
+     * @return completes when {@code body} returned; fails with what it threw.
+     */
+    public Future<Void> start(String address, final SessionBody body) {
+        final BlockingBraceletSession session = new BlockingBraceletSession(address, this.mFactory,
+                this.mOperationTimeoutMillis, this.mNotificationCapacity);
+        this.mActive.incrementAndGet();
+        try {
+            return this.mExecutor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        body.run(session);
+                        return null;
+                    } finally {
+                        session.close();
+                        mActive.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            this.mActive.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Interrupts all sessions; their blocking calls throw {@code InterruptedException}.
+     */
+    public void shutdown() {
+        this.mExecutor.shutdownNow();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.mExecutor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * {@code Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(...).factory())}, or
+     * null before Java 21.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
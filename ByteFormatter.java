@@ -0,0 +1,161 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+/**
+ * Table-driven formatting of packet bytes for log lines. Every byte value maps to precomputed
+ * characters, so formatting is a copy loop without integer-to-string conversions. Output goes
+ * to a new String, into a caller's {@code char[]}, or is appended to a {@link StringBuilder};
+ * the last two allocate nothing once the sink is large enough, so a logger can reuse one sink
+ * for every packet. Pure Java and stateless, safe to call from any thread.
+ */
+public final class ByteFormatter {
+
+    public enum Mode {
+        /**
+         * Two upper-case hex digits per byte, no separator: {@code 9D0A}.
+         */
+        HEX,
+        /**
+         * Hex digits with one space between bytes: {@code 9D 0A}.
+         */
+        SPACED_HEX,
+        /**
+         * Signed decimal values with one space between bytes: {@code -99 10}.
+         */
+        DECIMAL
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] HEX_HIGH = new char[256];
+    private static final char[] HEX_LOW = new char[256];
+    /**
+     * Signed decimal form of every byte, indexed by its unsigned value.
+     */
+    private static final char[][] DECIMAL = new char[256][];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEX_HIGH[i] = HEX_DIGITS[i >>> 4];
+            HEX_LOW[i] = HEX_DIGITS[i & 0x0f];
+            DECIMAL[i] = Integer.toString((byte) i).toCharArray();
+        }
+    }
+
+    private ByteFormatter() {
+    }
+
+    public static String toHex(byte[] bytes) {
+        return toString(bytes, Mode.HEX);
+    }
+
+    public static String toSpacedHex(byte[] bytes) {
+        return toString(bytes, Mode.SPACED_HEX);
+    }
+
+    public static String toDecimal(byte[] bytes) {
+        return toString(bytes, Mode.DECIMAL);
+    }
+
+    /**
+     * @return {@code bytes} formatted in {@code mode}; the empty string for null.
+     */
+    public static String toString(byte[] bytes, Mode mode) {
+        if (bytes == null || bytes.length == 0) {
+            return "";
+        }
+        char[] chars = new char[length(bytes, 0, bytes.length, mode)];
+        format(bytes, 0, bytes.length, mode, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * @return the number of characters {@link #format} writes for the range.
+     */
+    public static int length(byte[] bytes, int offset, int count, Mode mode) {
+        if (count <= 0) {
+            return 0;
+        }
+        switch (mode) {
+            case HEX:
+                return count * 2;
+            case SPACED_HEX:
+                return count * 3 - 1;
+            default:
+                int length = count - 1;
+                for (int i = offset, end = offset + count; i < end; i++) {
+                    length += DECIMAL[bytes[i] & 0xff].length;
+                }
+                return length;
+        }
+    }
+
+    /**
+     * Writes {@code count} bytes starting at {@code offset} into {@code dst}, which must have
+     * room for {@link #length} characters from {@code dstOffset}.
+     *
+     * @return the index in {@code dst} after the last character written.
+     */
+    public static int format(byte[] bytes, int offset, int count, Mode mode, char[] dst, int dstOffset) {
+        int end = offset + count;
+        int position = dstOffset;
+        switch (mode) {
+            case HEX:
+                for (int i = offset; i < end; i++) {
+                    int value = bytes[i] & 0xff;
+                    dst[position++] = HEX_HIGH[value];
+                    dst[position++] = HEX_LOW[value];
+                }
+                break;
+            case SPACED_HEX:
+                for (int i = offset; i < end; i++) {
+                    int value = bytes[i] & 0xff;
+                    if (i != offset) {
+                        dst[position++] = ' ';
+                    }
+                    dst[position++] = HEX_HIGH[value];
+                    dst[position++] = HEX_LOW[value];
+                }
+                break;
+            default:
+                for (int i = offset; i < end; i++) {
+                    char[] digits = DECIMAL[bytes[i] & 0xff];
+                    if (i != offset) {
+                        dst[position++] = ' ';
+                    }
+                    System.arraycopy(digits, 0, dst, position, digits.length);
+                    position += digits.length;
+                }
+                break;
+        }
+        return position;
+    }
+
+    /**
+     * Appends the whole array to {@code sink}. Null appends nothing.
+     */
+    public static StringBuilder append(StringBuilder sink, byte[] bytes, Mode mode) {
+        return bytes == null ? sink : append(sink, bytes, 0, bytes.length, mode);
+    }
+
+    /**
+     * Appends {@code count} bytes starting at {@code offset} to {@code sink}.
+     */
+    public static StringBuilder append(StringBuilder sink, byte[] bytes, int offset, int count, Mode mode) {
+        if (count <= 0) {
+            return sink;
+        }
+        sink.ensureCapacity(sink.length() + length(bytes, offset, count, mode));
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            int value = bytes[i] & 0xff;
+            if (mode != Mode.HEX && i != offset) {
+                sink.append(' ');
+            }
+            if (mode == Mode.DECIMAL) {
+                sink.append(DECIMAL[value]);
+            } else {
+                sink.append(HEX_HIGH[value]).append(HEX_LOW[value]);
+            }
+        }
+        return sink;
+    }
+}
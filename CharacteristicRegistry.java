@@ -0,0 +1,122 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolved characteristic handles of one connection. Built once from
+ * {@code onServicesDiscovered} and dropped on disconnect, so writes do not repeat the
+ * {@code getService}/{@code getCharacteristic} lookups for every fragment. Lookups are lock-free
+ * reads of an immutable snapshot.
+ */
+class CharacteristicRegistry {
+
+    private static final int UUID_CACHE_LIMIT = 64;
+
+    /**
+     * Parsed forms of the UUID strings passed to the String-based service methods.
+     */
+    private static final ConcurrentHashMap<String, UUID> sParsedUuids = new ConcurrentHashMap<String, UUID>();
+
+    /**
+     * String forms handed to listeners, so notifications do not format their UUID every time.
+     */
+    private static final ConcurrentHashMap<UUID, String> sUuidStrings = new ConcurrentHashMap<UUID, String>();
+
+    private static final Map<UUID, Map<UUID, BluetoothGattCharacteristic>> EMPTY =
+            Collections.emptyMap();
+
+    private volatile Map<UUID, Map<UUID, BluetoothGattCharacteristic>> mCharacteristics = EMPTY;
+
+    void build(List<BluetoothGattService> services) {
+        Map<UUID, Map<UUID, BluetoothGattCharacteristic>> byService =
+                new HashMap<UUID, Map<UUID, BluetoothGattCharacteristic>>();
+        if (services != null) {
+            for (BluetoothGattService service : services) {
+                Map<UUID, BluetoothGattCharacteristic> characteristics = byService.get(service.getUuid());
+                if (characteristics == null) {
+                    characteristics = new HashMap<UUID, BluetoothGattCharacteristic>();
+                    byService.put(service.getUuid(), characteristics);
+                }
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    // keep the first instance, like BluetoothGattService#getCharacteristic
+                    if (!characteristics.containsKey(characteristic.getUuid())) {
+                        characteristics.put(characteristic.getUuid(), characteristic);
+                    }
+                }
+            }
+        }
+        this.mCharacteristics = byService;
+    }
+
+    void invalidate() {
+        this.mCharacteristics = EMPTY;
+    }
+
+    boolean isEmpty() {
+        return this.mCharacteristics.isEmpty();
+    }
+
+    boolean hasService(UUID serviceUuid) {
+        return this.mCharacteristics.containsKey(serviceUuid);
+    }
+
+    /**
+     * @return the characteristic, or null if the service or characteristic is not present.
+     */
+    BluetoothGattCharacteristic get(UUID serviceUuid, UUID characteristicUuid) {
+        Map<UUID, BluetoothGattCharacteristic> characteristics = this.mCharacteristics.get(serviceUuid);
+        return characteristics == null ? null : characteristics.get(characteristicUuid);
+    }
+
+    /**
+     * String variant of {@link #get(UUID, UUID)}; malformed UUIDs resolve to null.
+     */
+    BluetoothGattCharacteristic get(String serviceUuid, String characteristicUuid) {
+        UUID service = parseUuid(serviceUuid);
+        UUID characteristic = parseUuid(characteristicUuid);
+        if (service == null || characteristic == null) {
+            return null;
+        }
+        return get(service, characteristic);
+    }
+
+    static UUID parseUuid(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        UUID parsed = sParsedUuids.get(uuid);
+        if (parsed == null) {
+            try {
+                parsed = UUID.fromString(uuid);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (sParsedUuids.size() < UUID_CACHE_LIMIT) {
+                sParsedUuids.put(uuid, parsed);
+            }
+        }
+        return parsed;
+    }
+
+    static String uuidString(UUID uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        String string = sUuidStrings.get(uuid);
+        if (string == null) {
+            string = uuid.toString();
+            if (sUuidStrings.size() < UUID_CACHE_LIMIT) {
+                sUuidStrings.put(uuid, string);
+            }
+        }
+        return string;
+    }
+}
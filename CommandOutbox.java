@@ -0,0 +1,456 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of commands issued while a bracelet is not connected, kept in an append-only,
+ * memory-mapped log file.
+ * <p>
+ * Record layout: {@code int payloadLength, byte kind, byte priority, int commandType,
+ * long sequence, payload, int crc32}. A PUT record queues a command, a DONE record marks a
+ * queued command as sent. A PUT with a {@code commandType} other than {@link #NO_KEY}
+ * supersedes the earlier pending command of the same type. On open the log is replayed up to
+ * the first torn or corrupt record, so a crash while appending loses at most that record.
+ * When dead records outweigh live ones the log is rewritten into a new file that atomically
+ * replaces the old one. Every PUT is forced to the storage device before {@link #append}
+ * returns; DONE records are not, so after a power loss a sent command may be sent again.
+ * <p>
+ * Only an index is kept in memory; payloads are read back from the mapping when drained.
+ * Thread-safe, but every call does file I/O, so callers keep it off the binder and BLE threads.
+ * {@link Sender}s and {@link Callback}s are called without holding the outbox lock. Pure Java
+ * so it can be driven by a fake {@link Sender} off-device.
+ */
+final class CommandOutbox implements Closeable {
+
+    static final int NO_KEY = -1;
+    static final int MAX_PAYLOAD = 64 * 1024;
+
+    private static final byte KIND_PUT = 1;
+    private static final byte KIND_DONE = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 4 + 8;
+    private static final int TRAILER_SIZE = 4;
+    private static final int INITIAL_SIZE = 64 * 1024;
+    private static final int COMPACT_THRESHOLD = 32 * 1024;
+
+    /**
+     * Delivers drained commands, normally through the bracelet's write pipeline.
+     */
+    interface Sender {
+        void send(byte[] payload, OutboundCommandQueue.Priority priority, Callback callback);
+    }
+
+    interface Callback {
+        void onSent(boolean success);
+    }
+
+    private static final class Record {
+        final long sequence;
+        final int commandType;
+        final OutboundCommandQueue.Priority priority;
+        int offset;
+        final int length;
+        boolean inFlight;
+        // read from the log while the record is part of a drain batch
+        byte[] payload;
+
+        Record(long sequence, int commandType, OutboundCommandQueue.Priority priority, int offset, int length) {
+            this.sequence = sequence;
+            this.commandType = commandType;
+            this.priority = priority;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int size() {
+            return HEADER_SIZE + this.length + TRAILER_SIZE;
+        }
+    }
+
+    private final File mFile;
+    private final CRC32 mCrc = new CRC32();
+    private byte[] mScratch = new byte[HEADER_SIZE + 256];
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mMap;
+    private int mEnd;
+    private long mNextSequence = 1;
+    private long mLiveBytes;
+    private long mDeadBytes;
+
+    // pending commands in sequence order
+    private final LinkedHashMap<Long, Record> mLive = new LinkedHashMap<Long, Record>();
+    private final HashMap<Integer, Record> mByCommandType = new HashMap<Integer, Record>();
+    // in-process waiters of commands appended since open; not persisted
+    private final HashMap<Long, Callback> mWaiters = new HashMap<Long, Callback>();
+    // waiters whose command was sent or dropped, called once the lock is released
+    private final ArrayList<Callback> mFinished = new ArrayList<Callback>();
+    private final ArrayList<Boolean> mFinishedResults = new ArrayList<Boolean>();
+
+    private Sender mDrainSender;
+    private int mDrainBatchSize;
+    private int mBatchOutstanding;
+    private boolean mBatchFailed;
+
+    CommandOutbox(File file) throws IOException {
+        this.mFile = file;
+        map(Math.max(INITIAL_SIZE, (int) Math.min(Integer.MAX_VALUE, file.length())));
+        replay();
+    }
+
+    /**
+     * Queues a command durably.
+     *
+     * @param callback told once the command was sent, or failed if it was superseded. May be
+     *                 null. Not kept across restarts.
+     * @return the sequence number of the command.
+     */
+    long append(int commandType, OutboundCommandQueue.Priority priority, byte[] payload, Callback callback)
+            throws IOException {
+        try {
+            synchronized (this) {
+                return appendLocked(commandType, priority, payload, callback);
+            }
+        } finally {
+            notifyFinished();
+        }
+    }
+
+    private long appendLocked(int commandType, OutboundCommandQueue.Priority priority, byte[] payload,
+                              Callback callback) throws IOException {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("payload too large: " + payload.length);
+        }
+        if (commandType != NO_KEY) {
+            Record superseded = this.mByCommandType.get(commandType);
+            if (superseded != null && !superseded.inFlight) {
+                forget(superseded, false);
+            }
+        }
+        long sequence = this.mNextSequence++;
+        int offset = write(KIND_PUT, priority, commandType, sequence, payload);
+        this.mMap.force();
+        Record record = new Record(sequence, commandType, priority, offset, payload.length);
+        this.mLive.put(sequence, record);
+        this.mLiveBytes += record.size();
+        if (commandType != NO_KEY) {
+            this.mByCommandType.put(commandType, record);
+        }
+        if (callback != null) {
+            this.mWaiters.put(sequence, callback);
+        }
+        maybeCompact();
+        return sequence;
+    }
+
+    /**
+     * Marks a command as sent so it is not replayed.
+     */
+    void markDone(long sequence) throws IOException {
+        try {
+            synchronized (this) {
+                markDoneLocked(sequence);
+            }
+        } finally {
+            notifyFinished();
+        }
+    }
+
+    private void markDoneLocked(long sequence) throws IOException {
+        Record record = this.mLive.get(sequence);
+        if (record == null) {
+            return;
+        }
+        write(KIND_DONE, record.priority, record.commandType, sequence, null);
+        this.mDeadBytes += HEADER_SIZE + TRAILER_SIZE;
+        forget(record, true);
+        maybeCompact();
+    }
+
+    synchronized int size() {
+        return this.mLive.size();
+    }
+
+    /**
+     * Sends the pending commands in batches of {@code batchSize}. The next batch starts once
+     * every command of the current one was reported; a failure stops draining and leaves the
+     * remaining commands queued for the next call. Does nothing while a drain is in progress.
+     */
+    void drain(Sender sender, int batchSize) {
+        List<Record> batch;
+        synchronized (this) {
+            if (this.mDrainSender != null) {
+                return;
+            }
+            this.mDrainSender = sender;
+            this.mDrainBatchSize = batchSize;
+            batch = nextBatch();
+        }
+        send(sender, batch);
+    }
+
+    public synchronized void close() throws IOException {
+        if (this.mRaf != null) {
+            this.mMap.force();
+            this.mRaf.close();
+            this.mRaf = null;
+        }
+    }
+
+    /**
+     * Picks the next batch and reads its payloads, or ends the drain if nothing is left.
+     *
+     * @return the records to send, marked in flight.
+     */
+    private List<Record> nextBatch() {
+        List<Record> batch = new ArrayList<Record>(this.mDrainBatchSize);
+        for (Record record : this.mLive.values()) {
+            if (batch.size() == this.mDrainBatchSize) {
+                break;
+            }
+            if (!record.inFlight) {
+                batch.add(record);
+            }
+        }
+        if (batch.isEmpty()) {
+            this.mDrainSender = null;
+            return batch;
+        }
+        this.mBatchOutstanding = batch.size();
+        this.mBatchFailed = false;
+        for (Record record : batch) {
+            record.inFlight = true;
+            record.payload = new byte[record.length];
+            this.mMap.position(record.offset + HEADER_SIZE);
+            this.mMap.get(record.payload);
+        }
+        return batch;
+    }
+
+    /**
+     * Hands a batch to the sender. Called without the lock.
+     */
+    private void send(Sender sender, List<Record> batch) {
+        for (final Record record : batch) {
+            byte[] payload = record.payload;
+            record.payload = null;
+            sender.send(payload, record.priority, new Callback() {
+                public void onSent(boolean success) {
+                    onBatchItemSent(record, success);
+                }
+            });
+        }
+    }
+
+    private void onBatchItemSent(Record record, boolean success) {
+        Sender sender = null;
+        List<Record> batch = null;
+        synchronized (this) {
+            record.inFlight = false;
+            if (success) {
+                try {
+                    markDoneLocked(record.sequence);
+                } catch (IOException e) {
+                    // the command was delivered; worst case it is sent again after a restart
+                    success = false;
+                }
+            }
+            this.mBatchFailed |= !success;
+            if (--this.mBatchOutstanding == 0) {
+                if (this.mBatchFailed) {
+                    this.mDrainSender = null;
+                } else {
+                    sender = this.mDrainSender;
+                    batch = nextBatch();
+                }
+            }
+        }
+        notifyFinished();
+        if (batch != null) {
+            send(sender, batch);
+        }
+    }
+
+    private void forget(Record record, boolean sent) {
+        this.mLive.remove(record.sequence);
+        this.mLiveBytes -= record.size();
+        this.mDeadBytes += record.size();
+        if (this.mByCommandType.get(record.commandType) == record) {
+            this.mByCommandType.remove(record.commandType);
+        }
+        Callback waiter = this.mWaiters.remove(record.sequence);
+        if (waiter != null) {
+            this.mFinished.add(waiter);
+            this.mFinishedResults.add(sent);
+        }
+    }
+
+    /**
+     * Calls the waiters collected under the lock. Must be called without holding it.
+     */
+    private void notifyFinished() {
+        Callback[] waiters;
+        Boolean[] results;
+        synchronized (this) {
+            if (this.mFinished.isEmpty()) {
+                return;
+            }
+            waiters = this.mFinished.toArray(new Callback[this.mFinished.size()]);
+            results = this.mFinishedResults.toArray(new Boolean[this.mFinishedResults.size()]);
+            this.mFinished.clear();
+            this.mFinishedResults.clear();
+        }
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i].onSent(results[i]);
+        }
+    }
+
+    /**
+     * Appends a record at the end of the log followed by an end marker.
+     *
+     * @return the offset of the record.
+     */
+    private int write(byte kind, OutboundCommandQueue.Priority priority, int commandType, long sequence,
+                      byte[] payload) throws IOException {
+        int length = payload == null ? 0 : payload.length;
+        int size = HEADER_SIZE + length + TRAILER_SIZE;
+        if (this.mEnd + size + 4 > this.mMap.capacity()) {
+            map(Math.max(this.mMap.capacity() * 2, this.mEnd + size + 4));
+        }
+        int offset = this.mEnd;
+        this.mMap.position(offset);
+        this.mMap.putInt(length);
+        this.mMap.put(kind);
+        this.mMap.put((byte) priority.ordinal());
+        this.mMap.putInt(commandType);
+        this.mMap.putLong(sequence);
+        if (payload != null) {
+            this.mMap.put(payload);
+        }
+        int crc = crc(offset, HEADER_SIZE + length);
+        this.mMap.position(offset + HEADER_SIZE + length);
+        this.mMap.putInt(crc);
+        // a zero length with kind 0 stops replay here
+        this.mMap.putInt(0);
+        this.mEnd = offset + size;
+        return offset;
+    }
+
+    private void replay() {
+        int position = 0;
+        OutboundCommandQueue.Priority[] priorities = OutboundCommandQueue.Priority.values();
+        while (position + HEADER_SIZE + TRAILER_SIZE <= this.mMap.capacity()) {
+            int length = this.mMap.getInt(position);
+            byte kind = this.mMap.get(position + 4);
+            int priority = this.mMap.get(position + 5);
+            if ((kind != KIND_PUT && kind != KIND_DONE) || length < 0 || length > MAX_PAYLOAD
+                    || priority < 0 || priority >= priorities.length
+                    || position + HEADER_SIZE + length + TRAILER_SIZE > this.mMap.capacity()
+                    || this.mMap.getInt(position + HEADER_SIZE + length) != crc(position, HEADER_SIZE + length)) {
+                break;
+            }
+            int commandType = this.mMap.getInt(position + 6);
+            long sequence = this.mMap.getLong(position + 10);
+            int size = HEADER_SIZE + length + TRAILER_SIZE;
+            if (kind == KIND_PUT) {
+                if (commandType != NO_KEY) {
+                    Record superseded = this.mByCommandType.get(commandType);
+                    if (superseded != null) {
+                        forget(superseded, false);
+                    }
+                }
+                Record record = new Record(sequence, commandType, priorities[priority], position, length);
+                this.mLive.put(sequence, record);
+                this.mLiveBytes += size;
+                if (commandType != NO_KEY) {
+                    this.mByCommandType.put(commandType, record);
+                }
+            } else {
+                Record record = this.mLive.get(sequence);
+                if (record != null) {
+                    forget(record, true);
+                }
+                this.mDeadBytes += size;
+            }
+            this.mNextSequence = Math.max(this.mNextSequence, sequence + 1);
+            position += size;
+        }
+        this.mEnd = position;
+    }
+
+    private void maybeCompact() throws IOException {
+        if (this.mDeadBytes < COMPACT_THRESHOLD || this.mDeadBytes < this.mLiveBytes) {
+            return;
+        }
+        for (Record record : this.mLive.values()) {
+            if (record.inFlight) {
+                // offsets must stay valid until the batch completes
+                return;
+            }
+        }
+        File compacted = new File(this.mFile.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(compacted, "rw");
+        try {
+            int capacity = (int) Math.max(INITIAL_SIZE, this.mLiveBytes * 2 + 4);
+            raf.setLength(capacity);
+            MappedByteBuffer target = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            int position = 0;
+            for (Record record : this.mLive.values()) {
+                int size = record.size();
+                byte[] scratch = scratch(size);
+                this.mMap.position(record.offset);
+                this.mMap.get(scratch, 0, size);
+                target.position(position);
+                target.put(scratch, 0, size);
+                record.offset = position;
+                position += size;
+            }
+            target.putInt(position, 0);
+            target.force();
+            this.mEnd = position;
+        } finally {
+            raf.close();
+        }
+        this.mRaf.close();
+        this.mRaf = null;
+        if (!compacted.renameTo(this.mFile)) {
+            throw new IOException("cannot replace " + this.mFile);
+        }
+        this.mDeadBytes = 0;
+        map((int) this.mFile.length());
+    }
+
+    private void map(int capacity) throws IOException {
+        if (this.mRaf == null) {
+            this.mRaf = new RandomAccessFile(this.mFile, "rw");
+        }
+        if (this.mRaf.length() < capacity) {
+            this.mRaf.setLength(capacity);
+        }
+        this.mMap = this.mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private int crc(int offset, int length) {
+        byte[] scratch = scratch(length);
+        this.mMap.position(offset);
+        this.mMap.get(scratch, 0, length);
+        this.mCrc.reset();
+        this.mCrc.update(scratch, 0, length);
+        return (int) this.mCrc.getValue();
+    }
+
+    private byte[] scratch(int length) {
+        if (this.mScratch.length < length) {
+            this.mScratch = new byte[Math.max(length, this.mScratch.length * 2)];
+        }
+        return this.mScratch;
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+/**
+ * The connection limit of {@link BleConnectionManager}. Only links that are connecting or
+ * connected hold a slot; a link that already holds one may always be (re)connected, every
+ * other link only while a slot is free. Pure Java, so the policy can be tested off-device.
+ */
+final class ConnectionLimit {
+
+    /**
+     * A link counted against the limit.
+     */
+    interface Link {
+        /**
+         * @return true while the link is connecting or connected.
+         */
+        boolean isActive();
+    }
+
+    private final int mMaxConnections;
+
+    ConnectionLimit(int maxConnections) {
+        this.mMaxConnections = maxConnections;
+    }
+
+    int getMaxConnections() {
+        return this.mMaxConnections;
+    }
+
+    /**
+     * @param link  the link to connect, null for a new one.
+     * @param links every link, including {@code link}.
+     * @return true if {@code link} may start connecting.
+     */
+    boolean admits(Link link, Iterable<? extends Link> links) {
+        return (link != null && link.isActive()) || activeCount(links) < this.mMaxConnections;
+    }
+
+    static int activeCount(Iterable<? extends Link> links) {
+        int count = 0;
+        for (Link link : links) {
+            if (link.isActive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
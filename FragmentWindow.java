@@ -0,0 +1,92 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.util.ArrayDeque;
+
+/**
+ * The fragments of one payload that are issued but not yet confirmed, for
+ * {@link BleWritePipeline}. Fragments are cut by a {@link PacketFragmenter} while fewer than
+ * the window size are in flight; each confirmation releases the oldest one back to the
+ * fragmenter's pool. A window of 1 gives acknowledged writes one at a time, a larger one
+ * streams with write-without-response. Not thread-safe; pure Java so the pipeline's fragment
+ * loop can be tested and benchmarked off-device.
+ */
+final class FragmentWindow {
+
+    /**
+     * Write-without-response fragments that may be outstanding while streaming.
+     */
+    static final int STREAM_WINDOW = 8;
+
+    private final PacketFragmenter mFragmenter = new PacketFragmenter(STREAM_WINDOW + 1);
+    private final ArrayDeque<PacketFragmenter.Fragment> mInFlight =
+            new ArrayDeque<PacketFragmenter.Fragment>(STREAM_WINDOW);
+    private int mSize = 1;
+
+    /**
+     * Starts a new payload. The previous one must have been {@link #clear() cleared}.
+     *
+     * @param size fragments that may be in flight at once, at most {@link #STREAM_WINDOW}.
+     */
+    void begin(byte[] payload, int size) {
+        this.mFragmenter.begin(payload);
+        this.mSize = size;
+    }
+
+    /**
+     * Narrows or widens the window; fragments already in flight stay there.
+     */
+    void setSize(int size) {
+        this.mSize = size;
+    }
+
+    /**
+     * @return true if another fragment may be cut and issued.
+     */
+    boolean hasRoom() {
+        return this.mInFlight.size() < this.mSize && !this.mFragmenter.isFinished();
+    }
+
+    /**
+     * Cuts the next fragment and counts it as in flight.
+     */
+    PacketFragmenter.Fragment next(int packetSize) {
+        PacketFragmenter.Fragment fragment = this.mFragmenter.next(packetSize);
+        this.mInFlight.add(fragment);
+        return fragment;
+    }
+
+    /**
+     * Confirms the oldest fragment in flight.
+     */
+    void acknowledge() {
+        this.mFragmenter.release(this.mInFlight.poll());
+    }
+
+    /**
+     * @return the unconfirmed fragments, oldest first, e.g. to resend them.
+     */
+    Iterable<PacketFragmenter.Fragment> inFlight() {
+        return this.mInFlight;
+    }
+
+    int inFlightCount() {
+        return this.mInFlight.size();
+    }
+
+    /**
+     * @return true once every fragment of the payload was cut and confirmed.
+     */
+    boolean isDone() {
+        return this.mFragmenter.isFinished() && this.mInFlight.isEmpty();
+    }
+
+    /**
+     * Releases every fragment still in flight.
+     */
+    void clear() {
+        PacketFragmenter.Fragment fragment;
+        while ((fragment = this.mInFlight.poll()) != null) {
+            this.mFragmenter.release(fragment);
+        }
+    }
+}
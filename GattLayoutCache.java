@@ -0,0 +1,89 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Remembers the GATT layout of each bracelet between connections: a signature of its services
+ * and characteristics (UUIDs, instance ids and properties) and its firmware revision. A
+ * reconnect through the same {@code BluetoothGatt} can then reuse the services it already
+ * holds instead of running discovery again, as long as the signature matches and the firmware
+ * revision read afterwards has not changed. Entries are dropped on a Service Changed indication.
+ * <p>
+ * Kept in memory only: a new handle, including every handle after a restart, has no services
+ * until discovery ran, so a persisted layout could never be reused. Bracelets without a
+ * Firmware Revision characteristic are not cached, since their layout cannot be validated.
+ */
+class GattLayoutCache {
+    static final UUID DEVICE_INFORMATION_SERVICE_UUID = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    static final UUID FIRMWARE_REVISION_UUID = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
+    static final UUID GENERIC_ATTRIBUTE_SERVICE_UUID = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    static final UUID SERVICE_CHANGED_UUID = UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+
+    static final class Entry {
+        final long signature;
+        final String firmwareRevision;
+
+        Entry(long signature, String firmwareRevision) {
+            this.signature = signature;
+            this.firmwareRevision = firmwareRevision;
+        }
+    }
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /**
+     * @return the cached layout of {@code address}, or null if unknown.
+     */
+    synchronized Entry get(String address) {
+        return this.mEntries.get(address);
+    }
+
+    synchronized void put(String address, long signature, String firmwareRevision) {
+        this.mEntries.put(address, new Entry(signature, firmwareRevision == null ? "" : firmwareRevision));
+    }
+
+    synchronized void invalidate(String address) {
+        this.mEntries.remove(address);
+    }
+
+    /**
+     * @return a hash over the services, characteristics, instance ids and properties, in the
+     * order the stack reported them.
+     */
+    static long signature(List<BluetoothGattService> services) {
+        long hash = 1125899906842597L;
+        if (services == null) {
+            return hash;
+        }
+        for (BluetoothGattService service : services) {
+            hash = mix(hash, service.getUuid().getMostSignificantBits());
+            hash = mix(hash, service.getUuid().getLeastSignificantBits());
+            hash = mix(hash, service.getInstanceId());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = mix(hash, characteristic.getUuid().getMostSignificantBits());
+                hash = mix(hash, characteristic.getUuid().getLeastSignificantBits());
+                hash = mix(hash, characteristic.getInstanceId());
+                hash = mix(hash, characteristic.getProperties());
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the Firmware Revision characteristic of the Device Information service, or null.
+     */
+    static BluetoothGattCharacteristic firmwareRevision(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(DEVICE_INFORMATION_SERVICE_UUID);
+        return service == null ? null : service.getCharacteristic(FIRMWARE_REVISION_UUID);
+    }
+
+    private static long mix(long hash, long value) {
+        return 31 * hash + (value ^ (value >>> 32));
+    }
+}
@@ -0,0 +1,361 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serializes GATT operations. Android only allows one outstanding read, write, descriptor write
+ * or MTU/PHY request per connection; anything issued while another is pending silently fails.
+ * Operations are queued here and executed one at a time on the BLE I/O thread. The next one
+ * starts when the matching {@code BluetoothGattCallback} fires or the operation times out.
+ */
+class GattOperationScheduler {
+    private final static String TAG = GattOperationScheduler.class.getSimpleName();
+
+    static final long OPERATION_TIMEOUT_MS = 2000;
+    /**
+     * Some stacks skip {@code onPhyUpdate} when the PHY does not change, so a PHY request must
+     * not hold the queue for the full operation timeout.
+     */
+    static final long PHY_TIMEOUT_MS = 500;
+    /**
+     * How long an operation that timed out may still get its late callback. Until then, or
+     * until the callback arrives, operations of the same type and UUID are held back so the
+     * late callback cannot complete them.
+     */
+    static final long LATE_CALLBACK_GRACE_MS = 2000;
+
+    static final int TYPE_WRITE = 1;
+    static final int TYPE_READ = 2;
+    static final int TYPE_WRITE_DESCRIPTOR = 3;
+    static final int TYPE_MTU = 4;
+    static final int TYPE_PHY = 5;
+    /**
+     * Operations that complete as soon as they were issued, e.g. a local notification
+     * registration. They are still queued so they keep their order relative to the others.
+     */
+    static final int TYPE_IMMEDIATE = 6;
+
+    /**
+     * One queued GATT request. {@link #execute(GattTransport)} runs on the I/O thread.
+     */
+    abstract static class Operation implements BleWritePipeline.PendingWrite {
+        final int type;
+        final UUID uuid;
+        final BluetoothLeService.WriteCallBack callback;
+        volatile boolean cancelled;
+        // Issue order on this scheduler; set on the I/O thread when the operation starts.
+        long generation;
+        long timeoutMs = OPERATION_TIMEOUT_MS;
+
+        Operation(int type, UUID uuid, BluetoothLeService.WriteCallBack callback) {
+            this.type = type;
+            this.uuid = uuid;
+            this.callback = callback;
+        }
+
+        /**
+         * @return false if the stack refused the request.
+         */
+        abstract boolean execute(GattTransport transport);
+
+        /**
+         * Skips the operation if it has not started yet. Its callback is not invoked.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        /**
+         * @return true if a callback for {@code type} and {@code uuid} may belong to this operation.
+         */
+        boolean matches(int type, UUID uuid) {
+            return this.type == type && (this.uuid == null || uuid == null || this.uuid.equals(uuid));
+        }
+    }
+
+    private final Handler mHandler;
+    private final ArrayDeque<Operation> mQueue = new ArrayDeque<Operation>();
+    private GattTransport mTransport;
+    private Operation mCurrent;
+    private long mCurrentStartedAt;
+    private long mGeneration;
+    // Operations that timed out and whose callback the stack may still deliver, oldest first.
+    private final ArrayDeque<Operation> mTimedOut = new ArrayDeque<Operation>();
+
+    // Issue-to-callback latency per operation type; null for types without a callback.
+    private final LatencyHistogram[] mLatency = new LatencyHistogram[TYPE_IMMEDIATE + 1];
+    private final AtomicLong mFailed;
+    private final AtomicLong mTimeouts;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        public void run() {
+            if (mCurrent != null) {
+                Log.w(TAG, "operation timeout, type:" + mCurrent.type + " uuid:" + mCurrent.uuid
+                        + " generation:" + mCurrent.generation);
+                mTimeouts.incrementAndGet();
+                mTimedOut.add(mCurrent);
+                mHandler.removeCallbacks(mLateCallbackRunnable);
+                mHandler.postDelayed(mLateCallbackRunnable, LATE_CALLBACK_GRACE_MS);
+                complete(false);
+            }
+        }
+    };
+
+    private final Runnable mLateCallbackRunnable = new Runnable() {
+        public void run() {
+            if (!mTimedOut.isEmpty()) {
+                Log.w(TAG, "no late callback for " + mTimedOut.size() + " timed out operation(s)");
+                mTimedOut.clear();
+                next();
+            }
+        }
+    };
+
+    GattOperationScheduler(Handler handler, BleMetrics metrics) {
+        this.mHandler = handler;
+        this.mLatency[TYPE_WRITE] = metrics.histogram(BleMetrics.GATT_WRITE_US);
+        this.mLatency[TYPE_READ] = metrics.histogram(BleMetrics.GATT_READ_US);
+        this.mLatency[TYPE_WRITE_DESCRIPTOR] = metrics.histogram(BleMetrics.GATT_DESCRIPTOR_US);
+        this.mLatency[TYPE_MTU] = metrics.histogram(BleMetrics.GATT_MTU_US);
+        this.mLatency[TYPE_PHY] = metrics.histogram(BleMetrics.GATT_PHY_US);
+        this.mFailed = metrics.counter(BleMetrics.GATT_FAILED);
+        this.mTimeouts = metrics.counter(BleMetrics.GATT_TIMEOUTS);
+    }
+
+    /**
+     * Binds the scheduler to a new connection. Operations still queued for the previous
+     * connection are failed.
+     */
+    void setTransport(final GattTransport transport) {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                failAll();
+                mTransport = transport;
+            }
+        });
+    }
+
+    void enqueue(final Operation operation) {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                mQueue.add(operation);
+                if (mCurrent == null) {
+                    next();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fails the operation in progress and everything still queued, e.g. after a disconnect.
+     */
+    void clear() {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                failAll();
+            }
+        });
+    }
+
+    /**
+     * Completes the pending operation if it matches the callback that fired. Called from the
+     * {@code BluetoothGattCallback} methods on the binder thread. A callback that belongs to an
+     * operation which already timed out is consumed and releases the operations held back for it.
+     */
+    void onOperationComplete(final int type, final UUID uuid, final boolean success) {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                for (Iterator<Operation> it = mTimedOut.iterator(); it.hasNext(); ) {
+                    Operation late = it.next();
+                    if (late.matches(type, uuid)) {
+                        Log.w(TAG, "late callback ignored, type:" + type + " uuid:" + uuid
+                                + " generation:" + late.generation);
+                        it.remove();
+                        if (mTimedOut.isEmpty()) {
+                            mHandler.removeCallbacks(mLateCallbackRunnable);
+                        }
+                        if (mCurrent == null) {
+                            next();
+                        }
+                        return;
+                    }
+                }
+                if (mCurrent != null && mCurrent.matches(type, uuid)) {
+                    complete(success);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if a timed out operation could still get a callback that {@code operation}
+     * would take for its own.
+     */
+    private boolean awaitsLateCallback(Operation operation) {
+        for (Operation late : this.mTimedOut) {
+            if (late.matches(operation.type, operation.uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void next() {
+        while (this.mCurrent == null) {
+            Operation operation = this.mQueue.peek();
+            if (operation == null) {
+                return;
+            }
+            if (operation.cancelled) {
+                this.mQueue.poll();
+                continue;
+            }
+            if (operation.type != TYPE_IMMEDIATE && awaitsLateCallback(operation)) {
+                // resumes from onOperationComplete or mLateCallbackRunnable
+                return;
+            }
+            this.mQueue.poll();
+            this.mCurrent = operation;
+            this.mCurrentStartedAt = System.nanoTime();
+            operation.generation = ++this.mGeneration;
+            boolean started = this.mTransport != null && operation.execute(this.mTransport);
+            if (!started) {
+                Log.w(TAG, "operation refused, type:" + operation.type + " uuid:" + operation.uuid);
+                this.mFailed.incrementAndGet();
+                finishCurrent(false);
+            } else if (operation.type == TYPE_IMMEDIATE) {
+                finishCurrent(true);
+            } else {
+                this.mHandler.postDelayed(this.mTimeoutRunnable, operation.timeoutMs);
+            }
+        }
+    }
+
+    private void complete(boolean success) {
+        this.mHandler.removeCallbacks(this.mTimeoutRunnable);
+        LatencyHistogram latency = this.mLatency[this.mCurrent.type];
+        if (!success) {
+            this.mFailed.incrementAndGet();
+        } else if (latency != null) {
+            latency.record((System.nanoTime() - this.mCurrentStartedAt) / 1000);
+        }
+        finishCurrent(success);
+        next();
+    }
+
+    private void finishCurrent(boolean success) {
+        Operation operation = this.mCurrent;
+        this.mCurrent = null;
+        if (operation.callback != null && !operation.cancelled) {
+            operation.callback.onWrite(success);
+        }
+    }
+
+    private void failAll() {
+        this.mHandler.removeCallbacks(this.mTimeoutRunnable);
+        this.mHandler.removeCallbacks(this.mLateCallbackRunnable);
+        this.mTimedOut.clear();
+        if (this.mCurrent != null) {
+            finishCurrent(false);
+        }
+        Operation operation;
+        while ((operation = this.mQueue.poll()) != null) {
+            if (operation.callback != null && !operation.cancelled) {
+                operation.callback.onWrite(false);
+            }
+        }
+    }
+
+    static Operation write(final UUID serviceUuid, final UUID characteristicUuid, final byte[] value,
+                           final boolean withResponse, BluetoothLeService.WriteCallBack callback) {
+        return new Operation(TYPE_WRITE, characteristicUuid, callback) {
+            boolean execute(GattTransport transport) {
+                return transport.writeCharacteristic(serviceUuid, characteristicUuid, value, withResponse);
+            }
+        };
+    }
+
+    /**
+     * Writes {@code value} to the characteristic. A null {@code value} writes the
+     * characteristic's current value, a {@code writeType} of -1 keeps its current write type.
+     */
+    static Operation write(final BluetoothGattCharacteristic characteristic, final byte[] value,
+                           final int writeType, BluetoothLeService.WriteCallBack callback) {
+        return new Operation(TYPE_WRITE, characteristic.getUuid(), callback) {
+            boolean execute(GattTransport transport) {
+                int type = writeType != -1 ? writeType : characteristic.getWriteType();
+                return characteristic.getService() != null && transport.writeCharacteristic(
+                        characteristic.getService().getUuid(), characteristic.getUuid(),
+                        value != null ? value : characteristic.getValue(),
+                        type != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            }
+        };
+    }
+
+    static Operation read(final UUID serviceUuid, final UUID characteristicUuid, BluetoothLeService.WriteCallBack callback) {
+        return new Operation(TYPE_READ, characteristicUuid, callback) {
+            boolean execute(GattTransport transport) {
+                return transport.readCharacteristic(serviceUuid, characteristicUuid);
+            }
+        };
+    }
+
+    static Operation read(final BluetoothGattCharacteristic characteristic, BluetoothLeService.WriteCallBack callback) {
+        return new Operation(TYPE_READ, characteristic.getUuid(), callback) {
+            boolean execute(GattTransport transport) {
+                return characteristic.getService() != null
+                        && transport.readCharacteristic(characteristic.getService().getUuid(), characteristic.getUuid());
+            }
+        };
+    }
+
+    static Operation writeDescriptor(final UUID serviceUuid, final UUID characteristicUuid, final UUID descriptorUuid,
+                                     final byte[] value, BluetoothLeService.WriteCallBack callback) {
+        return new Operation(TYPE_WRITE_DESCRIPTOR, descriptorUuid, callback) {
+            boolean execute(GattTransport transport) {
+                return transport.writeDescriptor(serviceUuid, characteristicUuid, descriptorUuid, value);
+            }
+        };
+    }
+
+    static Operation requestMtu(final int mtu, BluetoothLeService.WriteCallBack callback) {
+        return new Operation(TYPE_MTU, null, callback) {
+            boolean execute(GattTransport transport) {
+                return transport.requestMtu(mtu);
+            }
+        };
+    }
+
+    /**
+     * Requests new connection parameters. The stack reports no completion, so the operation
+     * finishes as soon as the request was accepted.
+     */
+    static Operation requestConnectionPriority(final int connectionPriority, BluetoothLeService.WriteCallBack callback) {
+        return new Operation(TYPE_IMMEDIATE, null, callback) {
+            boolean execute(GattTransport transport) {
+                return transport.requestConnectionPriority(connectionPriority);
+            }
+        };
+    }
+
+    /**
+     * Requests a PHY. Completes on {@code onPhyUpdate} or after {@link #PHY_TIMEOUT_MS}.
+     */
+    static Operation setPreferredPhy(final int txPhy, final int rxPhy, final int phyOptions,
+                                     BluetoothLeService.WriteCallBack callback) {
+        Operation operation = new Operation(TYPE_PHY, null, callback) {
+            boolean execute(GattTransport transport) {
+                return transport.setPreferredPhy(txPhy, rxPhy, phyOptions);
+            }
+        };
+        operation.timeoutMs = PHY_TIMEOUT_MS;
+        return operation;
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.util.UUID;
+
+/**
+ * GATT client link to one bracelet, as used by the session layer. Attributes are addressed by
+ * UUID and values are plain byte arrays, so implementations need not be backed by
+ * {@code android.bluetooth}: {@link AndroidGattTransport} wraps a {@code BluetoothGatt},
+ * {@link SimulatedBraceletNetwork} runs virtual bracelets on a plain JVM.
+ * <p>
+ * Like {@code BluetoothGatt}, a transport accepts one outstanding read, write, descriptor write,
+ * MTU or PHY request at a time and reports its result through the {@link Listener}; requests
+ * made while another is pending are refused. Constants share the values of their Android
+ * counterparts.
+ */
+public interface GattTransport {
+
+    int GATT_SUCCESS = 0;
+
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTED = 2;
+
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+    int PROPERTY_INDICATE = 0x20;
+
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    int PHY_LE_1M_MASK = 1;
+    int PHY_LE_2M_MASK = 2;
+    int PHY_OPTION_NO_PREFERRED = 0;
+
+    /**
+     * Events of a transport, in the order they occurred. May be called on any thread.
+     */
+    interface Listener {
+        void onConnectionStateChange(GattTransport transport, int status, int newState);
+
+        void onServicesDiscovered(GattTransport transport, int status);
+
+        void onCharacteristicRead(GattTransport transport, UUID serviceUuid, UUID characteristicUuid,
+                                  byte[] value, int status);
+
+        void onCharacteristicWrite(GattTransport transport, UUID characteristicUuid, int status);
+
+        void onDescriptorWrite(GattTransport transport, UUID descriptorUuid, int status);
+
+        void onCharacteristicChanged(GattTransport transport, UUID characteristicUuid, byte[] value);
+
+        void onMtuChanged(GattTransport transport, int mtu, int status);
+
+        void onPhyUpdate(GattTransport transport, int txPhy, int rxPhy, int status);
+    }
+
+    /**
+     * Opens transports, the equivalent of {@code BluetoothDevice#connectGatt}.
+     */
+    interface Factory {
+        /**
+         * Starts connecting to the bracelet at {@code address}.
+         *
+         * @return the new transport, or null if the connection could not be initiated.
+         */
+        GattTransport open(String address, boolean autoConnect, Listener listener);
+    }
+
+    String getAddress();
+
+    /**
+     * Reconnects through this transport after it was disconnected.
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Releases the transport. No further events are reported.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * Drops the attribute database cached for this bracelet, so the next discovery reads it
+     * from the bracelet.
+     */
+    boolean refresh();
+
+    /**
+     * @return the properties of the characteristic, or -1 if services are not discovered or the
+     * characteristic does not exist.
+     */
+    int getProperties(UUID serviceUuid, UUID characteristicUuid);
+
+    boolean hasDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid);
+
+    /**
+     * @param withResponse false to use write-without-response.
+     */
+    boolean writeCharacteristic(UUID serviceUuid, UUID characteristicUuid, byte[] value, boolean withResponse);
+
+    boolean readCharacteristic(UUID serviceUuid, UUID characteristicUuid);
+
+    /**
+     * Registers or unregisters for notifications locally. Completes at once, without an event.
+     */
+    boolean setCharacteristicNotification(UUID serviceUuid, UUID characteristicUuid, boolean enabled);
+
+    boolean writeDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid, byte[] value);
+
+    boolean requestMtu(int mtu);
+
+    /**
+     * Requests new connection parameters. Completes at once, without an event.
+     */
+    boolean requestConnectionPriority(int connectionPriority);
+
+    /**
+     * @return false if the request was refused, e.g. because the controller lacks 2M PHY.
+     */
+    boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions);
+}
@@ -0,0 +1,95 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+
+import java.util.UUID;
+
+/**
+ * Decodes the heart-rate notifications of one connection into a {@link HeartRateSamples}
+ * batch and hands it to the listener when full, when its first sample is older than the
+ * maximum age, or on {@link #flushLater()}. Confined to the notification consumer of the
+ * heart-rate characteristic: the age timer runs on the handler but only posts the flush back
+ * to that consumer, like the expiry of {@link InboundMessageRouter}. The listener is therefore
+ * only ever called from that one thread, never from the BLE thread, and needs no lock.
+ * <p>
+ * The batch is cleared and reused once the listener returned, so all-day streaming does not
+ * allocate per sample or per batch.
+ */
+class HeartRateDecoder {
+
+    static final int DEFAULT_BATCH_SIZE = 64;
+    static final long DEFAULT_MAX_AGE_MS = 2000;
+
+    private final BluetoothGatt mGatt;
+    private final BluetoothLeService.HeartRateListener mListener;
+    private final Handler mHandler;
+    private final NotificationPipeline mPipeline;
+    private final UUID mCharacteristicUuid;
+    private final long mMaxAgeMs;
+    private final HeartRateSamples mSamples;
+    private volatile long mMalformedCount;
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable mAgeFlush = new Runnable() {
+        public void run() {
+            flushLater();
+        }
+    };
+
+    HeartRateDecoder(BluetoothGatt gatt, BluetoothLeService.HeartRateListener listener, Handler handler,
+                     NotificationPipeline pipeline, UUID characteristicUuid, int batchSize, long maxAgeMs) {
+        this.mGatt = gatt;
+        this.mListener = listener;
+        this.mHandler = handler;
+        this.mPipeline = pipeline;
+        this.mCharacteristicUuid = characteristicUuid;
+        this.mMaxAgeMs = maxAgeMs;
+        this.mSamples = new HeartRateSamples(batchSize);
+    }
+
+    /**
+     * Called on the consumer of the heart-rate characteristic.
+     */
+    void onNotification(byte[] value, long receivedAt) {
+        if (!this.mSamples.append(value, receivedAt)) {
+            this.mMalformedCount++;
+            return;
+        }
+        if (this.mSamples.size() == 1) {
+            this.mHandler.postDelayed(this.mAgeFlush, this.mMaxAgeMs);
+        }
+        if (this.mSamples.isFull()) {
+            flush();
+        }
+    }
+
+    /**
+     * Hands the samples collected so far to the listener, after the notifications already
+     * queued for the characteristic. May be called from any thread, e.g. on disconnect.
+     */
+    void flushLater() {
+        this.mPipeline.post(this.mCharacteristicUuid, this.mFlush);
+    }
+
+    long getMalformedCount() {
+        return this.mMalformedCount;
+    }
+
+    private void flush() {
+        this.mHandler.removeCallbacks(this.mAgeFlush);
+        if (this.mSamples.size() == 0) {
+            return;
+        }
+        try {
+            this.mListener.onHeartRateSamples(this.mGatt, this.mSamples);
+        } finally {
+            this.mSamples.clear();
+        }
+    }
+}
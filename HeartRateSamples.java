@@ -0,0 +1,169 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+/**
+ * Column store of decoded Heart Rate Measurement (0x2A37) samples. Every field lives in its own
+ * primitive array indexed by sample, RR intervals in a shared column addressed through
+ * {@link #rrOffsets()}, so a batch holds no per-sample objects and analytics can scan a column
+ * directly. Buffers are reused after {@link #clear()}. Not thread-safe; pure Java so it can be
+ * exercised off-device.
+ */
+public final class HeartRateSamples {
+
+    public static final int SENSOR_CONTACT_UNSUPPORTED = 0;
+    public static final int SENSOR_CONTACT_NOT_DETECTED = 2;
+    public static final int SENSOR_CONTACT_DETECTED = 3;
+    public static final int ENERGY_NOT_PRESENT = -1;
+
+    private static final int FLAG_HR_UINT16 = 0x01;
+    private static final int FLAG_SENSOR_CONTACT_SHIFT = 1;
+    private static final int FLAG_ENERGY_EXPENDED = 0x08;
+    private static final int FLAG_RR_INTERVALS = 0x10;
+
+    private final long[] mTimestamps;
+    private final int[] mHeartRates;
+    private final byte[] mSensorContact;
+    private final int[] mEnergyExpended;
+    // RR values of sample i are mRrIntervals[mRrOffsets[i] .. mRrOffsets[i + 1])
+    private final int[] mRrOffsets;
+    private int[] mRrIntervals;
+    private int mSize;
+
+    public HeartRateSamples(int capacity) {
+        this.mTimestamps = new long[capacity];
+        this.mHeartRates = new int[capacity];
+        this.mSensorContact = new byte[capacity];
+        this.mEnergyExpended = new int[capacity];
+        this.mRrOffsets = new int[capacity + 1];
+        this.mRrIntervals = new int[capacity * 2];
+    }
+
+    /**
+     * Decodes one measurement and appends it.
+     *
+     * @return false if the value is malformed or the batch is full; nothing is appended then.
+     */
+    public boolean append(byte[] value, long timestamp) {
+        if (isFull() || value == null || value.length < 2) {
+            return false;
+        }
+        int flags = value[0] & 0xFF;
+        int offset = 1;
+        int heartRate;
+        if ((flags & FLAG_HR_UINT16) != 0) {
+            if (value.length < offset + 2) {
+                return false;
+            }
+            heartRate = uint16(value, offset);
+            offset += 2;
+        } else {
+            heartRate = value[offset] & 0xFF;
+            offset += 1;
+        }
+        int energy = ENERGY_NOT_PRESENT;
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (value.length < offset + 2) {
+                return false;
+            }
+            energy = uint16(value, offset);
+            offset += 2;
+        }
+        int rrCount = (flags & FLAG_RR_INTERVALS) != 0 ? (value.length - offset) / 2 : 0;
+        int rrStart = this.mRrOffsets[this.mSize];
+        if (rrStart + rrCount > this.mRrIntervals.length) {
+            int[] grown = new int[Math.max(rrStart + rrCount, this.mRrIntervals.length * 2)];
+            System.arraycopy(this.mRrIntervals, 0, grown, 0, rrStart);
+            this.mRrIntervals = grown;
+        }
+        for (int i = 0; i < rrCount; i++) {
+            this.mRrIntervals[rrStart + i] = uint16(value, offset + i * 2);
+        }
+        int index = this.mSize;
+        this.mTimestamps[index] = timestamp;
+        this.mHeartRates[index] = heartRate;
+        this.mSensorContact[index] = (byte) ((flags >> FLAG_SENSOR_CONTACT_SHIFT) & 0x03);
+        this.mEnergyExpended[index] = energy;
+        this.mRrOffsets[index + 1] = rrStart + rrCount;
+        this.mSize++;
+        return true;
+    }
+
+    public void clear() {
+        this.mSize = 0;
+    }
+
+    public int size() {
+        return this.mSize;
+    }
+
+    public int capacity() {
+        return this.mTimestamps.length;
+    }
+
+    public boolean isFull() {
+        return this.mSize == this.mTimestamps.length;
+    }
+
+    public long timestamp(int index) {
+        return this.mTimestamps[index];
+    }
+
+    /**
+     * @return beats per minute.
+     */
+    public int heartRate(int index) {
+        return this.mHeartRates[index];
+    }
+
+    /**
+     * @return one of the {@code SENSOR_CONTACT_*} values.
+     */
+    public int sensorContact(int index) {
+        return this.mSensorContact[index];
+    }
+
+    /**
+     * @return kilojoules, or {@link #ENERGY_NOT_PRESENT}.
+     */
+    public int energyExpended(int index) {
+        return this.mEnergyExpended[index];
+    }
+
+    public int rrCount(int index) {
+        return this.mRrOffsets[index + 1] - this.mRrOffsets[index];
+    }
+
+    /**
+     * @return the {@code n}-th RR interval of a sample, in units of 1/1024 second.
+     */
+    public int rrInterval(int index, int n) {
+        return this.mRrIntervals[this.mRrOffsets[index] + n];
+    }
+
+    /**
+     * Backing columns for bulk processing. Only the first {@link #size()} entries (and
+     * {@code rrOffsets()[size()]} RR values) are valid, and only until the batch is reused.
+     */
+    public long[] timestamps() {
+        return this.mTimestamps;
+    }
+
+    public int[] heartRates() {
+        return this.mHeartRates;
+    }
+
+    public int[] energyExpended() {
+        return this.mEnergyExpended;
+    }
+
+    public int[] rrOffsets() {
+        return this.mRrOffsets;
+    }
+
+    public int[] rrIntervals() {
+        return this.mRrIntervals;
+    }
+
+    private static int uint16(byte[] value, int offset) {
+        return (value[offset] & 0xFF) | ((value[offset + 1] & 0xFF) << 8);
+    }
+}
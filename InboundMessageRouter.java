@@ -0,0 +1,191 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reassembles notifications of the characteristics that have {@link BluetoothLeService.MessageListener}s
+ * and hands complete messages to them. Keeps one {@link InboundReassembler} per bracelet address
+ * and characteristic. Runs on the notification consumer threads; a characteristic is always served
+ * by the same consumer, so each reassembler is only used by one thread.
+ * <p>
+ * While a reassembler holds a partial message, a timer on the BLE handler is armed for its
+ * timeout. When it fires, the expiry is posted back to the characteristic's consumer, so a
+ * message whose last packet was full-size is delivered, and a stale fragment dropped, even if
+ * no further notification arrives.
+ */
+class InboundMessageRouter {
+
+    private static final BluetoothLeService.MessageListener[] NONE = new BluetoothLeService.MessageListener[0];
+
+    private static final class Link {
+        final ConcurrentHashMap<UUID, Entry> entries = new ConcurrentHashMap<UUID, Entry>();
+    }
+
+    /**
+     * The reassembler of one characteristic and the timer that expires its open frame.
+     */
+    private final class Entry implements Runnable {
+        final UUID characteristicUuid;
+        final InboundReassembler reassembler;
+        final Runnable expiry = new Runnable() {
+            public void run() {
+                reassembler.expire(SystemClock.elapsedRealtime());
+            }
+        };
+
+        Entry(UUID characteristicUuid, InboundReassembler reassembler) {
+            this.characteristicUuid = characteristicUuid;
+            this.reassembler = reassembler;
+        }
+
+        /**
+         * Timer callback on the BLE handler; the reassembler itself is only touched by the consumer.
+         */
+        public void run() {
+            mPipeline.post(this.characteristicUuid, this.expiry);
+        }
+    }
+
+    private final Handler mHandler;
+    private final NotificationPipeline mPipeline;
+
+    private final ConcurrentHashMap<UUID, BluetoothLeService.MessageListener[]> mListeners =
+            new ConcurrentHashMap<UUID, BluetoothLeService.MessageListener[]>();
+    private final ConcurrentHashMap<UUID, MessageFrameSizer> mSizers = new ConcurrentHashMap<UUID, MessageFrameSizer>();
+    private final ConcurrentHashMap<UUID, Integer> mPacketSizes = new ConcurrentHashMap<UUID, Integer>();
+    private final ConcurrentHashMap<String, Link> mLinks = new ConcurrentHashMap<String, Link>();
+
+    /**
+     * @param handler  runs the expiry timers.
+     * @param pipeline the pipeline whose consumers call {@link #onNotification}.
+     */
+    InboundMessageRouter(Handler handler, NotificationPipeline pipeline) {
+        this.mHandler = handler;
+        this.mPipeline = pipeline;
+    }
+
+    synchronized void addListener(UUID characteristicUuid, BluetoothLeService.MessageListener listener) {
+        BluetoothLeService.MessageListener[] listeners = this.mListeners.get(characteristicUuid);
+        if (listeners == null) {
+            listeners = NONE;
+        }
+        for (BluetoothLeService.MessageListener registered : listeners) {
+            if (registered.equals(listener)) {
+                return;
+            }
+        }
+        BluetoothLeService.MessageListener[] updated = new BluetoothLeService.MessageListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        this.mListeners.put(characteristicUuid, updated);
+    }
+
+    synchronized void removeListener(UUID characteristicUuid, BluetoothLeService.MessageListener listener) {
+        BluetoothLeService.MessageListener[] listeners = this.mListeners.get(characteristicUuid);
+        if (listeners == null) {
+            return;
+        }
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(listener)) {
+                if (listeners.length == 1) {
+                    this.mListeners.remove(characteristicUuid);
+                } else {
+                    BluetoothLeService.MessageListener[] updated = new BluetoothLeService.MessageListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, updated, 0, i);
+                    System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+                    this.mListeners.put(characteristicUuid, updated);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sets how the total length of a message on {@code characteristicUuid} is read from its first
+     * packet. Applies to reassemblers created afterwards.
+     */
+    void setFrameSizer(UUID characteristicUuid, MessageFrameSizer sizer) {
+        if (sizer == null) {
+            this.mSizers.remove(characteristicUuid);
+        } else {
+            this.mSizers.put(characteristicUuid, sizer);
+        }
+    }
+
+    /**
+     * Sets the size of the full notification packets the bracelet sends on
+     * {@code characteristicUuid}; 0 detects it from the traffic, which is the default.
+     */
+    void setPacketSize(UUID characteristicUuid, int packetSize) {
+        if (packetSize <= 0) {
+            this.mPacketSizes.remove(characteristicUuid);
+        } else {
+            this.mPacketSizes.put(characteristicUuid, packetSize);
+        }
+    }
+
+    /**
+     * Drops the partial messages of a connection that went away.
+     */
+    void forget(String address) {
+        Link link = address == null ? null : this.mLinks.remove(address);
+        if (link != null) {
+            for (Entry entry : link.entries.values()) {
+                this.mHandler.removeCallbacks(entry);
+            }
+        }
+    }
+
+    /**
+     * Feeds a notification. Called on a notification consumer thread. {@code gatt} is only
+     * passed on to the listeners and may be null.
+     */
+    void onNotification(String address, final BluetoothGatt gatt, final UUID characteristicUuid, byte[] value,
+                        long receivedAt) {
+        if (address == null || !this.mListeners.containsKey(characteristicUuid)) {
+            return;
+        }
+        Link link = link(address);
+        Entry entry = link.entries.get(characteristicUuid);
+        if (entry == null) {
+            InboundReassembler reassembler = new InboundReassembler(new InboundReassembler.Listener() {
+                public void onMessage(byte[] message, int length) {
+                    BluetoothLeService.MessageListener[] listeners = mListeners.get(characteristicUuid);
+                    if (listeners != null) {
+                        for (BluetoothLeService.MessageListener listener : listeners) {
+                            listener.onMessage(gatt, characteristicUuid, message, length);
+                        }
+                    }
+                }
+            }, this.mSizers.get(characteristicUuid), InboundReassembler.DEFAULT_MAX_MESSAGE_SIZE,
+                    InboundReassembler.DEFAULT_TIMEOUT_MS);
+            entry = new Entry(characteristicUuid, reassembler);
+            link.entries.put(characteristicUuid, entry);
+        }
+        Integer packetSize = this.mPacketSizes.get(characteristicUuid);
+        entry.reassembler.setPacketSize(packetSize != null ? packetSize : 0);
+        entry.reassembler.onPacket(value, receivedAt);
+        this.mHandler.removeCallbacks(entry);
+        if (entry.reassembler.isInFrame()) {
+            // one tick late at worst, so the frame is already past its timeout when it fires
+            this.mHandler.postDelayed(entry, entry.reassembler.getTimeoutMs() + 1);
+        }
+    }
+
+    private Link link(String address) {
+        Link link = this.mLinks.get(address);
+        if (link == null) {
+            Link created = new Link();
+            link = this.mLinks.putIfAbsent(address, created);
+            if (link == null) {
+                link = created;
+            }
+        }
+        return link;
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+/**
+ * Rebuilds bracelet messages from notification packets, mirroring the outbound framing of
+ * {@link PacketFragmenter}: the first packet carries raw data, every following packet starts
+ * with a one-byte packet_counter. Packets shorter than the packet size end a message.
+ * <p>
+ * Continuation packets are placed by their counter, so reordered packets are accepted and
+ * duplicates are ignored. A message is complete once the length reported by the
+ * {@link MessageFrameSizer} has arrived. Without a sizer, a short continuation packet ends the
+ * message, and a frame that could already be complete (no missing counters) is delivered once
+ * no packet arrived for the timeout. Incomplete frames older than the timeout are discarded.
+ * The owner calls {@link #expire(long)} when the timeout of an open frame elapses.
+ * <p>
+ * Unless a packet size is configured, it is taken from the traffic: the longest packet seen so
+ * far. That is never more than the bracelet's real packet size, so a packet is only treated as
+ * short when it really is; a full-size last packet at worst waits for the timeout.
+ * <p>
+ * Messages are assembled in one reusable buffer; the array passed to the {@link Listener} is
+ * only valid during the call. Not thread-safe; pure Java so it can be exercised off-device.
+ */
+final class InboundReassembler {
+
+    static final long DEFAULT_TIMEOUT_MS = 1000;
+    static final int DEFAULT_MAX_MESSAGE_SIZE = 4096;
+    /**
+     * Payload of a notification at the default ATT MTU of 23.
+     */
+    static final int DEFAULT_PACKET_SIZE = 20;
+    private static final int MAX_COUNTERS = 256;
+
+    interface Listener {
+        /**
+         * @param message buffer holding the message in its first {@code length} bytes. Copy it
+         *                to keep it beyond this call.
+         */
+        void onMessage(byte[] message, int length);
+    }
+
+    private final Listener mListener;
+    private final MessageFrameSizer mSizer;
+    private final int mMaxMessageSize;
+    private final long mTimeoutMs;
+    // 0 while the packet size is detected from the traffic
+    private int mConfiguredPacketSize;
+    private int mObservedPacketSize = DEFAULT_PACKET_SIZE;
+
+    private byte[] mBuffer = new byte[256];
+    private final long[] mReceived = new long[MAX_COUNTERS / 64];
+    private boolean mInFrame;
+    private int mPacketSize;
+    private int mFirstLength;
+    private int mExpectedLength;
+    private int mLength;
+    private int mReceivedBytes;
+    // counter of the short packet that ends the frame, -1 while unknown
+    private int mFinalCounter;
+    private int mHighestCounter;
+    private long mLastPacketAt;
+
+    private long mMessageCount;
+    private long mDuplicateCount;
+    private long mTimeoutCount;
+    private long mDiscardedCount;
+
+    InboundReassembler(Listener listener, MessageFrameSizer sizer, int maxMessageSize, long timeoutMs) {
+        this.mListener = listener;
+        this.mSizer = sizer;
+        this.mMaxMessageSize = maxMessageSize;
+        this.mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Sets the size of the bracelet's full notification packets; 0 detects it from the traffic.
+     * Applies from the next message on.
+     */
+    void setPacketSize(int packetSize) {
+        this.mConfiguredPacketSize = packetSize;
+    }
+
+    /**
+     * @return true while a partial message waits for more packets.
+     */
+    boolean isInFrame() {
+        return this.mInFrame;
+    }
+
+    long getTimeoutMs() {
+        return this.mTimeoutMs;
+    }
+
+    /**
+     * Feeds one notification value received at {@code now} (milliseconds, any monotonic clock).
+     */
+    void onPacket(byte[] packet, long now) {
+        if (packet == null || packet.length == 0) {
+            return;
+        }
+        expire(now);
+        this.mLastPacketAt = now;
+        if (packet.length > this.mObservedPacketSize && packet.length <= this.mMaxMessageSize) {
+            this.mObservedPacketSize = packet.length;
+        }
+        if (!this.mInFrame) {
+            startFrame(packet);
+        } else {
+            addContinuation(packet);
+        }
+        if (this.mInFrame && isComplete()) {
+            deliver();
+        }
+    }
+
+    /**
+     * Ends a frame that has been quiet for longer than the timeout: a frame that may be
+     * complete is delivered, anything else is discarded.
+     */
+    void expire(long now) {
+        if (!this.mInFrame || now - this.mLastPacketAt <= this.mTimeoutMs) {
+            return;
+        }
+        if (this.mExpectedLength == MessageFrameSizer.UNKNOWN && this.mFinalCounter == -1 && isContiguous()) {
+            // a full-size last packet cannot be told apart from one that is followed by more
+            deliver();
+        } else {
+            this.mTimeoutCount++;
+            reset();
+        }
+    }
+
+    /**
+     * Drops any partial frame, e.g. after a disconnect.
+     */
+    void reset() {
+        this.mInFrame = false;
+        for (int i = 0; i < this.mReceived.length; i++) {
+            this.mReceived[i] = 0;
+        }
+    }
+
+    long getMessageCount() {
+        return this.mMessageCount;
+    }
+
+    long getDuplicateCount() {
+        return this.mDuplicateCount;
+    }
+
+    long getTimeoutCount() {
+        return this.mTimeoutCount;
+    }
+
+    /**
+     * @return packets or frames dropped as malformed or oversized.
+     */
+    long getDiscardedCount() {
+        return this.mDiscardedCount;
+    }
+
+    private void startFrame(byte[] packet) {
+        int expected = this.mSizer == null ? MessageFrameSizer.UNKNOWN : this.mSizer.messageLength(packet);
+        if (expected == MessageFrameSizer.INVALID || expected > this.mMaxMessageSize
+                || packet.length > this.mMaxMessageSize) {
+            this.mDiscardedCount++;
+            return;
+        }
+        this.mInFrame = true;
+        // a bracelet that uses a larger MTU than we were told about
+        this.mPacketSize = Math.max(this.mConfiguredPacketSize > 0 ? this.mConfiguredPacketSize : this.mObservedPacketSize,
+                packet.length);
+        this.mFirstLength = packet.length;
+        this.mExpectedLength = expected;
+        this.mFinalCounter = -1;
+        this.mHighestCounter = -1;
+        this.mLength = 0;
+        ensureCapacity(Math.max(expected, packet.length));
+        System.arraycopy(packet, 0, this.mBuffer, 0, packet.length);
+        this.mLength = packet.length;
+        this.mReceivedBytes = packet.length;
+    }
+
+    private void addContinuation(byte[] packet) {
+        int counter = packet[0] & 0xFF;
+        int dataLength = packet.length - 1;
+        if (packet.length > this.mPacketSize
+                || (this.mFinalCounter != -1 && counter > this.mFinalCounter)) {
+            // does not fit the frame in progress
+            this.mDiscardedCount++;
+            return;
+        }
+        long bit = 1L << (counter & 63);
+        if ((this.mReceived[counter >> 6] & bit) != 0) {
+            this.mDuplicateCount++;
+            return;
+        }
+        int offset = this.mFirstLength + counter * (this.mPacketSize - 1);
+        int end = offset + dataLength;
+        if (end > this.mMaxMessageSize
+                || (this.mExpectedLength > 0 && end > this.mExpectedLength)) {
+            this.mDiscardedCount++;
+            reset();
+            return;
+        }
+        this.mReceived[counter >> 6] |= bit;
+        ensureCapacity(end);
+        System.arraycopy(packet, 1, this.mBuffer, offset, dataLength);
+        this.mReceivedBytes += dataLength;
+        if (end > this.mLength) {
+            this.mLength = end;
+        }
+        if (counter > this.mHighestCounter) {
+            this.mHighestCounter = counter;
+        }
+        if (packet.length < this.mPacketSize) {
+            this.mFinalCounter = counter;
+        }
+    }
+
+    private boolean isComplete() {
+        if (this.mExpectedLength >= 0) {
+            return this.mReceivedBytes >= this.mExpectedLength;
+        }
+        if (this.mHighestCounter == -1) {
+            // a short first packet is a whole message
+            return this.mFirstLength < this.mPacketSize;
+        }
+        return this.mFinalCounter != -1 && isContiguous();
+    }
+
+    private boolean isContiguous() {
+        for (int counter = 0; counter <= this.mHighestCounter; counter++) {
+            if ((this.mReceived[counter >> 6] & (1L << (counter & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deliver() {
+        int length = this.mExpectedLength >= 0 ? this.mExpectedLength : this.mLength;
+        this.mMessageCount++;
+        reset();
+        this.mListener.onMessage(this.mBuffer, length);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > this.mBuffer.length) {
+            byte[] grown = new byte[Math.min(this.mMaxMessageSize, Math.max(size, this.mBuffer.length * 2))];
+            System.arraycopy(this.mBuffer, 0, grown, 0, this.mLength);
+            this.mBuffer = grown;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram in the style of HdrHistogram: values below 16 get a bucket each, above
+ * that every power of two is split into 8 linear buckets, so any recorded value is reported
+ * within 12.5%. Recording is a few atomic increments, without locks or allocation, and may
+ * happen on any thread.
+ * <p>
+ * Snapshots read the buckets one by one; values recorded concurrently may be counted in the
+ * next snapshot instead.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = LINEAR_BUCKETS + 59 * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records {@code value}; negative values count as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.mCounts.incrementAndGet(index(value));
+        this.mSum.addAndGet(value);
+        long max = this.mMax.get();
+        while (value > max && !this.mMax.compareAndSet(max, value)) {
+            max = this.mMax.get();
+        }
+    }
+
+    /**
+     * @param reset true to start a new interval, e.g. for periodic snapshots.
+     */
+    public Snapshot snapshot(boolean reset) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = reset ? this.mCounts.getAndSet(i, 0) : this.mCounts.get(i);
+            count += counts[i];
+        }
+        long sum = reset ? this.mSum.getAndSet(0) : this.mSum.get();
+        long max = reset ? this.mMax.getAndSet(0) : this.mMax.get();
+        return new Snapshot(counts, count, sum, max);
+    }
+
+    static int index(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 3;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the largest value that falls into bucket {@code index}.
+     */
+    static long upperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        if (index == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of a histogram.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.mCounts = counts;
+            this.mCount = count;
+            this.mSum = sum;
+            this.mMax = max;
+        }
+
+        public long getCount() {
+            return this.mCount;
+        }
+
+        public long getMax() {
+            return this.mMax;
+        }
+
+        public double getMean() {
+            return this.mCount == 0 ? 0 : (double) this.mSum / this.mCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return the upper bound of the bucket holding that percentile, or 0 if empty.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (this.mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * this.mCount));
+            long seen = 0;
+            for (int i = 0; i < this.mCounts.length; i++) {
+                seen += this.mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), this.mMax);
+                }
+            }
+            return this.mMax;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+/**
+ * Connection parameters requested from the stack for a bracelet link. Sessions switch between
+ * them automatically, see {@link LinkProfileController}.
+ */
+public enum LinkProfile {
+    /**
+     * Shortest connection interval and the 2M PHY where both sides support it, for history
+     * syncs and notification bursts.
+     */
+    BULK_SYNC(GattTransport.CONNECTION_PRIORITY_HIGH, GattTransport.PHY_LE_2M_MASK),
+    /**
+     * The stack's balanced interval on the 1M PHY, which has the better range, while the link
+     * only waits for alerts.
+     */
+    IDLE(GattTransport.CONNECTION_PRIORITY_BALANCED, GattTransport.PHY_LE_1M_MASK);
+
+    final int connectionPriority;
+    final int phy;
+
+    LinkProfile(int connectionPriority, int phy) {
+        this.connectionPriority = connectionPriority;
+        this.phy = phy;
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Switches the link of one session between {@link LinkProfile}s. A large outbound transfer or a
+ * burst of inbound notifications moves it to {@link LinkProfile#BULK_SYNC}; once neither was
+ * seen for {@link #IDLE_DELAY_MS} it drops back to {@link LinkProfile#IDLE}. Profile changes are
+ * queued on the session's operation scheduler so they keep their order relative to the
+ * transfer that triggered them.
+ * <p>
+ * Transfer events arrive on the BLE I/O thread, notifications on any thread.
+ */
+class LinkProfileController implements BleWritePipeline.TransferListener {
+    private final static String TAG = LinkProfileController.class.getSimpleName();
+
+    /**
+     * Payloads from this size on are synced on the fast profile even if not streamed.
+     */
+    static final int LARGE_TRANSFER_BYTES = 512;
+    static final long BURST_WINDOW_MS = 1000;
+    static final int BURST_NOTIFICATIONS = 20;
+    static final long IDLE_DELAY_MS = 3000;
+
+    private final BleDeviceSession mSession;
+    private final Handler mHandler;
+
+    private volatile LinkProfile mProfile = LinkProfile.IDLE;
+    private int mActiveTransfers;
+    private long mLastTransferAt;
+
+    // inbound burst detection, guarded by this
+    private long mWindowStart;
+    private int mWindowCount;
+    private volatile long mLastBurstAt;
+    private volatile boolean mBurstPosted;
+
+    private volatile long mSwitchCount;
+
+    private final Runnable mBurstRunnable = new Runnable() {
+        public void run() {
+            mBurstPosted = false;
+            enterBulkSync();
+        }
+    };
+
+    private final Runnable mIdleRunnable = new Runnable() {
+        public void run() {
+            if (mActiveTransfers > 0) {
+                return;
+            }
+            long quietUntil = Math.max(mLastTransferAt, mLastBurstAt) + IDLE_DELAY_MS;
+            long now = SystemClock.elapsedRealtime();
+            if (now < quietUntil) {
+                mHandler.postDelayed(this, quietUntil - now);
+            } else {
+                apply(LinkProfile.IDLE);
+            }
+        }
+    };
+
+    LinkProfileController(BleDeviceSession session, Handler handler) {
+        this.mSession = session;
+        this.mHandler = handler;
+    }
+
+    LinkProfile getProfile() {
+        return this.mProfile;
+    }
+
+    long getSwitchCount() {
+        return this.mSwitchCount;
+    }
+
+    public void onTransferStarted(int length, boolean stream) {
+        if (isLarge(length, stream)) {
+            this.mActiveTransfers++;
+            enterBulkSync();
+        }
+    }
+
+    public void onTransferFinished(int length, boolean stream) {
+        if (isLarge(length, stream) && this.mActiveTransfers > 0) {
+            this.mActiveTransfers--;
+            this.mLastTransferAt = SystemClock.elapsedRealtime();
+            scheduleIdle();
+        }
+    }
+
+    /**
+     * Counts an inbound notification. Cheap enough for every notification; the I/O thread is
+     * only involved once a burst starts.
+     */
+    void onNotification(long receivedAt) {
+        synchronized (this) {
+            if (receivedAt - this.mWindowStart > BURST_WINDOW_MS) {
+                this.mWindowStart = receivedAt;
+                this.mWindowCount = 0;
+            }
+            if (++this.mWindowCount < BURST_NOTIFICATIONS) {
+                return;
+            }
+        }
+        this.mLastBurstAt = receivedAt;
+        if (this.mProfile != LinkProfile.BULK_SYNC && !this.mBurstPosted) {
+            this.mBurstPosted = true;
+            this.mHandler.post(this.mBurstRunnable);
+        }
+    }
+
+    /**
+     * The stack starts every connection on its defaults again.
+     */
+    void onDisconnected() {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                mHandler.removeCallbacks(mIdleRunnable);
+                mActiveTransfers = 0;
+                mProfile = LinkProfile.IDLE;
+            }
+        });
+    }
+
+    private static boolean isLarge(int length, boolean stream) {
+        return stream || length >= LARGE_TRANSFER_BYTES;
+    }
+
+    private void enterBulkSync() {
+        apply(LinkProfile.BULK_SYNC);
+        scheduleIdle();
+    }
+
+    private void scheduleIdle() {
+        this.mHandler.removeCallbacks(this.mIdleRunnable);
+        this.mHandler.postDelayed(this.mIdleRunnable, IDLE_DELAY_MS);
+    }
+
+    private void apply(LinkProfile profile) {
+        if (profile == this.mProfile || this.mSession.getConnectionState() != BleDeviceSession.STATE_CONNECTED) {
+            return;
+        }
+        Log.d(TAG, this.mSession.getAddress() + " link profile " + this.mProfile + " -> " + profile);
+        this.mProfile = profile;
+        this.mSwitchCount++;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            this.mSession.enqueue(GattOperationScheduler.requestConnectionPriority(profile.connectionPriority, null));
+        }
+        // without 2M support both profiles would stay on 1M anyway
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && supports2MPhy()) {
+            this.mSession.enqueue(GattOperationScheduler.setPreferredPhy(profile.phy, profile.phy,
+                    GattTransport.PHY_OPTION_NO_PREFERRED, null));
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static boolean supports2MPhy() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        return adapter != null && adapter.isLe2MPhySupported();
+    }
+}
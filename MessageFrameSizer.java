@@ -0,0 +1,19 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+/**
+ * Reads the total length of a bracelet message from the header in its first notification
+ * packet, see {@link BluetoothLeService#setMessageFrameSizer}. With a sizer, a message is
+ * complete as soon as that many bytes arrived, without relying on short packets or timeouts.
+ */
+public interface MessageFrameSizer {
+    int UNKNOWN = -1;
+    int INVALID = -2;
+
+    /**
+     * Called on the notification consumer thread.
+     *
+     * @return the length of the whole message, {@link #UNKNOWN} to fall back to the packet
+     * rules, or {@link #INVALID} if the packet does not start a message and must be dropped.
+     */
+    int messageLength(byte[] firstPacket);
+}
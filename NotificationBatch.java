@@ -0,0 +1,79 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+/**
+ * Notifications of one characteristic coalesced into a single delivery. Values are stored back
+ * to back in one byte array, addressed through per-sample offsets, with a receive timestamp per
+ * sample. The batch is reused after delivery; copy what must be kept.
+ */
+public final class NotificationBatch {
+
+    private long[] mTimestamps;
+    // value i is mData[mOffsets[i] .. mOffsets[i + 1])
+    private int[] mOffsets;
+    private byte[] mData;
+    private int mSize;
+
+    NotificationBatch(int initialCapacity) {
+        this.mTimestamps = new long[initialCapacity];
+        this.mOffsets = new int[initialCapacity + 1];
+        this.mData = new byte[initialCapacity * BleWritePipeline.SEND_PACKET_SIZE];
+    }
+
+    void add(byte[] value, long timestamp) {
+        if (this.mSize == this.mTimestamps.length) {
+            int capacity = this.mTimestamps.length * 2;
+            long[] timestamps = new long[capacity];
+            System.arraycopy(this.mTimestamps, 0, timestamps, 0, this.mSize);
+            this.mTimestamps = timestamps;
+            int[] offsets = new int[capacity + 1];
+            System.arraycopy(this.mOffsets, 0, offsets, 0, this.mSize + 1);
+            this.mOffsets = offsets;
+        }
+        int start = this.mOffsets[this.mSize];
+        if (start + value.length > this.mData.length) {
+            byte[] data = new byte[Math.max(start + value.length, this.mData.length * 2)];
+            System.arraycopy(this.mData, 0, data, 0, start);
+            this.mData = data;
+        }
+        System.arraycopy(value, 0, this.mData, start, value.length);
+        this.mTimestamps[this.mSize] = timestamp;
+        this.mOffsets[this.mSize + 1] = start + value.length;
+        this.mSize++;
+    }
+
+    void clear() {
+        this.mSize = 0;
+    }
+
+    public int size() {
+        return this.mSize;
+    }
+
+    public long timestamp(int index) {
+        return this.mTimestamps[index];
+    }
+
+    public int valueOffset(int index) {
+        return this.mOffsets[index];
+    }
+
+    public int valueLength(int index) {
+        return this.mOffsets[index + 1] - this.mOffsets[index];
+    }
+
+    /**
+     * @return the backing array holding all values; see {@link #valueOffset(int)}.
+     */
+    public byte[] data() {
+        return this.mData;
+    }
+
+    /**
+     * @return a copy of one value.
+     */
+    public byte[] value(int index) {
+        byte[] value = new byte[valueLength(index)];
+        System.arraycopy(this.mData, this.mOffsets[index], value, 0, value.length);
+        return value;
+    }
+}
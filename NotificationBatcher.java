@@ -0,0 +1,178 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coalesces notifications per bracelet address and characteristic before they reach the
+ * {@link BluetoothLeService.NotificationBatchListener}s. A batch is delivered when its time
+ * window has passed since its first sample or when it holds the configured number of samples,
+ * whichever comes first. Characteristics without a window, such as button or alert events,
+ * bypass batching and are delivered as single-sample batches at once.
+ * <p>
+ * Samples are added on the notification consumer. Window timers and every delivery, whether
+ * due to the window, the sample count, a bypass or a flush, run on one dedicated thread, so
+ * listeners are never called concurrently and never from the BLE or binder threads. Each buffer
+ * keeps two batches: the consumer fills one while the delivery thread hands out the other.
+ * <p>
+ * Only the batch listeners are batched. {@code IServiceCallback}s still receive every
+ * notification on its own, so batching does not reduce their dispatch count.
+ */
+class NotificationBatcher {
+
+    static final int DEFAULT_MAX_COUNT = 64;
+
+    private static final class Policy {
+        final long windowMs;
+        final int maxCount;
+
+        Policy(long windowMs, int maxCount) {
+            this.windowMs = windowMs;
+            this.maxCount = maxCount;
+        }
+    }
+
+    private static final Policy BYPASS = new Policy(0, 1);
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final BluetoothLeService.NotificationBatchListener mListener;
+    private final ConcurrentHashMap<UUID, Policy> mPolicies = new ConcurrentHashMap<UUID, Policy>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<UUID, Buffer>> mBuffers =
+            new ConcurrentHashMap<String, ConcurrentHashMap<UUID, Buffer>>();
+
+    NotificationBatcher(BluetoothLeService.NotificationBatchListener listener) {
+        this.mListener = listener;
+        this.mThread = new HandlerThread("BleBatch");
+        this.mThread.start();
+        this.mHandler = new Handler(this.mThread.getLooper());
+    }
+
+    /**
+     * Stops the delivery thread after the batches already due have been delivered.
+     */
+    void shutdown() {
+        this.mThread.quitSafely();
+    }
+
+    /**
+     * Batches {@code characteristicUuid} over {@code windowMs} or up to {@code maxCount} samples.
+     * A window of 0 makes the characteristic bypass batching. Applies to batches started
+     * afterwards.
+     */
+    void setPolicy(UUID characteristicUuid, long windowMs, int maxCount) {
+        if (windowMs <= 0 || maxCount <= 1) {
+            this.mPolicies.remove(characteristicUuid);
+        } else {
+            this.mPolicies.put(characteristicUuid, new Policy(windowMs, maxCount));
+        }
+    }
+
+    /**
+     * @param gatt only passed on to the listener; null for transports not backed by
+     *             {@code android.bluetooth}.
+     */
+    void onNotification(String address, BluetoothGatt gatt, UUID characteristicUuid, byte[] value, long receivedAt) {
+        if (address != null) {
+            buffer(address, gatt, characteristicUuid).add(value, receivedAt);
+        }
+    }
+
+    /**
+     * Forgets the buffers of a connection that went away. Their pending batches are delivered
+     * on the delivery thread.
+     */
+    void flush(String address) {
+        ConcurrentHashMap<UUID, Buffer> buffers = address == null ? null : this.mBuffers.remove(address);
+        if (buffers != null) {
+            for (Buffer buffer : buffers.values()) {
+                buffer.deliverSoon();
+            }
+        }
+    }
+
+    private Buffer buffer(String address, BluetoothGatt gatt, UUID characteristicUuid) {
+        ConcurrentHashMap<UUID, Buffer> buffers = this.mBuffers.get(address);
+        if (buffers == null) {
+            ConcurrentHashMap<UUID, Buffer> created = new ConcurrentHashMap<UUID, Buffer>();
+            buffers = this.mBuffers.putIfAbsent(address, created);
+            if (buffers == null) {
+                buffers = created;
+            }
+        }
+        Buffer buffer = buffers.get(characteristicUuid);
+        if (buffer == null) {
+            Buffer created = new Buffer(gatt, characteristicUuid);
+            buffer = buffers.putIfAbsent(characteristicUuid, created);
+            if (buffer == null) {
+                buffer = created;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Pending samples of one characteristic. Runs on the delivery thread, as the window timer
+     * or when a batch is due.
+     */
+    private final class Buffer implements Runnable {
+        private final BluetoothGatt mGatt;
+        private final UUID mUuid;
+        // filled by the consumer, guarded by this
+        private NotificationBatch mPending = new NotificationBatch(DEFAULT_MAX_COUNT);
+        // only touched by the delivery thread
+        private NotificationBatch mDelivering = new NotificationBatch(DEFAULT_MAX_COUNT);
+        private Policy mPolicy;
+        private boolean mDue;
+
+        Buffer(BluetoothGatt gatt, UUID uuid) {
+            this.mGatt = gatt;
+            this.mUuid = uuid;
+        }
+
+        synchronized void add(byte[] value, long receivedAt) {
+            if (this.mPending.size() == 0) {
+                Policy policy = mPolicies.get(this.mUuid);
+                this.mPolicy = policy == null ? BYPASS : policy;
+                if (this.mPolicy != BYPASS) {
+                    mHandler.postDelayed(this, this.mPolicy.windowMs);
+                }
+            }
+            this.mPending.add(value, receivedAt);
+            if (this.mPending.size() >= this.mPolicy.maxCount) {
+                deliverSoon();
+            }
+        }
+
+        synchronized void deliverSoon() {
+            if (!this.mDue) {
+                this.mDue = true;
+                mHandler.removeCallbacks(this);
+                mHandler.post(this);
+            }
+        }
+
+        public void run() {
+            NotificationBatch batch;
+            synchronized (this) {
+                this.mDue = false;
+                mHandler.removeCallbacks(this);
+                if (this.mPending.size() == 0) {
+                    return;
+                }
+                batch = this.mPending;
+                this.mPending = this.mDelivering;
+                this.mDelivering = batch;
+            }
+            try {
+                mListener.onNotificationBatch(this.mGatt, this.mUuid, batch);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves notification handling off the Bluetooth binder thread. {@link #offer} copies the value
+ * and stores it in a bounded ring; consumer threads take it from there and hand it to the
+ * {@link Sink}. The binder thread never waits for a listener.
+ * <p>
+ * Each consumer owns one ring, and a characteristic always maps to the same consumer, so
+ * notifications of one characteristic are delivered in order while different characteristics
+ * may be processed in parallel. When a ring is full the {@link OverflowPolicy} decides which
+ * notification is lost; drops and ring depth are counted.
+ */
+class NotificationPipeline {
+    private final static String TAG = NotificationPipeline.class.getSimpleName();
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    enum OverflowPolicy {
+        /**
+         * Discard the incoming notification.
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest queued notification of the ring.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * Receives notifications on a consumer thread. {@code gatt} is null for transports that
+     * are not backed by {@code android.bluetooth}; {@code address} identifies the link.
+     */
+    interface Sink {
+        void onNotification(String address, BluetoothGatt gatt, UUID characteristicUuid, byte[] value, long receivedAt);
+    }
+
+    private final Sink mSink;
+    private final OverflowPolicy mPolicy;
+    private final Ring[] mRings;
+    private volatile boolean mRunning = true;
+
+    NotificationPipeline(Sink sink, int consumers, int capacityPerConsumer, OverflowPolicy policy) {
+        if (consumers <= 0 || capacityPerConsumer <= 0) {
+            throw new IllegalArgumentException("consumers and capacity must be positive");
+        }
+        this.mSink = sink;
+        this.mPolicy = policy;
+        this.mRings = new Ring[consumers];
+        for (int i = 0; i < consumers; i++) {
+            this.mRings[i] = new Ring(capacityPerConsumer);
+            Thread consumer = new Thread(this.mRings[i], "BleNotify-" + i);
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+    }
+
+    /**
+     * Queues a notification. Called on the binder thread; {@code value} is copied before this
+     * method returns.
+     *
+     * @return false if the notification was dropped because its ring was full or the pipeline
+     * is shut down.
+     */
+    boolean offer(String address, BluetoothGatt gatt, UUID characteristicUuid, byte[] value) {
+        if (!this.mRunning) {
+            return false;
+        }
+        byte[] copy = value == null ? new byte[0] : value.clone();
+        return ringFor(characteristicUuid).offer(address, gatt, characteristicUuid, copy, SystemClock.elapsedRealtime(),
+                null);
+    }
+
+    /**
+     * Runs {@code task} on the consumer of {@code characteristicUuid}, after the notifications
+     * already queued for it. Lets timers touch per-characteristic state without locking.
+     *
+     * @return false if the ring was full or the pipeline is shut down.
+     */
+    boolean post(UUID characteristicUuid, Runnable task) {
+        if (!this.mRunning) {
+            return false;
+        }
+        return ringFor(characteristicUuid).offer(null, null, characteristicUuid, null, SystemClock.elapsedRealtime(), task);
+    }
+
+    /**
+     * Stops the consumer threads. Notifications still queued are discarded.
+     */
+    void shutdown() {
+        this.mRunning = false;
+        for (Ring ring : this.mRings) {
+            ring.wake();
+        }
+    }
+
+    /**
+     * @return notifications lost to overflow since creation.
+     */
+    long getDroppedCount() {
+        long dropped = 0;
+        for (Ring ring : this.mRings) {
+            dropped += ring.droppedCount();
+        }
+        return dropped;
+    }
+
+    long getDeliveredCount() {
+        long delivered = 0;
+        for (Ring ring : this.mRings) {
+            delivered += ring.deliveredCount();
+        }
+        return delivered;
+    }
+
+    /**
+     * @return notifications currently waiting for a consumer.
+     */
+    int getDepth() {
+        int depth = 0;
+        for (Ring ring : this.mRings) {
+            depth += ring.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the deepest any single ring has been.
+     */
+    int getHighWaterMark() {
+        int max = 0;
+        for (Ring ring : this.mRings) {
+            max = Math.max(max, ring.highWaterMark());
+        }
+        return max;
+    }
+
+    private Ring ringFor(UUID characteristicUuid) {
+        if (this.mRings.length == 1 || characteristicUuid == null) {
+            return this.mRings[0];
+        }
+        return this.mRings[(characteristicUuid.hashCode() & 0x7fffffff) % this.mRings.length];
+    }
+
+    /**
+     * Single-consumer ring with parallel slot arrays, so queuing does not allocate beyond the
+     * value copy.
+     */
+    private final class Ring implements Runnable {
+        private final String[] mAddresses;
+        private final BluetoothGatt[] mGatts;
+        private final UUID[] mUuids;
+        private final byte[][] mValues;
+        private final long[] mTimes;
+        // non-null for slots queued by post()
+        private final Runnable[] mTasks;
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mNotEmpty = mLock.newCondition();
+        private int mHead;
+        private int mSize;
+        private int mHighWaterMark;
+        private long mDropped;
+        private long mDelivered;
+
+        Ring(int capacity) {
+            this.mAddresses = new String[capacity];
+            this.mGatts = new BluetoothGatt[capacity];
+            this.mUuids = new UUID[capacity];
+            this.mValues = new byte[capacity][];
+            this.mTimes = new long[capacity];
+            this.mTasks = new Runnable[capacity];
+        }
+
+        boolean offer(String address, BluetoothGatt gatt, UUID uuid, byte[] value, long receivedAt, Runnable task) {
+            this.mLock.lock();
+            try {
+                int capacity = this.mValues.length;
+                if (this.mSize == capacity) {
+                    this.mDropped++;
+                    if (mPolicy == OverflowPolicy.DROP_NEWEST) {
+                        return false;
+                    }
+                    clear(this.mHead);
+                    this.mHead = (this.mHead + 1) % capacity;
+                    this.mSize--;
+                }
+                int tail = (this.mHead + this.mSize) % capacity;
+                this.mAddresses[tail] = address;
+                this.mGatts[tail] = gatt;
+                this.mUuids[tail] = uuid;
+                this.mValues[tail] = value;
+                this.mTimes[tail] = receivedAt;
+                this.mTasks[tail] = task;
+                this.mSize++;
+                if (this.mSize > this.mHighWaterMark) {
+                    this.mHighWaterMark = this.mSize;
+                }
+                this.mNotEmpty.signal();
+                return true;
+            } finally {
+                this.mLock.unlock();
+            }
+        }
+
+        public void run() {
+            while (mRunning) {
+                String address;
+                BluetoothGatt gatt;
+                UUID uuid;
+                byte[] value;
+                long receivedAt;
+                Runnable task;
+                this.mLock.lock();
+                try {
+                    while (this.mSize == 0 && mRunning) {
+                        this.mNotEmpty.awaitUninterruptibly();
+                    }
+                    if (!mRunning) {
+                        return;
+                    }
+                    address = this.mAddresses[this.mHead];
+                    gatt = this.mGatts[this.mHead];
+                    uuid = this.mUuids[this.mHead];
+                    value = this.mValues[this.mHead];
+                    receivedAt = this.mTimes[this.mHead];
+                    task = this.mTasks[this.mHead];
+                    clear(this.mHead);
+                    this.mHead = (this.mHead + 1) % this.mValues.length;
+                    this.mSize--;
+                    if (task == null) {
+                        this.mDelivered++;
+                    }
+                } finally {
+                    this.mLock.unlock();
+                }
+                try {
+                    if (task != null) {
+                        task.run();
+                    } else {
+                        mSink.onNotification(address, gatt, uuid, value, receivedAt);
+                    }
+                } catch (RuntimeException e) {
+                    // a failing listener must not stop delivery to the others
+                    Log.e(TAG, "notification listener failed for " + uuid, e);
+                }
+            }
+        }
+
+        void wake() {
+            this.mLock.lock();
+            try {
+                this.mNotEmpty.signalAll();
+            } finally {
+                this.mLock.unlock();
+            }
+        }
+
+        private void clear(int index) {
+            this.mAddresses[index] = null;
+            this.mGatts[index] = null;
+            this.mUuids[index] = null;
+            this.mValues[index] = null;
+            this.mTasks[index] = null;
+        }
+
+        int size() {
+            this.mLock.lock();
+            try {
+                return this.mSize;
+            } finally {
+                this.mLock.unlock();
+            }
+        }
+
+        int highWaterMark() {
+            this.mLock.lock();
+            try {
+                return this.mHighWaterMark;
+            } finally {
+                this.mLock.unlock();
+            }
+        }
+
+        long droppedCount() {
+            this.mLock.lock();
+            try {
+                return this.mDropped;
+            } finally {
+                this.mLock.unlock();
+            }
+        }
+
+        long deliveredCount() {
+            this.mLock.lock();
+            try {
+                return this.mDelivered;
+            } finally {
+                this.mLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded outbound command queue with one array-backed ring per priority lane. Higher lanes are
+ * always drained first, so urgent commands (find bracelet, alarms) overtake queued bulk history
+ * requests. When the queue is full the configured {@link OverflowPolicy} applies.
+ * <p>
+ * Thread-safe; producers may be any thread, the consumer is the BLE write thread. Depth and
+ * wait-time counters show when the bracelet link is saturated.
+ */
+public class OutboundCommandQueue<T> {
+
+    public enum Priority {
+        URGENT, NORMAL, BULK
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * Refuse the new command.
+         */
+        REJECT,
+        /**
+         * Evict the oldest command of the lowest lane that is not above the new command's
+         * priority. Falls back to {@link #REJECT} if only higher-priority commands are queued.
+         */
+        DROP_OLDEST,
+        /**
+         * Wait up to the block timeout for space, then reject. Never use from the consumer
+         * thread.
+         */
+        BLOCK
+    }
+
+    /**
+     * Receives commands evicted under {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    public interface DropListener<T> {
+        void onDropped(T item);
+    }
+
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private final long mBlockTimeoutNanos;
+    private final DropListener<T> mDropListener;
+
+    private final Object[][] mItems;
+    private final long[][] mEnqueueTimes;
+    private final int[] mHeads;
+    private final int[] mCounts;
+    private int mSize;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotFull = mLock.newCondition();
+
+    private int mHighWaterMark;
+    private long mEnqueuedCount;
+    private long mRejectedCount;
+    private long mDroppedCount;
+    private long mDequeuedCount;
+    private long mTotalWaitNanos;
+    private long mMaxWaitNanos;
+
+    public OutboundCommandQueue(int capacity, OverflowPolicy policy, long blockTimeoutMs, DropListener<T> dropListener) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int lanes = Priority.values().length;
+        this.mCapacity = capacity;
+        this.mPolicy = policy;
+        this.mBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+        this.mDropListener = dropListener;
+        this.mItems = new Object[lanes][capacity];
+        this.mEnqueueTimes = new long[lanes][capacity];
+        this.mHeads = new int[lanes];
+        this.mCounts = new int[lanes];
+    }
+
+    /**
+     * @return false if the command was refused because the queue is full.
+     */
+    public boolean offer(T item, Priority priority) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        T dropped = null;
+        this.mLock.lock();
+        try {
+            if (this.mSize == this.mCapacity) {
+                if (this.mPolicy == OverflowPolicy.DROP_OLDEST) {
+                    dropped = evictOldest(priority);
+                } else if (this.mPolicy == OverflowPolicy.BLOCK) {
+                    long nanos = this.mBlockTimeoutNanos;
+                    while (this.mSize == this.mCapacity && nanos > 0) {
+                        nanos = this.mNotFull.awaitNanos(nanos);
+                    }
+                }
+                if (this.mSize == this.mCapacity) {
+                    this.mRejectedCount++;
+                    return false;
+                }
+            }
+            int lane = priority.ordinal();
+            int tail = (this.mHeads[lane] + this.mCounts[lane]) % this.mCapacity;
+            this.mItems[lane][tail] = item;
+            this.mEnqueueTimes[lane][tail] = System.nanoTime();
+            this.mCounts[lane]++;
+            this.mSize++;
+            this.mEnqueuedCount++;
+            if (this.mSize > this.mHighWaterMark) {
+                this.mHighWaterMark = this.mSize;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.mRejectedCount++;
+            return false;
+        } finally {
+            this.mLock.unlock();
+        }
+        if (dropped != null && this.mDropListener != null) {
+            this.mDropListener.onDropped(dropped);
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest command of the highest non-empty lane, or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        this.mLock.lock();
+        try {
+            for (int lane = 0; lane < this.mCounts.length; lane++) {
+                if (this.mCounts[lane] != 0) {
+                    long wait = System.nanoTime() - this.mEnqueueTimes[lane][this.mHeads[lane]];
+                    this.mDequeuedCount++;
+                    this.mTotalWaitNanos += wait;
+                    if (wait > this.mMaxWaitNanos) {
+                        this.mMaxWaitNanos = wait;
+                    }
+                    return (T) removeHead(lane);
+                }
+            }
+            return null;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    public int size() {
+        this.mLock.lock();
+        try {
+            return this.mSize;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    public int size(Priority priority) {
+        this.mLock.lock();
+        try {
+            return this.mCounts[priority.ordinal()];
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    public int capacity() {
+        return this.mCapacity;
+    }
+
+    public int getHighWaterMark() {
+        this.mLock.lock();
+        try {
+            return this.mHighWaterMark;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    public long getEnqueuedCount() {
+        this.mLock.lock();
+        try {
+            return this.mEnqueuedCount;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    public long getRejectedCount() {
+        this.mLock.lock();
+        try {
+            return this.mRejectedCount;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        this.mLock.lock();
+        try {
+            return this.mDroppedCount;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the mean time commands spent queued before being picked up, in milliseconds.
+     */
+    public double getAverageWaitMillis() {
+        this.mLock.lock();
+        try {
+            return this.mDequeuedCount == 0 ? 0 : this.mTotalWaitNanos / 1e6 / this.mDequeuedCount;
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    public long getMaxWaitMillis() {
+        this.mLock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(this.mMaxWaitNanos);
+        } finally {
+            this.mLock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T evictOldest(Priority incoming) {
+        for (int lane = this.mCounts.length - 1; lane >= incoming.ordinal(); lane--) {
+            if (this.mCounts[lane] != 0) {
+                this.mDroppedCount++;
+                return (T) removeHead(lane);
+            }
+        }
+        return null;
+    }
+
+    private Object removeHead(int lane) {
+        int head = this.mHeads[lane];
+        Object item = this.mItems[lane][head];
+        this.mItems[lane][head] = null;
+        this.mHeads[lane] = (head + 1) % this.mCapacity;
+        this.mCounts[lane]--;
+        this.mSize--;
+        this.mNotFull.signal();
+        return item;
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+/**
+ * Splits an outbound payload into bracelet packets. The first packet carries raw data, every
+ * following packet is prefixed with a one-byte packet_counter.
+ * <p>
+ * Packets are written into buffers from a small pool using bulk copies. A payload of
+ * full-size packets, or a stream of equally sized commands, is fragmented without any
+ * allocation once the pool is warm. A {@link Fragment} stays valid until it is passed back to
+ * {@link #release(Fragment)}. Not thread-safe; pure Java so it can be exercised off-device.
+ */
+final class PacketFragmenter {
+
+    static final int DEFAULT_POOL_SIZE = 4;
+
+    /**
+     * A packet backed by a pooled buffer. {@link #array()} is sized exactly to the packet so it
+     * can be handed to {@code BluetoothGattCharacteristic#setValue(byte[])} as is.
+     */
+    static final class Fragment {
+        private byte[] buffer;
+        private int packetCounter;
+        private boolean inUse;
+        private long lastUsed;
+
+        public byte[] array() {
+            return this.buffer;
+        }
+
+        public int length() {
+            return this.buffer.length;
+        }
+
+        /**
+         * @return the counter prefix of this packet, or -1 for the raw first packet.
+         */
+        public int packetCounter() {
+            return this.packetCounter;
+        }
+    }
+
+    private final Fragment[] mPool;
+    private long mUseClock;
+
+    private byte[] send_data;
+    private int send_data_pointer;
+    private int packet_counter;
+    private boolean first_packet;
+    private boolean final_packet = true;
+
+    PacketFragmenter() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    PacketFragmenter(int poolSize) {
+        this.mPool = new Fragment[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            this.mPool[i] = new Fragment();
+        }
+    }
+
+    /**
+     * Starts fragmenting a new payload, discarding the position in the previous one.
+     */
+    void begin(byte[] data) {
+        this.send_data = data;
+        this.send_data_pointer = 0;
+        this.packet_counter = 0;
+        this.first_packet = true;
+        this.final_packet = false;
+    }
+
+    boolean isFinished() {
+        return this.final_packet;
+    }
+
+    int packetCounter() {
+        return this.packet_counter;
+    }
+
+    /**
+     * Cuts the next packet of at most {@code packetSize} bytes, including the counter prefix.
+     */
+    Fragment next(int packetSize) {
+        if (this.final_packet) {
+            throw new IllegalStateException("payload already fragmented");
+        }
+        int remaining = this.send_data.length - this.send_data_pointer;
+        Fragment fragment;
+        if (this.first_packet) {
+            int length = Math.min(remaining, packetSize);
+            fragment = acquire(length);
+            fragment.packetCounter = -1;
+            System.arraycopy(this.send_data, this.send_data_pointer, fragment.buffer, 0, length);
+            this.send_data_pointer += length;
+            this.final_packet = remaining <= packetSize;
+            this.first_packet = false;
+        } else {
+            int length = Math.min(remaining, packetSize - 1);
+            fragment = acquire(length + 1);
+            fragment.packetCounter = this.packet_counter;
+            fragment.buffer[0] = (byte) this.packet_counter;
+            System.arraycopy(this.send_data, this.send_data_pointer, fragment.buffer, 1, length);
+            this.send_data_pointer += length;
+            this.final_packet = remaining < packetSize;
+            this.packet_counter++;
+        }
+        return fragment;
+    }
+
+    void release(Fragment fragment) {
+        if (fragment != null) {
+            fragment.inUse = false;
+        }
+    }
+
+    /**
+     * Returns a free pooled fragment whose buffer has exactly {@code length} bytes. When no
+     * buffer of that size is free, the least recently used free slot is re-sized.
+     */
+    private Fragment acquire(int length) {
+        Fragment victim = null;
+        for (Fragment candidate : this.mPool) {
+            if (candidate.inUse) {
+                continue;
+            }
+            if (candidate.buffer != null && candidate.buffer.length == length) {
+                victim = candidate;
+                break;
+            }
+            if (victim == null || candidate.lastUsed < victim.lastUsed) {
+                victim = candidate;
+            }
+        }
+        if (victim == null) {
+            // every slot is held by the caller; fall back to a one-off fragment
+            victim = new Fragment();
+        }
+        if (victim.buffer == null || victim.buffer.length != length) {
+            victim.buffer = new byte[length];
+        }
+        victim.inUse = true;
+        victim.lastUsed = ++this.mUseClock;
+        return victim;
+    }
+}
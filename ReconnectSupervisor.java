@@ -0,0 +1,207 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Brings bracelets back after a link loss. Every bracelet the app asked to connect to is
+ * reconnected after an unexpected disconnect, with exponential backoff and random jitter so a
+ * fleet of phones does not retry in lockstep. A plain drop first tries the cached GATT handle;
+ * after errors such as status 133 the stale handle is closed and a new one opened. Once
+ * {@link #AUTO_CONNECT_AFTER_ATTEMPTS} direct attempts have failed the supervisor switches to an
+ * {@code autoConnect} connection, which the controller keeps pending for long outages.
+ * <p>
+ * Handles of bracelets the app disconnected on purpose are closed, so GATT client slots are
+ * not leaked. All state is confined to the BLE I/O thread.
+ */
+class ReconnectSupervisor {
+    private final static String TAG = ReconnectSupervisor.class.getSimpleName();
+
+    static final long INITIAL_BACKOFF_MS = 500;
+    static final long MAX_BACKOFF_MS = 30000;
+    static final int AUTO_CONNECT_AFTER_ATTEMPTS = 6;
+
+    // Disconnect statuses after which the handle can be reused.
+    private static final int STATUS_SUCCESS = 0;
+    private static final int STATUS_REMOTE_USER_TERMINATED = 19;
+    private static final int STATUS_LOCAL_HOST_TERMINATED = 22;
+
+    private static final class Target {
+        int attempt;
+        long disconnectedAt;
+        boolean freshHandle;
+        Runnable pending;
+    }
+
+    private final Handler mHandler;
+    private final BleConnectionManager mConnectionManager;
+    private final LatencyHistogram mReconnectTime;
+    private final Backoff mBackoff = new Backoff(INITIAL_BACKOFF_MS, MAX_BACKOFF_MS, new Random());
+    private final HashMap<String, Target> mTargets = new HashMap<String, Target>();
+
+    private volatile long mReconnectCount;
+    private volatile long mLastReconnectMillis;
+    private volatile long mMaxReconnectMillis;
+    private volatile long mTotalReconnectMillis;
+
+    ReconnectSupervisor(Handler handler, BleConnectionManager connectionManager, BleMetrics metrics) {
+        this.mHandler = handler;
+        this.mConnectionManager = connectionManager;
+        this.mReconnectTime = metrics.histogram(BleMetrics.LINK_RECONNECT_MS);
+    }
+
+    /**
+     * Keeps {@code address} connected from now on.
+     */
+    void watch(final String address) {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                if (!mTargets.containsKey(address)) {
+                    mTargets.put(address, new Target());
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops reconnecting {@code address}, e.g. because the app disconnects it on purpose.
+     */
+    void unwatch(final String address) {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                Target target = mTargets.remove(address);
+                if (target != null && target.pending != null) {
+                    mHandler.removeCallbacks(target.pending);
+                }
+            }
+        });
+    }
+
+    void unwatchAll() {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                for (Target target : mTargets.values()) {
+                    if (target.pending != null) {
+                        mHandler.removeCallbacks(target.pending);
+                    }
+                }
+                mTargets.clear();
+            }
+        });
+    }
+
+    /**
+     * Called from {@code onConnectionStateChange} when the link came up.
+     */
+    void onConnected(final String address) {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                Target target = mTargets.get(address);
+                if (target == null || target.disconnectedAt == 0) {
+                    return;
+                }
+                long elapsed = SystemClock.elapsedRealtime() - target.disconnectedAt;
+                mReconnectTime.record(elapsed);
+                mReconnectCount++;
+                mLastReconnectMillis = elapsed;
+                mTotalReconnectMillis += elapsed;
+                if (elapsed > mMaxReconnectMillis) {
+                    mMaxReconnectMillis = elapsed;
+                }
+                Log.i(TAG, "reconnected " + address + " after " + elapsed + "ms, " + target.attempt + " attempts");
+                if (target.pending != null) {
+                    mHandler.removeCallbacks(target.pending);
+                    target.pending = null;
+                }
+                target.attempt = 0;
+                target.disconnectedAt = 0;
+                target.freshHandle = false;
+            }
+        });
+    }
+
+    /**
+     * Called from {@code onConnectionStateChange} when the link went down or a connection
+     * attempt failed.
+     */
+    void onDisconnected(final String address, final int status) {
+        this.mHandler.post(new Runnable() {
+            public void run() {
+                final Target target = mTargets.get(address);
+                if (target == null) {
+                    // disconnected on purpose; free the client slot
+                    BleDeviceSession session = mConnectionManager.get(address);
+                    if (session != null) {
+                        session.releaseTransport();
+                    }
+                    return;
+                }
+                if (target.disconnectedAt == 0) {
+                    target.disconnectedAt = SystemClock.elapsedRealtime();
+                }
+                target.freshHandle |= status != STATUS_SUCCESS && status != STATUS_REMOTE_USER_TERMINATED
+                        && status != STATUS_LOCAL_HOST_TERMINATED;
+                if (target.pending != null) {
+                    mHandler.removeCallbacks(target.pending);
+                }
+                long delay = mBackoff.delay(target.attempt);
+                Log.i(TAG, address + " disconnected, status:" + status + ", retry " + (target.attempt + 1) + " in " + delay + "ms");
+                target.pending = new Runnable() {
+                    public void run() {
+                        target.pending = null;
+                        attempt(address, target);
+                    }
+                };
+                mHandler.postDelayed(target.pending, delay);
+            }
+        });
+    }
+
+    long getReconnectCount() {
+        return this.mReconnectCount;
+    }
+
+    /**
+     * @return time from link loss to the last successful reconnect.
+     */
+    long getLastReconnectMillis() {
+        return this.mLastReconnectMillis;
+    }
+
+    long getMaxReconnectMillis() {
+        return this.mMaxReconnectMillis;
+    }
+
+    double getAverageReconnectMillis() {
+        long count = this.mReconnectCount;
+        return count == 0 ? 0 : (double) this.mTotalReconnectMillis / count;
+    }
+
+    private void attempt(String address, Target target) {
+        if (this.mTargets.get(address) != target) {
+            return;
+        }
+        target.attempt++;
+        boolean started;
+        if (target.attempt > AUTO_CONNECT_AFTER_ATTEMPTS) {
+            Log.i(TAG, "long outage of " + address + ", waiting with autoConnect");
+            started = this.mConnectionManager.reopen(address, true);
+        } else if (target.freshHandle) {
+            started = this.mConnectionManager.reopen(address, false);
+            target.freshHandle = false;
+        } else {
+            started = this.mConnectionManager.reconnect(address)
+                    || this.mConnectionManager.reopen(address, false);
+        }
+        if (!started) {
+            // no callback will follow, e.g. because the connection limit is reached; treat it
+            // like a failed attempt and back off
+            target.freshHandle = true;
+            onDisconnected(address, -1);
+        }
+    }
+}
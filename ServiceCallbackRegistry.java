@@ -0,0 +1,192 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Copy-on-write registry of listeners, in the service its {@code IServiceCallback}s.
+ * Registration rebuilds an immutable snapshot under a lock; dispatch reads the current snapshot
+ * through one volatile load and iterates a plain array, so GATT callbacks never lock, never
+ * allocate and never see a list that is being modified.
+ * <p>
+ * A listener may declare the characteristic UUIDs it is interested in. Notifications of other
+ * characteristics are then not routed to it; all other events still are. Generic over the
+ * listener interface and pure Java, so routing can be tested and benchmarked off-device.
+ *
+ * @param <L> the listener interface.
+ */
+class ServiceCallbackRegistry<L> {
+
+    private static final class Entry<L> {
+        final L callback;
+        // null for listeners that receive every notification
+        final Set<UUID> characteristics;
+
+        Entry(L callback, Set<UUID> characteristics) {
+            this.callback = callback;
+            this.characteristics = characteristics;
+        }
+    }
+
+    private static final class Snapshot<L> {
+        final Entry<L>[] entries;
+        final L[] all;
+        // listeners of notifications whose UUID no filtered listener asked for
+        final L[] unfiltered;
+        final Map<UUID, L[]> routes;
+
+        Snapshot(Class<L> type, Entry<L>[] entries) {
+            this.entries = entries;
+            this.all = newArray(type, entries.length);
+            Set<UUID> declared = new HashSet<UUID>();
+            int unfilteredCount = 0;
+            for (int i = 0; i < entries.length; i++) {
+                this.all[i] = entries[i].callback;
+                if (entries[i].characteristics == null) {
+                    unfilteredCount++;
+                } else {
+                    declared.addAll(entries[i].characteristics);
+                }
+            }
+            this.unfiltered = newArray(type, unfilteredCount);
+            int n = 0;
+            for (Entry<L> entry : entries) {
+                if (entry.characteristics == null) {
+                    this.unfiltered[n++] = entry.callback;
+                }
+            }
+            this.routes = new HashMap<UUID, L[]>();
+            for (UUID uuid : declared) {
+                int count = 0;
+                for (Entry<L> entry : entries) {
+                    if (entry.characteristics == null || entry.characteristics.contains(uuid)) {
+                        count++;
+                    }
+                }
+                L[] route = newArray(type, count);
+                n = 0;
+                // registration order, like the unfiltered dispatch
+                for (Entry<L> entry : entries) {
+                    if (entry.characteristics == null || entry.characteristics.contains(uuid)) {
+                        route[n++] = entry.callback;
+                    }
+                }
+                this.routes.put(uuid, route);
+            }
+        }
+    }
+
+    private final Class<L> mType;
+    private final Object mLock = new Object();
+    private volatile Snapshot<L> mSnapshot;
+
+    /**
+     * @param type the listener interface, used to create the dispatch arrays.
+     */
+    ServiceCallbackRegistry(Class<L> type) {
+        this.mType = type;
+        this.mSnapshot = new Snapshot<L>(type, ServiceCallbackRegistry.<L>newEntries(0));
+    }
+
+    /**
+     * Registers a listener for every event. Does nothing if it is already registered.
+     */
+    void add(L callback) {
+        add(callback, null);
+    }
+
+    /**
+     * Registers a listener that only receives notifications of the given characteristics; a
+     * null collection means all of them. Re-registering a listener replaces its filter.
+     */
+    void add(L callback, Collection<UUID> characteristics) {
+        if (callback == null) {
+            return;
+        }
+        Set<UUID> filter = characteristics == null ? null
+                : Collections.unmodifiableSet(new HashSet<UUID>(characteristics));
+        synchronized (this.mLock) {
+            Entry<L>[] entries = this.mSnapshot.entries;
+            int index = indexOf(entries, callback);
+            Entry<L>[] updated;
+            if (index >= 0) {
+                if (characteristics == null && entries[index].characteristics == null) {
+                    return;
+                }
+                updated = entries.clone();
+            } else {
+                updated = newEntries(entries.length + 1);
+                System.arraycopy(entries, 0, updated, 0, entries.length);
+                index = entries.length;
+            }
+            updated[index] = new Entry<L>(callback, filter);
+            this.mSnapshot = new Snapshot<L>(this.mType, updated);
+        }
+    }
+
+    void remove(L callback) {
+        synchronized (this.mLock) {
+            Entry<L>[] entries = this.mSnapshot.entries;
+            int index = indexOf(entries, callback);
+            if (index < 0) {
+                return;
+            }
+            Entry<L>[] updated = newEntries(entries.length - 1);
+            System.arraycopy(entries, 0, updated, 0, index);
+            System.arraycopy(entries, index + 1, updated, index, entries.length - index - 1);
+            this.mSnapshot = new Snapshot<L>(this.mType, updated);
+        }
+    }
+
+    void clear() {
+        synchronized (this.mLock) {
+            this.mSnapshot = new Snapshot<L>(this.mType, ServiceCallbackRegistry.<L>newEntries(0));
+        }
+    }
+
+    /**
+     * @return every registered listener. The array is shared and must not be modified.
+     */
+    L[] all() {
+        return this.mSnapshot.all;
+    }
+
+    /**
+     * @return the listeners interested in notifications of {@code characteristicUuid}. The
+     * array is shared and must not be modified.
+     */
+    L[] forCharacteristic(UUID characteristicUuid) {
+        Snapshot<L> snapshot = this.mSnapshot;
+        L[] route = snapshot.routes.get(characteristicUuid);
+        return route != null ? route : snapshot.unfiltered;
+    }
+
+    boolean isEmpty() {
+        return this.mSnapshot.all.length == 0;
+    }
+
+    private static <L> int indexOf(Entry<L>[] entries, L callback) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].callback.equals(callback)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <L> L[] newArray(Class<L> type, int length) {
+        return (L[]) Array.newInstance(type, length);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <L> Entry<L>[] newEntries(int length) {
+        return (Entry<L>[]) new Entry<?>[length];
+    }
+}
@@ -0,0 +1,625 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Virtual bracelet of a {@link SimulatedBraceletNetwork}, seen through its {@link GattTransport}.
+ * It exposes the RX service with the RX (write, write without response) and TX (notify)
+ * characteristics and the firmware revision of the Device Information service.
+ * <p>
+ * Traffic moves in connection events, one per connection interval. An event carries a limited
+ * number of packets each way; a lost event carries none and everything is retried in the next
+ * one. Requests that need a response, such as acknowledged writes, reads, descriptor writes,
+ * MTU and PHY updates, complete one event after they were sent. Writes without response are
+ * acknowledged as soon as they fit into the transmit buffer.
+ * <p>
+ * Listener events are delivered one at a time, in order, and never while the bracelet's lock
+ * is held, so listeners may call back into the transport.
+ */
+public class SimulatedBracelet implements GattTransport {
+
+    public static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    public static final UUID RX_SERVICE_UUID = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    public static final UUID RX_CHAR_UUID = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    public static final UUID TX_CHAR_UUID = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    public static final UUID DEVICE_INFORMATION_SERVICE_UUID = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    public static final UUID FIRMWARE_REVISION_UUID = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
+
+    static final int DEFAULT_MTU = 23;
+    static final int ATT_HEADER_SIZE = 3;
+    static final int TRANSMIT_BUFFER_PACKETS = 8;
+    static final int NOTIFICATION_BUFFER_PACKETS = 256;
+
+    static final int STATUS_INVALID_ATTRIBUTE_LENGTH = 0x0d;
+    static final int STATUS_CONNECTION_TIMEOUT = 0x08;
+    static final int STATUS_REMOTE_USER_TERMINATED = 0x13;
+
+    private static final int REQUEST_WRITE = 0;
+    private static final int REQUEST_READ = 1;
+    private static final int REQUEST_DESCRIPTOR = 2;
+    private static final int REQUEST_MTU = 3;
+    private static final int REQUEST_PHY = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A request waiting for its response.
+     */
+    private static final class Request {
+        final int type;
+        final UUID uuid;
+        final byte[] value;
+        final int argument;
+        boolean sent;
+
+        Request(int type, UUID uuid, byte[] value, int argument) {
+            this.type = type;
+            this.uuid = uuid;
+            this.value = value;
+            this.argument = argument;
+        }
+    }
+
+    private final SimulatedBraceletNetwork mNetwork;
+    private final SimulatedBraceletNetwork.Config mConfig;
+    private final String mAddress;
+    private final Listener mListener;
+    private final Random mRandom;
+
+    // guarded by this
+    private boolean mClosed;
+    private boolean mConnecting;
+    private boolean mConnected;
+    private int mConnection;
+    private boolean mServicesKnown;
+    private int mMtu = DEFAULT_MTU;
+    private boolean m2M;
+    private long mIntervalMicros;
+    private int mLostEvents;
+    private Request mPending;
+    private byte[] mHeldWrite;
+    private final ArrayDeque<byte[]> mTransmitBuffer = new ArrayDeque<byte[]>();
+    private final ArrayDeque<byte[]> mNotifications = new ArrayDeque<byte[]>();
+    private final Set<UUID> mRegistered = new HashSet<UUID>();
+    private boolean mTxEnabled;
+    private long mBurstSequence;
+    private Future<?> mEvent;
+    private Future<?> mConnect;
+    private Future<?> mDrop;
+    private Future<?> mBurst;
+
+    private final ArrayDeque<Runnable> mEvents = new ArrayDeque<Runnable>();
+    private boolean mDelivering;
+
+    private final Runnable mTick = new Runnable() {
+        public void run() {
+            onConnectionEvent();
+            deliver();
+        }
+    };
+
+    SimulatedBracelet(SimulatedBraceletNetwork network, String address, Listener listener) {
+        this.mNetwork = network;
+        this.mConfig = network.config;
+        this.mAddress = address;
+        this.mListener = listener;
+        this.mRandom = new Random(this.mConfig.seed * 31 + address.hashCode());
+        this.mIntervalMicros = this.mConfig.balancedIntervalMicros;
+    }
+
+    public String getAddress() {
+        return this.mAddress;
+    }
+
+    public synchronized boolean isConnected() {
+        return this.mConnected;
+    }
+
+    public synchronized int getMtu() {
+        return this.mMtu;
+    }
+
+    public synchronized boolean is2M() {
+        return this.m2M;
+    }
+
+    public synchronized long getIntervalMicros() {
+        return this.mIntervalMicros;
+    }
+
+    /**
+     * Sends a notification of {@code characteristicUuid} from the bracelet, truncated to the
+     * current MTU. Meant for {@link SimulatedBraceletNetwork.Peer}s answering a command.
+     *
+     * @return false if the link is down, notifications are not enabled or the bracelet's
+     * notification buffer is full.
+     */
+    public boolean notify(UUID characteristicUuid, byte[] value) {
+        synchronized (this) {
+            if (!this.mConnected || !TX_CHAR_UUID.equals(characteristicUuid) || !this.mTxEnabled
+                    || this.mNotifications.size() >= NOTIFICATION_BUFFER_PACKETS) {
+                return false;
+            }
+            this.mNotifications.add(truncate(value));
+            scheduleEvent();
+        }
+        return true;
+    }
+
+    public boolean connect() {
+        synchronized (this) {
+            if (this.mClosed) {
+                return false;
+            }
+            if (this.mConnected || this.mConnecting) {
+                return true;
+            }
+            this.mConnecting = true;
+            this.mConnect = this.mNetwork.timer.schedule(new Runnable() {
+                public void run() {
+                    onConnected();
+                    deliver();
+                }
+            }, this.mConfig.connectDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    public void disconnect() {
+        this.mNetwork.timer.execute(new Runnable() {
+            public void run() {
+                synchronized (SimulatedBracelet.this) {
+                    if (mConnecting) {
+                        mConnecting = false;
+                        cancel(mConnect);
+                        post(connectionStateEvent(GATT_SUCCESS, STATE_DISCONNECTED));
+                    } else if (mConnected) {
+                        drop(GATT_SUCCESS);
+                    }
+                }
+                deliver();
+            }
+        });
+    }
+
+    public void close() {
+        synchronized (this) {
+            this.mClosed = true;
+            this.mConnecting = false;
+            this.mConnected = false;
+            cancel(this.mConnect);
+            cancelLinkTimers();
+            this.mEvents.clear();
+        }
+        this.mNetwork.forget(this);
+    }
+
+    public boolean discoverServices() {
+        final int connection;
+        synchronized (this) {
+            if (!this.mConnected) {
+                return false;
+            }
+            connection = this.mConnection;
+        }
+        this.mNetwork.timer.schedule(new Runnable() {
+            public void run() {
+                synchronized (SimulatedBracelet.this) {
+                    if (!mConnected || mConnection != connection) {
+                        return;
+                    }
+                    mServicesKnown = true;
+                    post(new Runnable() {
+                        public void run() {
+                            mListener.onServicesDiscovered(SimulatedBracelet.this, GATT_SUCCESS);
+                        }
+                    });
+                }
+                deliver();
+            }
+        }, this.mConfig.discoveryDelayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public synchronized boolean refresh() {
+        this.mServicesKnown = false;
+        return true;
+    }
+
+    public synchronized int getProperties(UUID serviceUuid, UUID characteristicUuid) {
+        if (!this.mServicesKnown) {
+            return -1;
+        }
+        if (RX_SERVICE_UUID.equals(serviceUuid)) {
+            if (RX_CHAR_UUID.equals(characteristicUuid)) {
+                return PROPERTY_WRITE | PROPERTY_WRITE_NO_RESPONSE;
+            }
+            if (TX_CHAR_UUID.equals(characteristicUuid)) {
+                return PROPERTY_NOTIFY;
+            }
+        } else if (DEVICE_INFORMATION_SERVICE_UUID.equals(serviceUuid) && FIRMWARE_REVISION_UUID.equals(characteristicUuid)) {
+            return PROPERTY_READ;
+        }
+        return -1;
+    }
+
+    public synchronized boolean hasDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid) {
+        return this.mServicesKnown && RX_SERVICE_UUID.equals(serviceUuid) && TX_CHAR_UUID.equals(characteristicUuid)
+                && CCCD.equals(descriptorUuid);
+    }
+
+    public boolean writeCharacteristic(UUID serviceUuid, UUID characteristicUuid, byte[] value, boolean withResponse) {
+        int required = withResponse ? PROPERTY_WRITE : PROPERTY_WRITE_NO_RESPONSE;
+        synchronized (this) {
+            if (!idle() || (getProperties(serviceUuid, characteristicUuid) & required) == 0 || value == null) {
+                return false;
+            }
+            if (withResponse) {
+                this.mPending = new Request(REQUEST_WRITE, characteristicUuid, value.clone(), 0);
+            } else if (this.mTransmitBuffer.size() < TRANSMIT_BUFFER_PACKETS) {
+                // the stack truncates writes without response to the MTU
+                this.mTransmitBuffer.add(truncate(value));
+                post(writeEvent(GATT_SUCCESS));
+            } else {
+                this.mHeldWrite = truncate(value);
+            }
+            scheduleEvent();
+        }
+        deliver();
+        return true;
+    }
+
+    public synchronized boolean readCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+        if (!idle() || (getProperties(serviceUuid, characteristicUuid) & PROPERTY_READ) == 0) {
+            return false;
+        }
+        this.mPending = new Request(REQUEST_READ, characteristicUuid, null, 0);
+        scheduleEvent();
+        return true;
+    }
+
+    public synchronized boolean setCharacteristicNotification(UUID serviceUuid, UUID characteristicUuid, boolean enabled) {
+        if (getProperties(serviceUuid, characteristicUuid) == -1) {
+            return false;
+        }
+        if (enabled) {
+            this.mRegistered.add(characteristicUuid);
+        } else {
+            this.mRegistered.remove(characteristicUuid);
+        }
+        return true;
+    }
+
+    public synchronized boolean writeDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid, byte[] value) {
+        if (!idle() || !hasDescriptor(serviceUuid, characteristicUuid, descriptorUuid) || value == null || value.length == 0) {
+            return false;
+        }
+        this.mPending = new Request(REQUEST_DESCRIPTOR, descriptorUuid, value.clone(), 0);
+        scheduleEvent();
+        return true;
+    }
+
+    public synchronized boolean requestMtu(int mtu) {
+        if (!idle()) {
+            return false;
+        }
+        this.mPending = new Request(REQUEST_MTU, null, null, mtu);
+        scheduleEvent();
+        return true;
+    }
+
+    public synchronized boolean requestConnectionPriority(int connectionPriority) {
+        if (!this.mConnected) {
+            return false;
+        }
+        switch (connectionPriority) {
+            case CONNECTION_PRIORITY_HIGH:
+                this.mIntervalMicros = this.mConfig.highIntervalMicros;
+                break;
+            case CONNECTION_PRIORITY_LOW_POWER:
+                this.mIntervalMicros = this.mConfig.lowPowerIntervalMicros;
+                break;
+            default:
+                this.mIntervalMicros = this.mConfig.balancedIntervalMicros;
+                break;
+        }
+        return true;
+    }
+
+    public synchronized boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+        if (!idle()) {
+            return false;
+        }
+        this.mPending = new Request(REQUEST_PHY, null, null, txPhy & rxPhy);
+        scheduleEvent();
+        return true;
+    }
+
+    private boolean idle() {
+        return this.mConnected && this.mPending == null && this.mHeldWrite == null;
+    }
+
+    private byte[] truncate(byte[] value) {
+        int limit = this.mMtu - ATT_HEADER_SIZE;
+        byte[] copy = new byte[Math.min(value.length, limit)];
+        System.arraycopy(value, 0, copy, 0, copy.length);
+        return copy;
+    }
+
+    private void onConnected() {
+        synchronized (this) {
+            if (!this.mConnecting) {
+                return;
+            }
+            this.mConnecting = false;
+            this.mConnected = true;
+            this.mConnection++;
+            this.mLostEvents = 0;
+            if (this.mConfig.disconnectsPerSecond > 0) {
+                final int connection = this.mConnection;
+                long delay = (long) (-Math.log(1 - this.mRandom.nextDouble()) / this.mConfig.disconnectsPerSecond * 1000);
+                this.mDrop = this.mNetwork.timer.schedule(new Runnable() {
+                    public void run() {
+                        synchronized (SimulatedBracelet.this) {
+                            if (mConnected && mConnection == connection) {
+                                drop(STATUS_REMOTE_USER_TERMINATED);
+                            }
+                        }
+                        deliver();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            post(connectionStateEvent(GATT_SUCCESS, STATE_CONNECTED));
+        }
+    }
+
+    /**
+     * One connection event: the central sends first, then the bracelet answers or notifies
+     * with whatever budget is left.
+     */
+    private synchronized void onConnectionEvent() {
+        this.mEvent = null;
+        if (!this.mConnected) {
+            return;
+        }
+        if (this.mConfig.lossRate > 0 && this.mRandom.nextDouble() < this.mConfig.lossRate) {
+            this.mNetwork.eventsLost.incrementAndGet();
+            if (++this.mLostEvents >= this.mConfig.supervisionEvents) {
+                drop(STATUS_CONNECTION_TIMEOUT);
+            } else {
+                scheduleEvent();
+            }
+            return;
+        }
+        this.mLostEvents = 0;
+        int budget = this.mConfig.packetsPerEvent * (this.m2M ? 2 : 1);
+        int sent = 0;
+        while (sent < budget && !this.mTransmitBuffer.isEmpty()) {
+            received(RX_CHAR_UUID, this.mTransmitBuffer.poll());
+            sent++;
+        }
+        if (this.mHeldWrite != null && this.mTransmitBuffer.size() < TRANSMIT_BUFFER_PACKETS) {
+            this.mTransmitBuffer.add(this.mHeldWrite);
+            this.mHeldWrite = null;
+            post(writeEvent(GATT_SUCCESS));
+        }
+        Request request = this.mPending;
+        if (request != null && request.sent) {
+            // the response takes one of the bracelet's packets
+            this.mPending = null;
+            budget--;
+            complete(request);
+        } else if (request != null && sent < budget) {
+            request.sent = true;
+            sent++;
+            if (request.type == REQUEST_WRITE && request.value.length <= this.mMtu - ATT_HEADER_SIZE) {
+                received(request.uuid, request.value);
+            }
+        }
+        this.mNetwork.packetsSent.addAndGet(sent);
+        int notified = 0;
+        while (notified < budget && !this.mNotifications.isEmpty()) {
+            final byte[] value = this.mNotifications.poll();
+            notified++;
+            if (this.mRegistered.contains(TX_CHAR_UUID)) {
+                post(new Runnable() {
+                    public void run() {
+                        mListener.onCharacteristicChanged(SimulatedBracelet.this, TX_CHAR_UUID, value);
+                    }
+                });
+            }
+        }
+        this.mNetwork.packetsSent.addAndGet(notified);
+        this.mNetwork.notificationsSent.addAndGet(notified);
+        scheduleEvent();
+    }
+
+    private void complete(Request request) {
+        switch (request.type) {
+            case REQUEST_WRITE:
+                post(writeEvent(request.value.length > this.mMtu - ATT_HEADER_SIZE
+                        ? STATUS_INVALID_ATTRIBUTE_LENGTH : GATT_SUCCESS));
+                break;
+            case REQUEST_READ:
+                final byte[] revision = this.mConfig.firmwareRevision.getBytes(UTF_8);
+                post(new Runnable() {
+                    public void run() {
+                        mListener.onCharacteristicRead(SimulatedBracelet.this, DEVICE_INFORMATION_SERVICE_UUID,
+                                FIRMWARE_REVISION_UUID, revision, GATT_SUCCESS);
+                    }
+                });
+                break;
+            case REQUEST_DESCRIPTOR:
+                setTxEnabled(request.value[0] != 0);
+                final UUID descriptorUuid = request.uuid;
+                post(new Runnable() {
+                    public void run() {
+                        mListener.onDescriptorWrite(SimulatedBracelet.this, descriptorUuid, GATT_SUCCESS);
+                    }
+                });
+                break;
+            case REQUEST_MTU:
+                this.mMtu = Math.max(DEFAULT_MTU, Math.min(request.argument, this.mConfig.maxMtu));
+                final int mtu = this.mMtu;
+                post(new Runnable() {
+                    public void run() {
+                        mListener.onMtuChanged(SimulatedBracelet.this, mtu, GATT_SUCCESS);
+                    }
+                });
+                break;
+            case REQUEST_PHY:
+                this.m2M = this.mConfig.supports2M && (request.argument & PHY_LE_2M_MASK) != 0;
+                final int phy = this.m2M ? PHY_LE_2M_MASK : PHY_LE_1M_MASK;
+                post(new Runnable() {
+                    public void run() {
+                        mListener.onPhyUpdate(SimulatedBracelet.this, phy, phy, GATT_SUCCESS);
+                    }
+                });
+                break;
+        }
+    }
+
+    private void received(final UUID characteristicUuid, final byte[] value) {
+        final SimulatedBraceletNetwork.Peer peer = this.mNetwork.peer;
+        if (peer != null) {
+            post(new Runnable() {
+                public void run() {
+                    peer.onWrite(SimulatedBracelet.this, characteristicUuid, value);
+                }
+            });
+        }
+    }
+
+    private void setTxEnabled(boolean enabled) {
+        this.mTxEnabled = enabled;
+        cancel(this.mBurst);
+        this.mBurst = null;
+        if (!enabled || this.mConfig.burstSize <= 0) {
+            return;
+        }
+        final int connection = this.mConnection;
+        long period = this.mConfig.burstPeriodMillis;
+        this.mBurst = this.mNetwork.timer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                synchronized (SimulatedBracelet.this) {
+                    if (!mConnected || mConnection != connection) {
+                        return;
+                    }
+                    for (int i = 0; i < mConfig.burstSize && mNotifications.size() < NOTIFICATION_BUFFER_PACKETS; i++) {
+                        byte[] value = new byte[mMtu - ATT_HEADER_SIZE];
+                        long sequence = mBurstSequence++;
+                        for (int b = 0; b < 8 && b < value.length; b++) {
+                            value[b] = (byte) (sequence >>> (8 * b));
+                        }
+                        mNotifications.add(value);
+                    }
+                    scheduleEvent();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ends the link and resets everything that does not survive a disconnect.
+     */
+    private void drop(int status) {
+        this.mConnected = false;
+        this.mConnection++;
+        cancelLinkTimers();
+        this.mPending = null;
+        this.mHeldWrite = null;
+        this.mTransmitBuffer.clear();
+        this.mNotifications.clear();
+        this.mRegistered.clear();
+        this.mTxEnabled = false;
+        this.mMtu = DEFAULT_MTU;
+        this.m2M = false;
+        this.mIntervalMicros = this.mConfig.balancedIntervalMicros;
+        if (status != GATT_SUCCESS) {
+            this.mNetwork.disconnects.incrementAndGet();
+        }
+        post(connectionStateEvent(status, STATE_DISCONNECTED));
+    }
+
+    private void cancelLinkTimers() {
+        cancel(this.mEvent);
+        cancel(this.mDrop);
+        cancel(this.mBurst);
+        this.mEvent = null;
+        this.mDrop = null;
+        this.mBurst = null;
+    }
+
+    private static void cancel(Future<?> future) {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Schedules the next connection event if there is anything to send. Idle links cost nothing.
+     */
+    private void scheduleEvent() {
+        if (this.mEvent != null || !this.mConnected) {
+            return;
+        }
+        if (this.mPending == null && this.mHeldWrite == null && this.mTransmitBuffer.isEmpty()
+                && this.mNotifications.isEmpty()) {
+            return;
+        }
+        this.mEvent = this.mNetwork.timer.schedule(this.mTick, this.mIntervalMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private Runnable connectionStateEvent(final int status, final int newState) {
+        return new Runnable() {
+            public void run() {
+                mListener.onConnectionStateChange(SimulatedBracelet.this, status, newState);
+            }
+        };
+    }
+
+    private Runnable writeEvent(final int status) {
+        return new Runnable() {
+            public void run() {
+                mListener.onCharacteristicWrite(SimulatedBracelet.this, RX_CHAR_UUID, status);
+            }
+        };
+    }
+
+    private void post(Runnable event) {
+        if (!this.mClosed) {
+            this.mEvents.add(event);
+        }
+    }
+
+    /**
+     * Runs queued listener events outside the lock. Only one thread delivers at a time; events
+     * queued meanwhile are picked up by that thread.
+     */
+    private void deliver() {
+        while (true) {
+            Runnable event;
+            synchronized (this) {
+                if (this.mDelivering || this.mEvents.isEmpty()) {
+                    return;
+                }
+                event = this.mEvents.poll();
+                this.mDelivering = true;
+            }
+            try {
+                event.run();
+            } finally {
+                synchronized (this) {
+                    this.mDelivering = false;
+                }
+            }
+        }
+    }
+}
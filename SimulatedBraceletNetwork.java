@@ -0,0 +1,161 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link GattTransport.Factory} of virtual bracelets that runs on a plain JVM, for load tests
+ * without a phone. Every address opened gets its own {@link SimulatedBracelet}; all of them
+ * share a small timer pool and are only scheduled while they have something to send, so one
+ * process can drive thousands of them.
+ * <p>
+ * Link behaviour is taken from the {@link Config}. Each bracelet draws its packet losses and
+ * disconnects from a {@code Random} seeded with {@link Config#seed} and its address, so a run
+ * with the same configuration and addresses sees the same faults per bracelet regardless of
+ * thread timing.
+ */
+public class SimulatedBraceletNetwork implements GattTransport.Factory {
+
+    /**
+     * Link and bracelet parameters. Changes only affect bracelets opened afterwards.
+     */
+    public static class Config {
+        /**
+         * Largest ATT MTU the bracelet accepts.
+         */
+        public int maxMtu = 247;
+        /**
+         * Connection intervals in microseconds, by connection priority.
+         */
+        public long balancedIntervalMicros = 30000;
+        public long highIntervalMicros = 7500;
+        public long lowPowerIntervalMicros = 100000;
+        /**
+         * Packets each side can send per connection event on the 1M PHY; doubled on 2M.
+         */
+        public int packetsPerEvent = 4;
+        public boolean supports2M = true;
+        /**
+         * Probability that a connection event carries nothing, so its packets are retransmitted
+         * in the next one.
+         */
+        public double lossRate = 0;
+        /**
+         * Consecutive lost connection events that end the link with a supervision timeout.
+         */
+        public int supervisionEvents = 20;
+        /**
+         * Mean rate of spontaneous disconnects of a connected bracelet, per second.
+         */
+        public double disconnectsPerSecond = 0;
+        public long connectDelayMillis = 50;
+        public long discoveryDelayMillis = 300;
+        /**
+         * Unsolicited TX notifications: {@code burstSize} of them every {@code burstPeriodMillis}
+         * while TX notifications are enabled, each filling one packet. 0 disables bursts.
+         */
+        public int burstSize = 0;
+        public long burstPeriodMillis = 1000;
+        public String firmwareRevision = "1.0.0";
+        public long seed = 1;
+    }
+
+    /**
+     * Bracelet firmware behaviour beyond the link model, e.g. answering commands written to RX.
+     * Called on a timer thread once the write reached the bracelet.
+     */
+    public interface Peer {
+        void onWrite(SimulatedBracelet bracelet, UUID characteristicUuid, byte[] value);
+    }
+
+    final Config config;
+    final ScheduledExecutorService timer;
+    volatile Peer peer;
+    private final ConcurrentHashMap<String, SimulatedBracelet> mBracelets = new ConcurrentHashMap<String, SimulatedBracelet>();
+
+    final AtomicLong packetsSent = new AtomicLong();
+    final AtomicLong eventsLost = new AtomicLong();
+    final AtomicLong notificationsSent = new AtomicLong();
+    final AtomicLong disconnects = new AtomicLong();
+
+    /**
+     * @param threads size of the timer pool shared by all bracelets.
+     */
+    public SimulatedBraceletNetwork(Config config, int threads) {
+        this.config = config;
+        final AtomicInteger count = new AtomicInteger();
+        this.timer = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimBracelet-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void setPeer(Peer peer) {
+        this.peer = peer;
+    }
+
+    public GattTransport open(String address, boolean autoConnect, GattTransport.Listener listener) {
+        SimulatedBracelet bracelet = new SimulatedBracelet(this, address, listener);
+        SimulatedBracelet previous = this.mBracelets.put(address, bracelet);
+        if (previous != null) {
+            previous.close();
+        }
+        bracelet.connect();
+        return bracelet;
+    }
+
+    public SimulatedBracelet get(String address) {
+        return this.mBracelets.get(address);
+    }
+
+    public Collection<SimulatedBracelet> getBracelets() {
+        return Collections.unmodifiableCollection(this.mBracelets.values());
+    }
+
+    /**
+     * @return link layer packets that got through, in either direction.
+     */
+    public long getPacketsSent() {
+        return this.packetsSent.get();
+    }
+
+    public long getEventsLost() {
+        return this.eventsLost.get();
+    }
+
+    public long getNotificationsSent() {
+        return this.notificationsSent.get();
+    }
+
+    /**
+     * @return links dropped by supervision timeouts or spontaneous disconnects.
+     */
+    public long getDisconnects() {
+        return this.disconnects.get();
+    }
+
+    /**
+     * Closes all bracelets and stops the timer pool.
+     */
+    public void shutdown() {
+        for (SimulatedBracelet bracelet : this.mBracelets.values()) {
+            bracelet.close();
+        }
+        this.mBracelets.clear();
+        this.timer.shutdownNow();
+    }
+
+    void forget(SimulatedBracelet bracelet) {
+        this.mBracelets.remove(bracelet.getAddress(), bracelet);
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the BLE service benchmarks with the GC profiler attached, so every result comes with
+ * its allocation rate ({@code gc.alloc.rate.norm}, bytes per operation). Takes the usual JMH
+ * command line, e.g. a regular expression narrowing the run or {@code -p payloadSize=244}.
+ * Built into {@code target/benchmarks.jar} by {@code mvn -Pbenchmarks package}.
+ */
+public class BleBenchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
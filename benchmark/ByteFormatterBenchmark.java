@@ -0,0 +1,88 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ByteFormatter} with the payload sizes of {@link HexFormatBenchmark}, whose legacy
+ * formatters are the baseline. The {@code Into} variants reuse one sink across invocations and
+ * should report no allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteFormatterBenchmark {
+
+    @Param({"20", "64", "244", "1024", "4096", "16384", "65536"})
+    public int payloadSize;
+
+    private byte[] mBytes;
+    private char[] mChars;
+    private StringBuilder mBuilder;
+
+    @Setup
+    public void setUp() {
+        this.mBytes = new byte[this.payloadSize];
+        new Random(42).nextBytes(this.mBytes);
+        // large enough for every mode, so the sinks never grow during measurement
+        this.mChars = new char[this.payloadSize * 5];
+        this.mBuilder = new StringBuilder(this.payloadSize * 5);
+    }
+
+    @Benchmark
+    public String hex() {
+        return ByteFormatter.toHex(this.mBytes);
+    }
+
+    @Benchmark
+    public int hexIntoChars() {
+        return ByteFormatter.format(this.mBytes, 0, this.mBytes.length, ByteFormatter.Mode.HEX, this.mChars, 0);
+    }
+
+    @Benchmark
+    public int hexIntoBuilder() {
+        this.mBuilder.setLength(0);
+        return ByteFormatter.append(this.mBuilder, this.mBytes, ByteFormatter.Mode.HEX).length();
+    }
+
+    @Benchmark
+    public String spacedHex() {
+        return ByteFormatter.toSpacedHex(this.mBytes);
+    }
+
+    @Benchmark
+    public int spacedHexIntoChars() {
+        return ByteFormatter.format(this.mBytes, 0, this.mBytes.length, ByteFormatter.Mode.SPACED_HEX, this.mChars, 0);
+    }
+
+    @Benchmark
+    public String decimal() {
+        return ByteFormatter.toDecimal(this.mBytes);
+    }
+
+    @Benchmark
+    public int decimalIntoChars() {
+        return ByteFormatter.format(this.mBytes, 0, this.mBytes.length, ByteFormatter.Mode.DECIMAL, this.mChars, 0);
+    }
+
+    @Benchmark
+    public int decimalIntoBuilder() {
+        this.mBuilder.setLength(0);
+        return ByteFormatter.append(this.mBuilder, this.mBytes, ByteFormatter.Mode.DECIMAL).length();
+    }
+}
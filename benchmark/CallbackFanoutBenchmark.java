@@ -0,0 +1,96 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notification fan-out of the service: route lookup in {@link ServiceCallbackRegistry} and
+ * dispatch to every interested listener, as done by its notification sink. The listener is a
+ * plain interface shaped like {@code IServiceCallback#onCharacteristicChanged} without the
+ * Android handles, so the benchmark runs off-device; the UUID string is built once, like the
+ * cached strings of {@code CharacteristicRegistry}.
+ * <p>
+ * With {@code filtered}, half of the listeners only subscribe to another characteristic and
+ * are skipped by routing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackFanoutBenchmark {
+
+    private static final UUID NOTIFIED_UUID = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    private static final UUID OTHER_UUID = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+
+    @Param({"1", "4", "16", "64"})
+    public int listeners;
+
+    @Param({"false", "true"})
+    public boolean filtered;
+
+    @Param({"20", "244"})
+    public int payloadSize;
+
+    private static final String NOTIFIED_UUID_STRING = NOTIFIED_UUID.toString();
+
+    private final ServiceCallbackRegistry<NotificationListener> mRegistry =
+            new ServiceCallbackRegistry<NotificationListener>(NotificationListener.class);
+    private byte[] mValue;
+
+    interface NotificationListener {
+        void onCharacteristicChanged(String uuid, byte[] value);
+    }
+
+    static final class Listener implements NotificationListener {
+        private final Blackhole mBlackhole;
+
+        Listener(Blackhole blackhole) {
+            this.mBlackhole = blackhole;
+        }
+
+        public void onCharacteristicChanged(String uuid, byte[] value) {
+            this.mBlackhole.consume(value);
+        }
+    }
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.mRegistry.clear();
+        for (int i = 0; i < this.listeners; i++) {
+            Listener listener = new Listener(blackhole);
+            if (this.filtered && i % 2 == 1) {
+                this.mRegistry.add(listener, Collections.singleton(OTHER_UUID));
+            } else {
+                this.mRegistry.add(listener);
+            }
+        }
+        this.mValue = new byte[this.payloadSize];
+        new Random(42).nextBytes(this.mValue);
+    }
+
+    @Benchmark
+    public int dispatch() {
+        NotificationListener[] callbacks = this.mRegistry.forCharacteristic(NOTIFIED_UUID);
+        for (NotificationListener callback : callbacks) {
+            callback.onCharacteristicChanged(NOTIFIED_UUID_STRING, this.mValue);
+        }
+        return callbacks.length;
+    }
+}
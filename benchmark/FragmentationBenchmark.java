@@ -0,0 +1,82 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fragment loop of {@code BleWritePipeline}: streams one payload through the pipeline's
+ * {@link FragmentWindow} and hands every packet to a fake GATT writer, acknowledging the
+ * window once it is full like a streamed payload with up to
+ * {@link FragmentWindow#STREAM_WINDOW} fragments in flight.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmentationBenchmark {
+
+    @Param({"20", "64", "244", "1024", "4096", "16384", "65536"})
+    public int payloadSize;
+
+    /**
+     * Default ATT MTU and the preferred MTU of the service, minus the ATT header.
+     */
+    @Param({"20", "244"})
+    public int packetSize;
+
+    private byte[] mPayload;
+    private final FragmentWindow mWindow = new FragmentWindow();
+    private FakeGatt mGatt;
+
+    /**
+     * Stands in for the RX characteristic: consumes the packet and acknowledges it.
+     */
+    static final class FakeGatt {
+        Blackhole blackhole;
+
+        boolean writeFragment(byte[] fragment, boolean withResponse) {
+            this.blackhole.consume(fragment);
+            return true;
+        }
+    }
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.mPayload = new byte[this.payloadSize];
+        new Random(42).nextBytes(this.mPayload);
+        this.mGatt = new FakeGatt();
+        this.mGatt.blackhole = blackhole;
+    }
+
+    @Benchmark
+    public int fragment() {
+        FragmentWindow window = this.mWindow;
+        int packets = 0;
+        window.begin(this.mPayload, FragmentWindow.STREAM_WINDOW);
+        while (!window.isDone()) {
+            while (window.hasRoom()) {
+                this.mGatt.writeFragment(window.next(this.packetSize).array(), false);
+                packets++;
+            }
+            while (window.inFlightCount() > 0) {
+                window.acknowledge();
+            }
+        }
+        return packets;
+    }
+}
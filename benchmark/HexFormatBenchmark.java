@@ -0,0 +1,105 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte formatting of {@link BluetoothLeService}. The service is an Android {@code Service} and
+ * cannot be loaded on a plain JVM, so its {@code byte2HexStr} and both
+ * {@code bytesToByteString} overloads are copied here verbatim as the baseline for
+ * {@link ByteFormatterBenchmark}, which replaced them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexFormatBenchmark {
+
+    @Param({"20", "64", "244", "1024", "4096", "16384", "65536"})
+    public int payloadSize;
+
+    private byte[] mBytes;
+    private ArrayList<Byte> mByteList;
+
+    @Setup
+    public void setUp() {
+        this.mBytes = new byte[this.payloadSize];
+        new Random(42).nextBytes(this.mBytes);
+        this.mByteList = new ArrayList<Byte>(this.payloadSize);
+        for (byte b : this.mBytes) {
+            this.mByteList.add(b);
+        }
+    }
+
+    @Benchmark
+    public String byte2HexStr() {
+        return Legacy.byte2HexStr(this.mBytes);
+    }
+
+    @Benchmark
+    public String bytesToByteString() {
+        return Legacy.bytesToByteString(this.mBytes);
+    }
+
+    @Benchmark
+    public String bytesToByteStringList() {
+        return Legacy.bytesToByteString(this.mByteList);
+    }
+
+    /**
+     * The formatters {@link BluetoothLeService} had before {@link ByteFormatter}, with their
+     * constants inlined.
+     */
+    static final class Legacy {
+        private static final int FREE = 0;
+        private static final int STATE_CONNECTING = 1;
+        private static final String VIA_RESULT_SUCCESS = "0";
+
+        static String byte2HexStr(byte[] b) {
+            String stmp = "1.0";
+            StringBuilder sb = new StringBuilder("");
+            for (int n = FREE; n < b.length; n += STATE_CONNECTING) {
+                String str;
+                stmp = Integer.toHexString(b[n]);
+                if (stmp.length() == STATE_CONNECTING) {
+                    str = VIA_RESULT_SUCCESS + stmp;
+                } else {
+                    str = stmp;
+                }
+                sb.append(str);
+            }
+            return sb.toString().toUpperCase().trim();
+        }
+
+        static String bytesToByteString(byte[] bytes) {
+            String btyesString = "";
+            for (int i = 0; i < bytes.length; i++) {
+                btyesString += " " + bytes[i];
+            }
+            return btyesString;
+        }
+
+        static String bytesToByteString(ArrayList<Byte> bytes) {
+            String btyesString = "";
+            for (int i = 0; i < bytes.size(); i++) {
+                btyesString += " " + bytes.get(i);
+            }
+            return btyesString;
+        }
+    }
+}
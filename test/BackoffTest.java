@@ -0,0 +1,66 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackoffTest {
+
+    private final Backoff mBackoff = new Backoff(500, 30000, new Random(1));
+
+    @Test
+    public void ceilingDoublesUpToTheCap() {
+        assertEquals(500, this.mBackoff.ceiling(0));
+        assertEquals(1000, this.mBackoff.ceiling(1));
+        assertEquals(16000, this.mBackoff.ceiling(5));
+        assertEquals(30000, this.mBackoff.ceiling(6));
+        assertEquals(30000, this.mBackoff.ceiling(40));
+        assertEquals(30000, this.mBackoff.ceiling(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void negativeAttemptUsesInitialDelay() {
+        assertEquals(500, this.mBackoff.ceiling(-3));
+    }
+
+    @Test
+    public void delayStaysInUpperHalfOfCeiling() {
+        for (int attempt = 0; attempt < 64; attempt++) {
+            long ceiling = this.mBackoff.ceiling(attempt);
+            for (int i = 0; i < 200; i++) {
+                long delay = this.mBackoff.delay(attempt);
+                assertTrue("attempt " + attempt + ": " + delay, delay >= ceiling / 2 && delay < ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void delaysAreJittered() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = this.mBackoff.delay(10);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        // uniform over [15000, 30000): 1000 draws cover most of the range
+        assertTrue(min < 16000);
+        assertTrue(max > 29000);
+    }
+
+    @Test
+    public void sameSeedGivesSameDelays() {
+        Backoff other = new Backoff(500, 30000, new Random(1));
+        for (int attempt = 0; attempt < 10; attempt++) {
+            assertEquals(other.delay(attempt), this.mBackoff.delay(attempt));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxBelowInitial() {
+        new Backoff(1000, 500, new Random());
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockingBraceletSessionTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final byte[] PAYLOAD = {1, 2, 3};
+
+    /**
+     * Answers nothing by itself; the test fires the events.
+     */
+    private static final class ScriptedTransport implements GattTransport, GattTransport.Factory {
+        final boolean mFailConnect;
+        GattTransport.Listener mListener;
+        final CountDownLatch mWrites = new CountDownLatch(2);
+
+        ScriptedTransport(boolean failConnect) {
+            this.mFailConnect = failConnect;
+        }
+
+        public GattTransport open(String address, boolean autoConnect, GattTransport.Listener listener) {
+            this.mListener = listener;
+            listener.onConnectionStateChange(this, this.mFailConnect ? 133 : GATT_SUCCESS,
+                    this.mFailConnect ? STATE_DISCONNECTED : STATE_CONNECTED);
+            return this;
+        }
+
+        public String getAddress() {
+            return ADDRESS;
+        }
+
+        public boolean connect() {
+            return true;
+        }
+
+        public void disconnect() {
+        }
+
+        public void close() {
+        }
+
+        public boolean discoverServices() {
+            return true;
+        }
+
+        public boolean refresh() {
+            return true;
+        }
+
+        public int getProperties(UUID serviceUuid, UUID characteristicUuid) {
+            return PROPERTY_WRITE;
+        }
+
+        public boolean hasDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid) {
+            return false;
+        }
+
+        public boolean writeCharacteristic(UUID serviceUuid, UUID characteristicUuid, byte[] value,
+                                           boolean withResponse) {
+            this.mWrites.countDown();
+            return true;
+        }
+
+        public boolean readCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+            return true;
+        }
+
+        public boolean setCharacteristicNotification(UUID serviceUuid, UUID characteristicUuid, boolean enabled) {
+            return true;
+        }
+
+        public boolean writeDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid,
+                                       byte[] value) {
+            return true;
+        }
+
+        public boolean requestMtu(int mtu) {
+            return true;
+        }
+
+        public boolean requestConnectionPriority(int connectionPriority) {
+            return true;
+        }
+
+        public boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+            return true;
+        }
+    }
+
+    @Test
+    public void lateCallbackDoesNotCompleteTheNextRequest() throws Exception {
+        final ScriptedTransport transport = new ScriptedTransport(false);
+        final BlockingBraceletSession session = new BlockingBraceletSession(ADDRESS, transport, 100, 4);
+        assertTrue(session.connect(1000));
+        assertFalse(session.write(BlockingBraceletSession.RX_SERVICE_UUID, BlockingBraceletSession.RX_CHAR_UUID,
+                PAYLOAD, true));
+
+        final AtomicBoolean written = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    written.set(session.write(BlockingBraceletSession.RX_SERVICE_UUID,
+                            BlockingBraceletSession.RX_CHAR_UUID, PAYLOAD, true));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        // the success belongs to the first, timed-out write; the second one fails
+        transport.mListener.onCharacteristicWrite(transport, BlockingBraceletSession.RX_CHAR_UUID,
+                GattTransport.GATT_SUCCESS);
+        assertTrue(transport.mWrites.await(5, TimeUnit.SECONDS));
+        transport.mListener.onCharacteristicWrite(transport, BlockingBraceletSession.RX_CHAR_UUID, 133);
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertFalse(written.get());
+    }
+
+    @Test
+    public void connectReturnsAsSoonAsTheAttemptFails() throws Exception {
+        BlockingBraceletSession session = new BlockingBraceletSession(ADDRESS, new ScriptedTransport(true), 100, 4);
+        long started = System.nanoTime();
+        assertFalse(session.connect(30000));
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+        assertFalse(session.isConnected());
+    }
+
+    @Test
+    public void disconnectFailsTheRequestInFlight() throws Exception {
+        final ScriptedTransport transport = new ScriptedTransport(false);
+        final BlockingBraceletSession session = new BlockingBraceletSession(ADDRESS, transport, 30000, 4);
+        assertTrue(session.connect(1000));
+        final AtomicBoolean written = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    written.set(session.write(BlockingBraceletSession.RX_SERVICE_UUID,
+                            BlockingBraceletSession.RX_CHAR_UUID, PAYLOAD, true));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        while (transport.mWrites.getCount() == 2) {
+            Thread.sleep(1);
+        }
+        transport.mListener.onConnectionStateChange(transport, 8, GattTransport.STATE_DISCONNECTED);
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertFalse(written.get());
+    }
+}
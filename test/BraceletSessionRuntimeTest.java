@@ -0,0 +1,157 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BraceletSessionRuntimeTest {
+
+    private static final int SESSIONS = 500;
+
+    private SimulatedBraceletNetwork mNetwork;
+    private BraceletSessionRuntime mRuntime;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (this.mRuntime != null) {
+            this.mRuntime.shutdown();
+            this.mRuntime.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        if (this.mNetwork != null) {
+            this.mNetwork.shutdown();
+        }
+    }
+
+    private static String address(int index) {
+        return String.format(Locale.US, "C1:00:00:00:%02X:%02X", index >> 8, index & 0xff);
+    }
+
+    private void start(int platformThreads) {
+        SimulatedBraceletNetwork.Config config = new SimulatedBraceletNetwork.Config();
+        config.balancedIntervalMicros = 2000;
+        config.connectDelayMillis = 5;
+        config.discoveryDelayMillis = 5;
+        this.mNetwork = new SimulatedBraceletNetwork(config, 4);
+        this.mRuntime = new BraceletSessionRuntime(this.mNetwork, 5000,
+                BlockingBraceletSession.DEFAULT_NOTIFICATION_CAPACITY, platformThreads);
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+    }
+
+    @Test
+    public void usesVirtualThreadsFromJava21() {
+        start(BraceletSessionRuntime.DEFAULT_PLATFORM_THREADS);
+        assertEquals(javaVersion() >= 21, this.mRuntime.isVirtual());
+    }
+
+    @Test
+    public void runsManySessionsToCompletion() throws Exception {
+        start(BraceletSessionRuntime.DEFAULT_PLATFORM_THREADS);
+        final AtomicInteger completed = new AtomicInteger();
+        List<Future<Void>> sessions = new ArrayList<Future<Void>>(SESSIONS);
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions.add(this.mRuntime.start(address(i), new BraceletSessionRuntime.SessionBody() {
+                public void run(BlockingBraceletSession session) throws Exception {
+                    assertTrue(session.connect(5000));
+                    assertTrue(session.discoverServices());
+                    assertTrue(session.send(new byte[100], true));
+                    session.disconnect();
+                    assertFalse(session.isConnected());
+                    completed.incrementAndGet();
+                }
+            }));
+        }
+        assertTrue(this.mRuntime.getActiveCount() > 0);
+        for (Future<Void> session : sessions) {
+            assertNull(session.get(60, TimeUnit.SECONDS));
+        }
+        assertEquals(SESSIONS, completed.get());
+        assertEquals(0, this.mRuntime.getActiveCount());
+        // every transport was closed when its session returned
+        assertTrue(this.mNetwork.getBracelets().isEmpty());
+    }
+
+    @Test
+    public void failingSessionReportsItsExceptionAndIsReleased() throws Exception {
+        start(BraceletSessionRuntime.DEFAULT_PLATFORM_THREADS);
+        Future<Void> session = this.mRuntime.start(address(0), new BraceletSessionRuntime.SessionBody() {
+            public void run(BlockingBraceletSession session) throws Exception {
+                assertTrue(session.connect(5000));
+                throw new IllegalStateException("script failed");
+            }
+        });
+        try {
+            session.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("script failed", e.getCause().getMessage());
+        }
+        assertEquals(0, this.mRuntime.getActiveCount());
+        assertTrue(this.mNetwork.getBracelets().isEmpty());
+    }
+
+    @Test
+    public void platformPoolCapsConcurrentSessions() throws Exception {
+        start(4);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<Void>> sessions = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 16; i++) {
+            sessions.add(this.mRuntime.start(address(i), new BraceletSessionRuntime.SessionBody() {
+                public void run(BlockingBraceletSession session) throws Exception {
+                    int now = running.incrementAndGet();
+                    int max;
+                    while ((max = maxRunning.get()) < now && !maxRunning.compareAndSet(max, now)) {
+                        // retry
+                    }
+                    Thread.sleep(50);
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        for (Future<Void> session : sessions) {
+            session.get(10, TimeUnit.SECONDS);
+        }
+        if (this.mRuntime.isVirtual()) {
+            assertTrue(maxRunning.get() > 4);
+        } else {
+            assertEquals(4, maxRunning.get());
+        }
+    }
+
+    @Test
+    public void shutdownInterruptsBlockedSessions() throws Exception {
+        start(BraceletSessionRuntime.DEFAULT_PLATFORM_THREADS);
+        final CountDownLatch waiting = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            this.mRuntime.start(address(i), new BraceletSessionRuntime.SessionBody() {
+                public void run(BlockingBraceletSession session) throws Exception {
+                    assertTrue(session.connect(5000));
+                    waiting.countDown();
+                    session.awaitNotification(TimeUnit.MINUTES.toMillis(10));
+                }
+            });
+        }
+        assertTrue(waiting.await(10, TimeUnit.SECONDS));
+        this.mRuntime.shutdown();
+        assertTrue(this.mRuntime.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, this.mRuntime.getActiveCount());
+    }
+}
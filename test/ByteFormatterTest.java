@@ -0,0 +1,67 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ByteFormatterTest {
+
+    private static final byte[] BYTES = {(byte) 0x9d, 0x0a, 0x00, (byte) 0xff, 0x7f};
+
+    @Test
+    public void formatsEachMode() {
+        assertEquals("9D0A00FF7F", ByteFormatter.toHex(BYTES));
+        assertEquals("9D 0A 00 FF 7F", ByteFormatter.toSpacedHex(BYTES));
+        assertEquals("-99 10 0 -1 127", ByteFormatter.toDecimal(BYTES));
+    }
+
+    @Test
+    public void nullAndEmptyFormatAsEmpty() {
+        for (ByteFormatter.Mode mode : ByteFormatter.Mode.values()) {
+            assertEquals("", ByteFormatter.toString(null, mode));
+            assertEquals("", ByteFormatter.toString(new byte[0], mode));
+            assertEquals("", ByteFormatter.append(new StringBuilder(), null, mode).toString());
+            assertEquals(0, ByteFormatter.length(new byte[0], 0, 0, mode));
+        }
+    }
+
+    @Test
+    public void everyByteMatchesTheJdk() {
+        for (int i = 0; i < 256; i++) {
+            byte[] value = {(byte) i};
+            assertEquals(String.format("%02X", i), ByteFormatter.toHex(value));
+            assertEquals(String.format("%02X", i), ByteFormatter.toSpacedHex(value));
+            assertEquals(Integer.toString((byte) i), ByteFormatter.toDecimal(value));
+        }
+    }
+
+    @Test
+    public void formatWritesRangeAtOffsetAndReturnsEnd() {
+        for (ByteFormatter.Mode mode : ByteFormatter.Mode.values()) {
+            String expected = ByteFormatter.toString(Arrays.copyOfRange(BYTES, 1, 4), mode);
+            int length = ByteFormatter.length(BYTES, 1, 3, mode);
+            assertEquals(expected.length(), length);
+
+            char[] dst = new char[length + 4];
+            Arrays.fill(dst, '#');
+            int end = ByteFormatter.format(BYTES, 1, 3, mode, dst, 2);
+            assertEquals(2 + length, end);
+            assertEquals("##" + expected + "##", new String(dst));
+        }
+    }
+
+    @Test
+    public void appendKeepsExistingContent() {
+        for (ByteFormatter.Mode mode : ByteFormatter.Mode.values()) {
+            StringBuilder sink = new StringBuilder("rx: ");
+            ByteFormatter.append(sink, BYTES, 2, 2, mode);
+            assertEquals("rx: " + ByteFormatter.toString(new byte[]{0x00, (byte) 0xff}, mode), sink.toString());
+
+            sink.setLength(0);
+            assertEquals(ByteFormatter.toString(BYTES, mode), ByteFormatter.append(sink, BYTES, mode).toString());
+            assertEquals("", ByteFormatter.append(new StringBuilder(), BYTES, 1, 0, mode).toString());
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandOutboxTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private CommandOutbox mOutbox;
+
+    /**
+     * Records what was sent and completes each command when told to.
+     */
+    private static final class FakeSender implements CommandOutbox.Sender {
+        final List<byte[]> sent = new ArrayList<byte[]>();
+        final List<CommandOutbox.Callback> callbacks = new ArrayList<CommandOutbox.Callback>();
+        CommandOutbox outbox;
+        boolean sentWithLock;
+
+        public void send(byte[] payload, OutboundCommandQueue.Priority priority, CommandOutbox.Callback callback) {
+            this.sentWithLock |= this.outbox != null && Thread.holdsLock(this.outbox);
+            this.sent.add(payload);
+            this.callbacks.add(callback);
+        }
+
+        void completeAll(boolean success) {
+            List<CommandOutbox.Callback> pending = new ArrayList<CommandOutbox.Callback>(this.callbacks);
+            this.callbacks.clear();
+            for (CommandOutbox.Callback callback : pending) {
+                callback.onSent(success);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        this.mFile = new File(this.mFolder.getRoot(), "outbox.log");
+        this.mOutbox = new CommandOutbox(this.mFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.mOutbox.close();
+    }
+
+    private CommandOutbox reopen() throws IOException {
+        this.mOutbox.close();
+        this.mOutbox = new CommandOutbox(this.mFile);
+        return this.mOutbox;
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    private List<byte[]> drainAll() {
+        FakeSender sender = new FakeSender();
+        this.mOutbox.drain(sender, 16);
+        List<byte[]> sent = new ArrayList<byte[]>(sender.sent);
+        sender.completeAll(true);
+        return sent;
+    }
+
+    @Test
+    public void pendingCommandsSurviveReopen() throws IOException {
+        byte[] first = payload(10, 1);
+        byte[] second = payload(300, 2);
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, first, null);
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.URGENT, second, null);
+
+        reopen();
+        assertEquals(2, this.mOutbox.size());
+        List<byte[]> sent = drainAll();
+        assertEquals(2, sent.size());
+        assertArrayEquals(first, sent.get(0));
+        assertArrayEquals(second, sent.get(1));
+    }
+
+    @Test
+    public void doneCommandsAreNotReplayed() throws IOException {
+        long sequence = this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, payload(8, 1), null);
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, payload(8, 2), null);
+        this.mOutbox.markDone(sequence);
+
+        reopen();
+        assertEquals(1, this.mOutbox.size());
+        assertArrayEquals(payload(8, 2), drainAll().get(0));
+    }
+
+    @Test
+    public void newerCommandOfSameTypeSupersedesOlder() throws IOException {
+        final List<Boolean> results = new ArrayList<Boolean>();
+        this.mOutbox.append(7, OutboundCommandQueue.Priority.NORMAL, payload(4, 1), new CommandOutbox.Callback() {
+            public void onSent(boolean success) {
+                results.add(success);
+            }
+        });
+        this.mOutbox.append(7, OutboundCommandQueue.Priority.NORMAL, payload(4, 2), null);
+        assertEquals(1, this.mOutbox.size());
+        assertEquals(1, results.size());
+        assertFalse(results.get(0));
+
+        reopen();
+        assertEquals(1, this.mOutbox.size());
+        assertArrayEquals(payload(4, 2), drainAll().get(0));
+    }
+
+    @Test
+    public void replayStopsAtCorruptRecord() throws IOException {
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, payload(16, 1), null);
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, payload(16, 2), null);
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, payload(16, 3), null);
+        this.mOutbox.close();
+
+        // flip a payload byte of the second record: header 18 + payload 16 + crc 4 per record
+        int recordSize = 18 + 16 + 4;
+        RandomAccessFile raf = new RandomAccessFile(this.mFile, "rw");
+        try {
+            raf.seek(recordSize + 18 + 5);
+            int value = raf.read();
+            raf.seek(recordSize + 18 + 5);
+            raf.write(value ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        this.mOutbox = new CommandOutbox(this.mFile);
+        assertEquals(1, this.mOutbox.size());
+        assertArrayEquals(payload(16, 1), drainAll().get(0));
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws IOException {
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, payload(16, 1), null);
+        this.mOutbox.close();
+
+        // a second record whose payload and CRC never made it to the file
+        RandomAccessFile raf = new RandomAccessFile(this.mFile, "rw");
+        try {
+            raf.seek(18 + 16 + 4);
+            raf.writeInt(16);
+            raf.write(1);
+            raf.write(OutboundCommandQueue.Priority.NORMAL.ordinal());
+        } finally {
+            raf.close();
+        }
+
+        this.mOutbox = new CommandOutbox(this.mFile);
+        assertEquals(1, this.mOutbox.size());
+        // appending after the torn record overwrites it
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, payload(16, 2), null);
+        reopen();
+        assertEquals(2, this.mOutbox.size());
+    }
+
+    @Test
+    public void compactionKeepsLiveCommands() throws IOException {
+        byte[] keep = payload(100, 9);
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, keep, null);
+        // enough dead records to pass the compaction threshold several times
+        for (int i = 0; i < 200; i++) {
+            long sequence = this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL,
+                    payload(1000, i), null);
+            this.mOutbox.markDone(sequence);
+        }
+        assertEquals(1, this.mOutbox.size());
+        // without compaction the log would hold about 200 KB of dead records
+        assertTrue(this.mFile.length() < 200 * 1000);
+
+        reopen();
+        assertEquals(1, this.mOutbox.size());
+        assertArrayEquals(keep, drainAll().get(0));
+    }
+
+    @Test
+    public void drainSendsInBatchesAndStopsOnFailure() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, payload(4, i), null);
+        }
+        FakeSender sender = new FakeSender();
+        sender.outbox = this.mOutbox;
+        this.mOutbox.drain(sender, 2);
+        assertEquals(2, sender.sent.size());
+
+        sender.completeAll(true);
+        assertEquals(4, sender.sent.size());
+        assertEquals(3, this.mOutbox.size());
+
+        sender.completeAll(false);
+        assertEquals(4, sender.sent.size());
+        assertEquals(3, this.mOutbox.size());
+        assertFalse(sender.sentWithLock);
+
+        // a failed drain can be restarted
+        this.mOutbox.drain(sender, 16);
+        assertEquals(7, sender.sent.size());
+        sender.completeAll(true);
+        assertEquals(0, this.mOutbox.size());
+    }
+
+    @Test
+    public void waitersAreCalledWithoutTheLock() throws IOException {
+        final boolean[] heldLock = new boolean[1];
+        final int[] calls = new int[1];
+        this.mOutbox.append(CommandOutbox.NO_KEY, OutboundCommandQueue.Priority.NORMAL, payload(4, 1),
+                new CommandOutbox.Callback() {
+                    public void onSent(boolean success) {
+                        heldLock[0] |= Thread.holdsLock(mOutbox);
+                        calls[0]++;
+                        assertTrue(success);
+                    }
+                });
+        drainAll();
+        assertEquals(1, calls[0]);
+        assertFalse(heldLock[0]);
+    }
+}
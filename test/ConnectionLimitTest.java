@@ -0,0 +1,68 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionLimitTest {
+
+    private static final class FakeLink implements ConnectionLimit.Link {
+        boolean active;
+
+        FakeLink(boolean active) {
+            this.active = active;
+        }
+
+        public boolean isActive() {
+            return this.active;
+        }
+    }
+
+    private final ConnectionLimit mLimit = new ConnectionLimit(2);
+    private final List<FakeLink> mLinks = new ArrayList<FakeLink>();
+
+    private FakeLink add(boolean active) {
+        FakeLink link = new FakeLink(active);
+        this.mLinks.add(link);
+        return link;
+    }
+
+    @Test
+    public void admitsNewLinksWhileSlotsAreFree() {
+        assertTrue(this.mLimit.admits(null, this.mLinks));
+        add(true);
+        assertTrue(this.mLimit.admits(null, this.mLinks));
+        add(true);
+        assertFalse(this.mLimit.admits(null, this.mLinks));
+    }
+
+    @Test
+    public void refusesReopeningDisconnectedLinkAtTheLimit() {
+        add(true);
+        add(true);
+        FakeLink dropped = add(false);
+        assertEquals(2, ConnectionLimit.activeCount(this.mLinks));
+        assertFalse(this.mLimit.admits(dropped, this.mLinks));
+    }
+
+    @Test
+    public void admitsLinkThatAlreadyHoldsASlot() {
+        FakeLink connecting = add(true);
+        add(true);
+        assertTrue(this.mLimit.admits(connecting, this.mLinks));
+    }
+
+    @Test
+    public void disconnectedLinksFreeTheirSlot() {
+        FakeLink first = add(true);
+        add(true);
+        FakeLink dropped = add(false);
+        first.active = false;
+        assertTrue(this.mLimit.admits(dropped, this.mLinks));
+    }
+}
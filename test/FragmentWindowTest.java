@@ -0,0 +1,83 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentWindowTest {
+
+    @Test
+    public void windowOfOneIssuesOneFragmentAtATime() {
+        FragmentWindow window = new FragmentWindow();
+        window.begin(new byte[60], 1);
+        PacketFragmenter.Fragment first = window.next(20);
+        assertFalse(window.hasRoom());
+        assertEquals(1, window.inFlightCount());
+        window.acknowledge();
+        assertTrue(window.hasRoom());
+        assertFalse(window.isDone());
+        int packets = 1;
+        while (!window.isDone()) {
+            window.next(20);
+            window.acknowledge();
+            packets++;
+        }
+        // 20 raw bytes, then 19 data bytes per packet
+        assertEquals(4, packets);
+        assertEquals(20, first.length());
+    }
+
+    @Test
+    public void streamWindowKeepsFragmentsInFlightOldestFirst() {
+        FragmentWindow window = new FragmentWindow();
+        window.begin(new byte[1000], FragmentWindow.STREAM_WINDOW);
+        PacketFragmenter.Fragment[] issued = new PacketFragmenter.Fragment[FragmentWindow.STREAM_WINDOW];
+        for (int i = 0; i < issued.length; i++) {
+            assertTrue(window.hasRoom());
+            issued[i] = window.next(20);
+        }
+        assertFalse(window.hasRoom());
+        Iterator<PacketFragmenter.Fragment> inFlight = window.inFlight().iterator();
+        for (PacketFragmenter.Fragment fragment : issued) {
+            assertSame(fragment, inFlight.next());
+        }
+        window.acknowledge();
+        assertTrue(window.hasRoom());
+        assertSame(issued[1], window.inFlight().iterator().next());
+    }
+
+    @Test
+    public void narrowingKeepsInFlightFragments() {
+        FragmentWindow window = new FragmentWindow();
+        window.begin(new byte[1000], FragmentWindow.STREAM_WINDOW);
+        window.next(20);
+        window.next(20);
+        window.setSize(1);
+        assertFalse(window.hasRoom());
+        assertEquals(2, window.inFlightCount());
+        window.acknowledge();
+        assertFalse(window.hasRoom());
+        window.acknowledge();
+        assertTrue(window.hasRoom());
+    }
+
+    @Test
+    public void clearReleasesEverythingForTheNextPayload() {
+        FragmentWindow window = new FragmentWindow();
+        window.begin(new byte[1000], FragmentWindow.STREAM_WINDOW);
+        while (window.hasRoom()) {
+            window.next(20);
+        }
+        window.clear();
+        assertEquals(0, window.inFlightCount());
+        window.begin(new byte[10], 1);
+        assertEquals(10, window.next(20).length());
+        window.acknowledge();
+        assertTrue(window.isDone());
+    }
+}
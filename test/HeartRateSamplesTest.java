@@ -0,0 +1,111 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeartRateSamplesTest {
+
+    private final HeartRateSamples mSamples = new HeartRateSamples(4);
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void decodesEightBitHeartRate() {
+        // sensor contact supported and detected
+        assertTrue(this.mSamples.append(bytes(0x06, 72), 100));
+        assertEquals(1, this.mSamples.size());
+        assertEquals(100, this.mSamples.timestamp(0));
+        assertEquals(72, this.mSamples.heartRate(0));
+        assertEquals(HeartRateSamples.SENSOR_CONTACT_DETECTED, this.mSamples.sensorContact(0));
+        assertEquals(HeartRateSamples.ENERGY_NOT_PRESENT, this.mSamples.energyExpended(0));
+        assertEquals(0, this.mSamples.rrCount(0));
+    }
+
+    @Test
+    public void decodesSixteenBitHeartRateAndEnergy() {
+        assertTrue(this.mSamples.append(bytes(0x09, 0x2c, 0x01, 0x10, 0x27), 0));
+        assertEquals(300, this.mSamples.heartRate(0));
+        assertEquals(10000, this.mSamples.energyExpended(0));
+        assertEquals(HeartRateSamples.SENSOR_CONTACT_UNSUPPORTED, this.mSamples.sensorContact(0));
+    }
+
+    @Test
+    public void decodesRrIntervals() {
+        assertTrue(this.mSamples.append(bytes(0x14, 60, 0x00, 0x04, 0x10, 0x04), 0));
+        assertTrue(this.mSamples.append(bytes(0x10, 61), 1));
+        assertTrue(this.mSamples.append(bytes(0x18, 62, 0x05, 0x00, 0xff, 0x03), 2));
+        assertEquals(HeartRateSamples.SENSOR_CONTACT_NOT_DETECTED, this.mSamples.sensorContact(0));
+        assertEquals(2, this.mSamples.rrCount(0));
+        assertEquals(1024, this.mSamples.rrInterval(0, 0));
+        assertEquals(1040, this.mSamples.rrInterval(0, 1));
+        assertEquals(0, this.mSamples.rrCount(1));
+        assertEquals(5, this.mSamples.energyExpended(2));
+        assertEquals(1, this.mSamples.rrCount(2));
+        assertEquals(1023, this.mSamples.rrInterval(2, 0));
+        assertArrayEquals(new int[]{0, 2, 2, 3}, Arrays.copyOf(this.mSamples.rrOffsets(), 4));
+    }
+
+    @Test
+    public void ignoresTrailingOddRrByte() {
+        assertTrue(this.mSamples.append(bytes(0x10, 60, 0x00, 0x04, 0x7f), 0));
+        assertEquals(1, this.mSamples.rrCount(0));
+    }
+
+    @Test
+    public void rejectsMalformedValues() {
+        assertFalse(this.mSamples.append(null, 0));
+        assertFalse(this.mSamples.append(bytes(), 0));
+        assertFalse(this.mSamples.append(bytes(0x00), 0));
+        // 16-bit heart rate with only one byte
+        assertFalse(this.mSamples.append(bytes(0x01, 0x2c), 0));
+        // energy expended flag without the field
+        assertFalse(this.mSamples.append(bytes(0x08, 72, 0x10), 0));
+        assertEquals(0, this.mSamples.size());
+    }
+
+    @Test
+    public void rejectsAppendWhenFullAndReusesAfterClear() {
+        for (int i = 0; i < this.mSamples.capacity(); i++) {
+            assertTrue(this.mSamples.append(bytes(0x00, 60 + i), i));
+        }
+        assertTrue(this.mSamples.isFull());
+        assertFalse(this.mSamples.append(bytes(0x00, 99), 9));
+        this.mSamples.clear();
+        assertEquals(0, this.mSamples.size());
+        assertTrue(this.mSamples.append(bytes(0x00, 99), 9));
+        assertEquals(99, this.mSamples.heartRate(0));
+    }
+
+    @Test
+    public void rrColumnGrowsBeyondInitialCapacity() {
+        // initial RR capacity is two per sample; nine intervals per sample outgrow it
+        byte[] value = new byte[2 + 9 * 2];
+        value[0] = 0x10;
+        value[1] = 70;
+        for (int i = 0; i < 9; i++) {
+            value[2 + i * 2] = (byte) (i + 1);
+        }
+        for (int sample = 0; sample < this.mSamples.capacity(); sample++) {
+            assertTrue(this.mSamples.append(value, sample));
+        }
+        assertTrue(this.mSamples.rrIntervals().length >= 36);
+        for (int sample = 0; sample < this.mSamples.capacity(); sample++) {
+            assertEquals(9, this.mSamples.rrCount(sample));
+            for (int i = 0; i < 9; i++) {
+                assertEquals(i + 1, this.mSamples.rrInterval(sample, i));
+            }
+        }
+    }
+}
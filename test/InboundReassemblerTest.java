@@ -0,0 +1,177 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InboundReassemblerTest {
+
+    private static final long TIMEOUT = InboundReassembler.DEFAULT_TIMEOUT_MS;
+
+    private final List<byte[]> mMessages = new ArrayList<byte[]>();
+    private final InboundReassembler.Listener mListener = new InboundReassembler.Listener() {
+        public void onMessage(byte[] message, int length) {
+            mMessages.add(Arrays.copyOf(message, length));
+        }
+    };
+    private InboundReassembler mReassembler;
+
+    @Before
+    public void setUp() {
+        this.mReassembler = newReassembler(null);
+    }
+
+    private InboundReassembler newReassembler(MessageFrameSizer sizer) {
+        return new InboundReassembler(this.mListener, sizer, InboundReassembler.DEFAULT_MAX_MESSAGE_SIZE, TIMEOUT);
+    }
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 7 + 1);
+        }
+        return payload;
+    }
+
+    private static List<byte[]> fragment(byte[] payload, int packetSize) {
+        PacketFragmenter fragmenter = new PacketFragmenter();
+        List<byte[]> packets = new ArrayList<byte[]>();
+        fragmenter.begin(payload);
+        while (!fragmenter.isFinished()) {
+            PacketFragmenter.Fragment fragment = fragmenter.next(packetSize);
+            packets.add(fragment.array().clone());
+            fragmenter.release(fragment);
+        }
+        return packets;
+    }
+
+    private void feed(List<byte[]> packets, long now) {
+        for (byte[] packet : packets) {
+            this.mReassembler.onPacket(packet, now);
+        }
+    }
+
+    @Test
+    public void shortFirstPacketIsAWholeMessage() {
+        byte[] message = payload(5);
+        this.mReassembler.onPacket(message, 0);
+        assertEquals(1, this.mMessages.size());
+        assertArrayEquals(message, this.mMessages.get(0));
+        assertFalse(this.mReassembler.isInFrame());
+    }
+
+    @Test
+    public void reassemblesFragmentedMessage() {
+        byte[] message = payload(100);
+        feed(fragment(message, 20), 0);
+        assertEquals(1, this.mMessages.size());
+        assertArrayEquals(message, this.mMessages.get(0));
+    }
+
+    @Test
+    public void acceptsReorderedAndDuplicatedPackets() {
+        byte[] message = payload(90);
+        List<byte[]> packets = fragment(message, 20);
+        byte[] first = packets.remove(0);
+        List<byte[]> continuations = new ArrayList<byte[]>(packets);
+        Collections.reverse(continuations);
+        this.mReassembler.onPacket(first, 0);
+        this.mReassembler.onPacket(continuations.get(1), 0);
+        feed(continuations, 0);
+        assertEquals(1, this.mMessages.size());
+        assertArrayEquals(message, this.mMessages.get(0));
+        assertEquals(1, this.mReassembler.getDuplicateCount());
+    }
+
+    @Test
+    public void fullSizeLastPacketIsDeliveredOnExpiry() {
+        // 20 + 19: both packets are full-size, so only the timeout can end the message
+        byte[] message = payload(39);
+        feed(fragment(message, 20), 0);
+        assertTrue(this.mReassembler.isInFrame());
+        this.mReassembler.expire(TIMEOUT);
+        assertTrue(this.mMessages.isEmpty());
+        this.mReassembler.expire(TIMEOUT + 1);
+        assertEquals(1, this.mMessages.size());
+        assertArrayEquals(message, this.mMessages.get(0));
+        assertEquals(0, this.mReassembler.getTimeoutCount());
+    }
+
+    @Test
+    public void incompleteFrameIsDiscardedOnExpiry() {
+        List<byte[]> packets = fragment(payload(100), 20);
+        packets.remove(2);
+        feed(packets, 0);
+        assertTrue(this.mReassembler.isInFrame());
+        this.mReassembler.expire(TIMEOUT + 1);
+        assertTrue(this.mMessages.isEmpty());
+        assertFalse(this.mReassembler.isInFrame());
+        assertEquals(1, this.mReassembler.getTimeoutCount());
+    }
+
+    @Test
+    public void detectsLargerPacketSizeFromTraffic() {
+        byte[] message = payload(600);
+        feed(fragment(message, 244), 0);
+        assertEquals(1, this.mMessages.size());
+        assertArrayEquals(message, this.mMessages.get(0));
+    }
+
+    @Test
+    public void learnedPacketSizeSplitsLaterMessages() {
+        feed(fragment(payload(600), 244), 0);
+        // a 100-byte first packet is short once 244-byte packets were seen
+        byte[] message = payload(100);
+        this.mReassembler.onPacket(message, 10);
+        assertEquals(2, this.mMessages.size());
+        assertArrayEquals(message, this.mMessages.get(1));
+    }
+
+    @Test
+    public void configuredPacketSizeOverridesDetection() {
+        this.mReassembler.setPacketSize(50);
+        byte[] message = payload(120);
+        feed(fragment(message, 50), 0);
+        assertEquals(1, this.mMessages.size());
+        assertArrayEquals(message, this.mMessages.get(0));
+    }
+
+    @Test
+    public void frameSizerCompletesFullSizeMessageWithoutTimeout() {
+        this.mReassembler = newReassembler(new MessageFrameSizer() {
+            public int messageLength(byte[] firstPacket) {
+                return firstPacket[0] == 0x7E ? 39 : INVALID;
+            }
+        });
+        byte[] message = payload(39);
+        message[0] = 0x7E;
+        feed(fragment(message, 20), 0);
+        assertEquals(1, this.mMessages.size());
+        assertArrayEquals(message, this.mMessages.get(0));
+
+        this.mReassembler.onPacket(payload(10), 0);
+        assertEquals(1, this.mMessages.size());
+        assertEquals(1, this.mReassembler.getDiscardedCount());
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        List<byte[]> packets = fragment(payload(100), 20);
+        this.mReassembler.onPacket(packets.get(0), 0);
+        this.mReassembler.reset();
+        assertFalse(this.mReassembler.isInFrame());
+        byte[] message = payload(8);
+        this.mReassembler.onPacket(message, 0);
+        assertEquals(1, this.mMessages.size());
+        assertArrayEquals(message, this.mMessages.get(0));
+    }
+}
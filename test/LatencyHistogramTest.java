@@ -0,0 +1,101 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private static void assertInBucket(long value) {
+        int index = LatencyHistogram.index(value);
+        assertTrue("upper bound of " + value, LatencyHistogram.upperBound(index) >= value);
+        if (index > 0) {
+            assertTrue("lower bound of " + value, LatencyHistogram.upperBound(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, LatencyHistogram.index(value));
+            assertEquals(value, LatencyHistogram.upperBound(value));
+        }
+    }
+
+    @Test
+    public void everyValueFallsIntoItsBucket() {
+        for (long value = 0; value < 100000; value++) {
+            assertInBucket(value);
+        }
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            assertInBucket(random.nextLong() >>> 1);
+        }
+        assertInBucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        int last = LatencyHistogram.index(Long.MAX_VALUE);
+        for (int index = 1; index <= last; index++) {
+            long lower = LatencyHistogram.upperBound(index - 1) + 1;
+            assertEquals(index, LatencyHistogram.index(lower));
+            assertEquals(index, LatencyHistogram.index(LatencyHistogram.upperBound(index)));
+        }
+    }
+
+    @Test
+    public void bucketWidthIsWithinOneEighth() {
+        int last = LatencyHistogram.index(Long.MAX_VALUE);
+        for (int index = 16; index < last; index++) {
+            long lower = LatencyHistogram.upperBound(index - 1) + 1;
+            long upper = LatencyHistogram.upperBound(index);
+            assertTrue("bucket " + index, (double) (upper - lower + 1) / lower <= 0.125);
+        }
+    }
+
+    @Test
+    public void snapshotReportsCountMeanMaxAndPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(false);
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500.5, snapshot.getMean(), 1e-9);
+        long median = snapshot.getValueAtPercentile(50);
+        assertTrue(median >= 500 && median <= 500 * 1.125);
+        long p99 = snapshot.getValueAtPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(false);
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void resetStartsANewInterval() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(40);
+        histogram.record(70);
+        assertEquals(2, histogram.snapshot(true).getCount());
+        LatencyHistogram.Snapshot empty = histogram.snapshot(false);
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getMax());
+        assertEquals(0, empty.getValueAtPercentile(99));
+        histogram.record(3);
+        assertEquals(3, histogram.snapshot(false).getMax());
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundCommandQueueTest {
+
+    /**
+     * Records the commands evicted under DROP_OLDEST.
+     */
+    private static final class RecordingDropListener implements OutboundCommandQueue.DropListener<String> {
+        final List<String> dropped = new ArrayList<String>();
+
+        public void onDropped(String item) {
+            this.dropped.add(item);
+        }
+    }
+
+    private static OutboundCommandQueue<String> queue(int capacity, OutboundCommandQueue.OverflowPolicy policy) {
+        return new OutboundCommandQueue<String>(capacity, policy, 0, null);
+    }
+
+    @Test
+    public void higherLanesAreDrainedFirstInArrivalOrder() {
+        OutboundCommandQueue<String> queue = queue(8, OutboundCommandQueue.OverflowPolicy.REJECT);
+        assertTrue(queue.offer("bulk 1", OutboundCommandQueue.Priority.BULK));
+        assertTrue(queue.offer("normal 1", OutboundCommandQueue.Priority.NORMAL));
+        assertTrue(queue.offer("bulk 2", OutboundCommandQueue.Priority.BULK));
+        assertTrue(queue.offer("urgent 1", OutboundCommandQueue.Priority.URGENT));
+        assertTrue(queue.offer("normal 2", OutboundCommandQueue.Priority.NORMAL));
+        assertEquals(2, queue.size(OutboundCommandQueue.Priority.BULK));
+
+        assertEquals("urgent 1", queue.poll());
+        assertEquals("normal 1", queue.poll());
+        assertEquals("normal 2", queue.poll());
+        assertEquals("bulk 1", queue.poll());
+        assertEquals("bulk 2", queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void rejectRefusesWhenFull() {
+        OutboundCommandQueue<String> queue = queue(2, OutboundCommandQueue.OverflowPolicy.REJECT);
+        assertTrue(queue.offer("a", OutboundCommandQueue.Priority.BULK));
+        assertTrue(queue.offer("b", OutboundCommandQueue.Priority.BULK));
+        // capacity is shared by all lanes, so even an urgent command is refused
+        assertFalse(queue.offer("c", OutboundCommandQueue.Priority.URGENT));
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(2, queue.getEnqueuedCount());
+        assertEquals("a", queue.poll());
+        assertTrue(queue.offer("c", OutboundCommandQueue.Priority.URGENT));
+    }
+
+    @Test
+    public void dropOldestEvictsFromTheLowestLaneNotAboveTheNewCommand() {
+        RecordingDropListener listener = new RecordingDropListener();
+        OutboundCommandQueue<String> queue = new OutboundCommandQueue<String>(3,
+                OutboundCommandQueue.OverflowPolicy.DROP_OLDEST, 0, listener);
+        queue.offer("urgent", OutboundCommandQueue.Priority.URGENT);
+        queue.offer("normal", OutboundCommandQueue.Priority.NORMAL);
+        queue.offer("bulk", OutboundCommandQueue.Priority.BULK);
+
+        assertTrue(queue.offer("normal 2", OutboundCommandQueue.Priority.NORMAL));
+        assertTrue(queue.offer("normal 3", OutboundCommandQueue.Priority.NORMAL));
+        assertEquals(2, listener.dropped.size());
+        assertEquals("bulk", listener.dropped.get(0));
+        assertEquals("normal", listener.dropped.get(1));
+
+        // only higher-priority commands are queued: falls back to reject
+        queue.poll();
+        queue.offer("urgent 2", OutboundCommandQueue.Priority.URGENT);
+        assertFalse(queue.offer("bulk 2", OutboundCommandQueue.Priority.BULK));
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(2, listener.dropped.size());
+    }
+
+    @Test
+    public void blockWaitsForSpaceThenTimesOut() throws Exception {
+        final OutboundCommandQueue<String> queue = new OutboundCommandQueue<String>(1,
+                OutboundCommandQueue.OverflowPolicy.BLOCK, 5000, null);
+        queue.offer("a", OutboundCommandQueue.Priority.NORMAL);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean accepted = new AtomicBoolean();
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                started.countDown();
+                accepted.set(queue.offer("b", OutboundCommandQueue.Priority.NORMAL));
+            }
+        });
+        producer.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+        assertEquals("a", queue.poll());
+        producer.join(5000);
+        assertTrue(accepted.get());
+        assertEquals("b", queue.poll());
+
+        OutboundCommandQueue<String> shortWait = new OutboundCommandQueue<String>(1,
+                OutboundCommandQueue.OverflowPolicy.BLOCK, 20, null);
+        shortWait.offer("a", OutboundCommandQueue.Priority.NORMAL);
+        long blockedAt = System.nanoTime();
+        assertFalse(shortWait.offer("b", OutboundCommandQueue.Priority.NORMAL));
+        assertTrue(System.nanoTime() - blockedAt >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, shortWait.getRejectedCount());
+    }
+
+    @Test
+    public void ringsWrapAround() {
+        OutboundCommandQueue<String> queue = queue(3, OutboundCommandQueue.OverflowPolicy.REJECT);
+        int next = 0;
+        int expected = 0;
+        // keeps two commands queued, so head and tail pass the end of the ring many times
+        for (int round = 0; round < 10; round++) {
+            while (queue.size() < 2) {
+                assertTrue(queue.offer("c" + next++, OutboundCommandQueue.Priority.NORMAL));
+            }
+            assertEquals("c" + expected++, queue.poll());
+        }
+        assertEquals("c" + expected, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void countersTrackDepthAndWaitTime() throws Exception {
+        OutboundCommandQueue<String> queue = queue(4, OutboundCommandQueue.OverflowPolicy.REJECT);
+        assertEquals(0, queue.getAverageWaitMillis(), 0);
+        queue.offer("a", OutboundCommandQueue.Priority.NORMAL);
+        queue.offer("b", OutboundCommandQueue.Priority.BULK);
+        queue.offer("c", OutboundCommandQueue.Priority.URGENT);
+        queue.poll();
+        queue.offer("d", OutboundCommandQueue.Priority.NORMAL);
+        assertEquals(3, queue.getHighWaterMark());
+        assertEquals(4, queue.getEnqueuedCount());
+
+        Thread.sleep(30);
+        queue.poll();
+        queue.poll();
+        queue.poll();
+        assertEquals(3, queue.getHighWaterMark());
+        assertTrue(queue.getMaxWaitMillis() >= 30);
+        // one command was taken at once, three after the sleep
+        assertTrue(queue.getAverageWaitMillis() >= 30 * 3 / 4.0);
+        assertTrue(queue.getAverageWaitMillis() <= queue.getMaxWaitMillis() + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        queue(0, OutboundCommandQueue.OverflowPolicy.REJECT);
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PacketFragmenterTest {
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) i;
+        }
+        return payload;
+    }
+
+    @Test
+    public void shortPayloadIsOneRawPacket() {
+        PacketFragmenter fragmenter = new PacketFragmenter();
+        byte[] payload = payload(12);
+        fragmenter.begin(payload);
+        PacketFragmenter.Fragment fragment = fragmenter.next(20);
+        assertArrayEquals(payload, fragment.array());
+        assertEquals(-1, fragment.packetCounter());
+        assertTrue(fragmenter.isFinished());
+    }
+
+    @Test
+    public void continuationPacketsCarryCounter() {
+        PacketFragmenter fragmenter = new PacketFragmenter();
+        byte[] payload = payload(60);
+        fragmenter.begin(payload);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+
+        PacketFragmenter.Fragment first = fragmenter.next(20);
+        assertEquals(20, first.length());
+        joined.write(first.array(), 0, first.length());
+        fragmenter.release(first);
+
+        int expectedCounter = 0;
+        while (!fragmenter.isFinished()) {
+            PacketFragmenter.Fragment fragment = fragmenter.next(20);
+            assertTrue(fragment.length() <= 20);
+            assertEquals(expectedCounter, fragment.packetCounter());
+            assertEquals(expectedCounter, fragment.array()[0]);
+            joined.write(fragment.array(), 1, fragment.length() - 1);
+            fragmenter.release(fragment);
+            expectedCounter++;
+        }
+        // 20 raw bytes, then 19 data bytes per packet: 19 + 19 + 2
+        assertEquals(3, expectedCounter);
+        assertArrayEquals(payload, joined.toByteArray());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void nextAfterFinishThrows() {
+        PacketFragmenter fragmenter = new PacketFragmenter();
+        fragmenter.begin(payload(4));
+        fragmenter.next(20);
+        fragmenter.next(20);
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        PacketFragmenter fragmenter = new PacketFragmenter(2);
+        fragmenter.begin(payload(100));
+        PacketFragmenter.Fragment first = fragmenter.next(20);
+        byte[] buffer = first.array();
+        fragmenter.release(first);
+        PacketFragmenter.Fragment second = fragmenter.next(20);
+        assertSame(buffer, second.array());
+    }
+
+    @Test
+    public void exhaustedPoolFallsBackToNewFragment() {
+        PacketFragmenter fragmenter = new PacketFragmenter(1);
+        fragmenter.begin(payload(100));
+        PacketFragmenter.Fragment held = fragmenter.next(20);
+        PacketFragmenter.Fragment extra = fragmenter.next(20);
+        assertNotSame(held, extra);
+        assertNotSame(held.array(), extra.array());
+        assertEquals(0, extra.packetCounter());
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceCallbackRegistryTest {
+
+    private static final UUID HEART_RATE = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+    private static final UUID TX = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    private static final UUID OTHER = UUID.fromString("0000fff3-0000-1000-8000-00805f9b34fb");
+
+    interface Listener {
+        void onChanged(byte[] value);
+    }
+
+    private static Listener listener() {
+        return new Listener() {
+            public void onChanged(byte[] value) {
+            }
+        };
+    }
+
+    private final ServiceCallbackRegistry<Listener> mRegistry =
+            new ServiceCallbackRegistry<Listener>(Listener.class);
+
+    @Test
+    public void unfilteredListenersReceiveEverythingInRegistrationOrder() {
+        assertTrue(this.mRegistry.isEmpty());
+        Listener a = listener();
+        Listener b = listener();
+        this.mRegistry.add(a);
+        this.mRegistry.add(b);
+        this.mRegistry.add(a);
+        assertArrayEquals(new Listener[]{a, b}, this.mRegistry.all());
+        assertArrayEquals(new Listener[]{a, b}, this.mRegistry.forCharacteristic(TX));
+        assertSame(Listener[].class, this.mRegistry.all().getClass());
+    }
+
+    @Test
+    public void filteredListenersOnlyReceiveTheirCharacteristics() {
+        Listener all = listener();
+        Listener heartRate = listener();
+        this.mRegistry.add(heartRate, Collections.singleton(HEART_RATE));
+        this.mRegistry.add(all);
+        assertArrayEquals(new Listener[]{heartRate, all}, this.mRegistry.forCharacteristic(HEART_RATE));
+        assertArrayEquals(new Listener[]{all}, this.mRegistry.forCharacteristic(TX));
+        // every other event still reaches filtered listeners
+        assertEquals(2, this.mRegistry.all().length);
+    }
+
+    @Test
+    public void reRegisteringReplacesTheFilter() {
+        Listener listener = listener();
+        this.mRegistry.add(listener, Collections.singleton(HEART_RATE));
+        this.mRegistry.add(listener, Arrays.asList(TX, OTHER));
+        assertEquals(0, this.mRegistry.forCharacteristic(HEART_RATE).length);
+        assertArrayEquals(new Listener[]{listener}, this.mRegistry.forCharacteristic(OTHER));
+        this.mRegistry.add(listener);
+        assertArrayEquals(new Listener[]{listener}, this.mRegistry.forCharacteristic(HEART_RATE));
+    }
+
+    @Test
+    public void removeLeavesPublishedSnapshotsUntouched() {
+        Listener a = listener();
+        Listener b = listener();
+        this.mRegistry.add(a);
+        this.mRegistry.add(b, Collections.singleton(TX));
+        Listener[] before = this.mRegistry.forCharacteristic(TX);
+        this.mRegistry.remove(a);
+        assertArrayEquals(new Listener[]{a, b}, before);
+        assertArrayEquals(new Listener[]{b}, this.mRegistry.forCharacteristic(TX));
+        this.mRegistry.clear();
+        assertTrue(this.mRegistry.isEmpty());
+        assertEquals(0, this.mRegistry.forCharacteristic(TX).length);
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedBraceletNetworkTest {
+
+    private static final int BRACELETS = 1000;
+    private static final int PAYLOAD_SIZE = 1000;
+    // five 244-byte packets, four of them with a packet_counter byte
+    private static final int BYTES_PER_BRACELET = PAYLOAD_SIZE + 4;
+    // MTU request, five writes and the firmware read
+    private static final int REQUESTS_PER_BRACELET = 7;
+
+    /**
+     * Totals of one fleet run.
+     */
+    private static final class Run {
+        long packetsSent;
+        long eventsLost;
+        long bytesReceived;
+        long elapsedNanos;
+    }
+
+    private static String address(int index) {
+        return String.format(Locale.US, "C0:00:00:00:%02X:%02X", index >> 8, index & 0xff);
+    }
+
+    private static Run runFleet(long seed) throws Exception {
+        SimulatedBraceletNetwork.Config config = new SimulatedBraceletNetwork.Config();
+        config.balancedIntervalMicros = 2000;
+        config.connectDelayMillis = 5;
+        config.discoveryDelayMillis = 10;
+        config.lossRate = 0.05;
+        config.seed = seed;
+        SimulatedBraceletNetwork network = new SimulatedBraceletNetwork(config, 4);
+        final AtomicLong received = new AtomicLong();
+        network.setPeer(new SimulatedBraceletNetwork.Peer() {
+            public void onWrite(SimulatedBracelet bracelet, UUID characteristicUuid, byte[] value) {
+                received.addAndGet(value.length);
+            }
+        });
+        BraceletSessionRuntime runtime = new BraceletSessionRuntime(network);
+        final byte[] payload = new byte[PAYLOAD_SIZE];
+        final AtomicInteger completed = new AtomicInteger();
+        try {
+            long started = System.nanoTime();
+            List<Future<Void>> sessions = new ArrayList<Future<Void>>(BRACELETS);
+            for (int i = 0; i < BRACELETS; i++) {
+                sessions.add(runtime.start(address(i), new BraceletSessionRuntime.SessionBody() {
+                    public void run(BlockingBraceletSession session) throws Exception {
+                        assertTrue(session.connect(5000));
+                        assertTrue(session.discoverServices());
+                        assertEquals(247, session.requestMtu(247));
+                        // acknowledged writes keep every bracelet's event sequence independent
+                        // of thread timing
+                        assertTrue(session.send(payload, true));
+                        assertArrayEquals("1.0.0".getBytes("UTF-8"), session.read(
+                                SimulatedBracelet.DEVICE_INFORMATION_SERVICE_UUID, SimulatedBracelet.FIRMWARE_REVISION_UUID));
+                        completed.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<Void> session : sessions) {
+                session.get(60, TimeUnit.SECONDS);
+            }
+            Run run = new Run();
+            run.elapsedNanos = System.nanoTime() - started;
+            run.packetsSent = network.getPacketsSent();
+            run.eventsLost = network.getEventsLost();
+            run.bytesReceived = received.get();
+            assertEquals(BRACELETS, completed.get());
+            return run;
+        } finally {
+            runtime.shutdown();
+            network.shutdown();
+        }
+    }
+
+    @Test
+    public void fleetRunIsCompleteConcurrentAndDeterministic() throws Exception {
+        Run first = runFleet(42);
+        assertEquals((long) BRACELETS * BYTES_PER_BRACELET, first.bytesReceived);
+        assertEquals((long) BRACELETS * REQUESTS_PER_BRACELET, first.packetsSent);
+        assertTrue(first.eventsLost > 0);
+        // one bracelet takes about 50 ms of connection delays and events; run one after another
+        // the fleet would need close to a minute
+        assertTrue("took " + TimeUnit.NANOSECONDS.toMillis(first.elapsedNanos) + " ms",
+                first.elapsedNanos < TimeUnit.SECONDS.toNanos(30));
+
+        Run second = runFleet(42);
+        assertEquals(first.packetsSent, second.packetsSent);
+        assertEquals(first.eventsLost, second.eventsLost);
+        assertEquals(first.bytesReceived, second.bytesReceived);
+    }
+}
@@ -0,0 +1,250 @@
+package com.example.android.bluetoothlegatt.ble_service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedBraceletTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    /**
+     * Records transport events as short strings, in order.
+     */
+    private static final class Recorder implements GattTransport.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+        public void onConnectionStateChange(GattTransport transport, int status, int newState) {
+            this.events.add("state " + status + " " + newState);
+        }
+
+        public void onServicesDiscovered(GattTransport transport, int status) {
+            this.events.add("discovered " + status);
+        }
+
+        public void onCharacteristicRead(GattTransport transport, UUID serviceUuid, UUID characteristicUuid,
+                                         byte[] value, int status) {
+            this.events.add("read " + status + " " + new String(value));
+        }
+
+        public void onCharacteristicWrite(GattTransport transport, UUID characteristicUuid, int status) {
+            this.events.add("write " + status);
+        }
+
+        public void onDescriptorWrite(GattTransport transport, UUID descriptorUuid, int status) {
+            this.events.add("descriptor " + status);
+        }
+
+        public void onCharacteristicChanged(GattTransport transport, UUID characteristicUuid, byte[] value) {
+            this.events.add("changed " + value.length);
+        }
+
+        public void onMtuChanged(GattTransport transport, int mtu, int status) {
+            this.events.add("mtu " + mtu + " " + status);
+        }
+
+        public void onPhyUpdate(GattTransport transport, int txPhy, int rxPhy, int status) {
+            this.events.add("phy " + txPhy + " " + status);
+        }
+
+        void expect(String event) throws InterruptedException {
+            assertEquals(event, this.events.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Records the values that reached the bracelet.
+     */
+    private static final class RecordingPeer implements SimulatedBraceletNetwork.Peer {
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+
+        public void onWrite(SimulatedBracelet bracelet, UUID characteristicUuid, byte[] value) {
+            this.received.add(value);
+        }
+    }
+
+    private final Recorder mRecorder = new Recorder();
+    private final RecordingPeer mPeer = new RecordingPeer();
+    private SimulatedBraceletNetwork mNetwork;
+
+    @After
+    public void tearDown() {
+        if (this.mNetwork != null) {
+            this.mNetwork.shutdown();
+        }
+    }
+
+    private static SimulatedBraceletNetwork.Config fastConfig() {
+        SimulatedBraceletNetwork.Config config = new SimulatedBraceletNetwork.Config();
+        config.balancedIntervalMicros = 1000;
+        config.connectDelayMillis = 1;
+        config.discoveryDelayMillis = 1;
+        return config;
+    }
+
+    private SimulatedBracelet open(SimulatedBraceletNetwork.Config config) throws InterruptedException {
+        this.mNetwork = new SimulatedBraceletNetwork(config, 2);
+        this.mNetwork.setPeer(this.mPeer);
+        SimulatedBracelet bracelet = (SimulatedBracelet) this.mNetwork.open(ADDRESS, false, this.mRecorder);
+        this.mRecorder.expect("state 0 2");
+        assertTrue(bracelet.discoverServices());
+        this.mRecorder.expect("discovered 0");
+        return bracelet;
+    }
+
+    private static boolean write(SimulatedBracelet bracelet, byte[] value, boolean withResponse) {
+        return bracelet.writeCharacteristic(SimulatedBracelet.RX_SERVICE_UUID, SimulatedBracelet.RX_CHAR_UUID, value,
+                withResponse);
+    }
+
+    @Test
+    public void mtuIsCappedAndLimitsWrites() throws Exception {
+        SimulatedBracelet bracelet = open(fastConfig());
+        assertTrue(bracelet.requestMtu(517));
+        this.mRecorder.expect("mtu 247 0");
+        assertEquals(247, bracelet.getMtu());
+
+        // the stack truncates writes without response to MTU - 3
+        assertTrue(write(bracelet, new byte[300], false));
+        this.mRecorder.expect("write 0");
+        assertEquals(244, this.mPeer.received.poll(5, TimeUnit.SECONDS).length);
+
+        // an acknowledged write that does not fit is refused by the bracelet
+        assertTrue(write(bracelet, new byte[300], true));
+        this.mRecorder.expect("write " + SimulatedBracelet.STATUS_INVALID_ATTRIBUTE_LENGTH);
+        assertNull(this.mPeer.received.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void readReturnsFirmwareRevision() throws Exception {
+        SimulatedBraceletNetwork.Config config = fastConfig();
+        config.firmwareRevision = "2.4.1";
+        SimulatedBracelet bracelet = open(config);
+        assertTrue(bracelet.readCharacteristic(SimulatedBracelet.DEVICE_INFORMATION_SERVICE_UUID,
+                SimulatedBracelet.FIRMWARE_REVISION_UUID));
+        this.mRecorder.expect("read 0 2.4.1");
+    }
+
+    @Test
+    public void writeWithoutResponseIsAcknowledgedWhileTheBufferHasRoom() throws Exception {
+        SimulatedBraceletNetwork.Config config = fastConfig();
+        // no connection event happens while the buffer is filled
+        config.balancedIntervalMicros = 300000;
+        SimulatedBracelet bracelet = open(config);
+        for (int i = 0; i < SimulatedBracelet.TRANSMIT_BUFFER_PACKETS; i++) {
+            assertTrue(write(bracelet, new byte[]{(byte) i}, false));
+        }
+        for (int i = 0; i < SimulatedBracelet.TRANSMIT_BUFFER_PACKETS; i++) {
+            this.mRecorder.expect("write 0");
+        }
+
+        // held until the next connection event frees the buffer; nothing else fits meanwhile
+        assertTrue(write(bracelet, new byte[]{8}, false));
+        assertNull(this.mRecorder.events.poll(50, TimeUnit.MILLISECONDS));
+        assertFalse(write(bracelet, new byte[]{9}, false));
+        this.mRecorder.expect("write 0");
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, this.mPeer.received.poll(5, TimeUnit.SECONDS)[0]);
+        }
+    }
+
+    @Test
+    public void connectionEventsPaceThePackets() throws Exception {
+        SimulatedBraceletNetwork.Config config = fastConfig();
+        config.balancedIntervalMicros = 10000;
+        config.packetsPerEvent = 2;
+        SimulatedBracelet bracelet = open(config);
+        long started = System.nanoTime();
+        for (int i = 0; i < SimulatedBracelet.TRANSMIT_BUFFER_PACKETS; i++) {
+            assertTrue(write(bracelet, new byte[]{(byte) i}, false));
+        }
+        for (int i = 0; i < SimulatedBracelet.TRANSMIT_BUFFER_PACKETS; i++) {
+            this.mRecorder.expect("write 0");
+        }
+        for (int i = 0; i < SimulatedBracelet.TRANSMIT_BUFFER_PACKETS; i++) {
+            assertEquals(i, this.mPeer.received.poll(5, TimeUnit.SECONDS)[0]);
+        }
+        // eight packets at two per event take four 10 ms intervals
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(40));
+
+        assertTrue(bracelet.requestConnectionPriority(GattTransport.CONNECTION_PRIORITY_HIGH));
+        assertEquals(config.highIntervalMicros, bracelet.getIntervalMicros());
+        assertTrue(bracelet.setPreferredPhy(GattTransport.PHY_LE_2M_MASK, GattTransport.PHY_LE_2M_MASK,
+                GattTransport.PHY_OPTION_NO_PREFERRED));
+        this.mRecorder.expect("phy " + GattTransport.PHY_LE_2M_MASK + " 0");
+        assertTrue(bracelet.is2M());
+    }
+
+    @Test
+    public void lostEventsAreRetriedAndDeterministicPerSeed() throws Exception {
+        long first = runLossyWrites(7);
+        tearDown();
+        assertTrue(first > 0);
+        assertEquals(first, runLossyWrites(7));
+    }
+
+    private long runLossyWrites(long seed) throws Exception {
+        SimulatedBraceletNetwork.Config config = fastConfig();
+        config.lossRate = 0.3;
+        config.supervisionEvents = 1000;
+        config.seed = seed;
+        SimulatedBracelet bracelet = open(config);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(write(bracelet, new byte[]{(byte) i}, true));
+            this.mRecorder.expect("write 0");
+            assertEquals(i, this.mPeer.received.poll(5, TimeUnit.SECONDS)[0]);
+        }
+        assertTrue(bracelet.isConnected());
+        return this.mNetwork.getEventsLost();
+    }
+
+    @Test
+    public void consecutiveLostEventsEndTheLink() throws Exception {
+        SimulatedBraceletNetwork.Config config = fastConfig();
+        config.lossRate = 1;
+        config.supervisionEvents = 3;
+        SimulatedBracelet bracelet = open(config);
+        assertTrue(write(bracelet, new byte[]{1}, true));
+        this.mRecorder.expect("state " + SimulatedBracelet.STATUS_CONNECTION_TIMEOUT + " " + GattTransport.STATE_DISCONNECTED);
+        assertEquals(3, this.mNetwork.getEventsLost());
+        assertEquals(1, this.mNetwork.getDisconnects());
+        assertFalse(bracelet.isConnected());
+        assertEquals(SimulatedBracelet.DEFAULT_MTU, bracelet.getMtu());
+    }
+
+    @Test
+    public void spontaneousDisconnectEndsTheLinkAndAllowsReconnect() throws Exception {
+        SimulatedBraceletNetwork.Config config = fastConfig();
+        config.disconnectsPerSecond = 50;
+        SimulatedBracelet bracelet = open(config);
+        this.mRecorder.expect("state " + SimulatedBracelet.STATUS_REMOTE_USER_TERMINATED + " "
+                + GattTransport.STATE_DISCONNECTED);
+        assertEquals(1, this.mNetwork.getDisconnects());
+        assertTrue(bracelet.connect());
+        this.mRecorder.expect("state 0 2");
+    }
+
+    @Test
+    public void notificationsNeedTheCccd() throws Exception {
+        SimulatedBracelet bracelet = open(fastConfig());
+        assertFalse(bracelet.notify(SimulatedBracelet.TX_CHAR_UUID, new byte[]{1}));
+        assertTrue(bracelet.setCharacteristicNotification(SimulatedBracelet.RX_SERVICE_UUID,
+                SimulatedBracelet.TX_CHAR_UUID, true));
+        assertTrue(bracelet.writeDescriptor(SimulatedBracelet.RX_SERVICE_UUID, SimulatedBracelet.TX_CHAR_UUID,
+                SimulatedBracelet.CCCD, new byte[]{1, 0}));
+        this.mRecorder.expect("descriptor 0");
+        assertTrue(bracelet.notify(SimulatedBracelet.TX_CHAR_UUID, new byte[40]));
+        // truncated to the default MTU
+        this.mRecorder.expect("changed 20");
+        assertEquals(1, this.mNetwork.getNotificationsSent());
+    }
+}